@@ -0,0 +1,467 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jcajce.provider.digest.Blake2b;
+import org.bouncycastle.jcajce.provider.digest.SHA3;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.usrz.libs.logging.Log;
+
+/**
+ * Resolve {@link MessageDigest} and {@link Mac} algorithms for {@link Hash}.
+ * <p>
+ * By default, installed JCA providers are tried first. <em>SHA-3</em> and
+ * <em>BLAKE2b</em> digests otherwise come from BouncyCastle (without
+ * registering it as a provider), <em>BLAKE3</em> is our own pure Java
+ * {@link BLAKE3} implementation, and HMACs not offered by any provider
+ * are computed by a generic RFC 2104 implementation.
+ * <p>
+ * This can be changed with the <code>{@value #PROVIDER_PROPERTY}</code>
+ * system property (for all hashes) or with the same property followed by
+ * a dot and the {@linkplain Hash#name() name} of a {@link Hash} (for that
+ * hash alone), whose value can be:
+ * <dl>
+ *   <dt><code>default</code></dt>
+ *   <dd>The default behaviour described above.</dd>
+ *   <dt><code>auto</code></dt>
+ *   <dd>Benchmark all available implementations (verifying that they
+ *       produce correct results) and select the fastest.</dd>
+ *   <dt>A comma separated list of provider names</dt>
+ *   <dd>Use the first provider in the list offering the algorithm,
+ *       falling back to the default behaviour.</dd>
+ *   <dt><code>fixed:</code> followed by a list of provider names</dt>
+ *   <dd>Use the first provider in the list offering the algorithm,
+ *       failing if none of them does.</dd>
+ * </dl>
+ * <p>
+ * Provider names are the ones of the installed JCA providers, plus
+ * <code>BC</code> (BouncyCastle, available even when not installed) and
+ * <code>internal</code> (our own implementations).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class Algorithms {
+
+    /** The system property (and prefix) selecting the provider policy. */
+    static final String PROVIDER_PROPERTY = "org.usrz.libs.crypto.hash.provider";
+
+    /** The name of the BouncyCastle provider. */
+    static final String BOUNCY_CASTLE = "BC";
+    /** The name of our own implementations. */
+    static final String INTERNAL = "internal";
+
+    /* The size of the data hashed, and the number of runs when timing */
+    private static final int BENCHMARK_LENGTH = 64 * 1024;
+    private static final int BENCHMARK_ROUNDS = 8;
+    private static final int BENCHMARK_RUNS = 3;
+    /* How much faster than the default another implementation must be */
+    private static final double BENCHMARK_MARGIN = 1.1;
+
+    private static final Log log = new Log(Algorithms.class);
+
+    private Algorithms() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return a new {@link MessageDigest} for the specified algorithm,
+     * according to the provider policy of the specified {@link Hash}.
+     */
+    static MessageDigest getMessageDigest(String hash, String algorithm)
+    throws NoSuchAlgorithmException {
+        final String policy = getPolicy(hash);
+        if ("default".equals(policy)) return getMessageDigest(algorithm);
+
+        /* Installed providers, BouncyCastle and our BLAKE3 */
+        final List<Candidate<MessageDigest>> candidates = candidates(DIGESTS, algorithm, policy);
+        if ("BLAKE3".equals(algorithm)) candidates.add(new Candidate<>(INTERNAL, BLAKE3::new));
+
+        final MessageDigest digest = select(DIGESTS, hash, algorithm, policy, candidates, () -> getMessageDigest(algorithm));
+        return digest != null ? digest : getMessageDigest(algorithm);
+    }
+
+    /**
+     * Return a new {@link Mac} for the specified algorithm, according to the
+     * provider policy of the specified {@link Hash}, possibly computing
+     * HMACs with the given (already selected) {@link MessageDigest}.
+     */
+    static Mac getMac(String hash, String algorithm, String digestAlgorithm, MessageDigest digest)
+    throws NoSuchAlgorithmException {
+        final String policy = getPolicy(hash);
+        if ("default".equals(policy)) return getMac(algorithm, digestAlgorithm, digest);
+
+        /* Installed providers, BouncyCastle and our generic HMAC */
+        final List<Candidate<Mac>> candidates = candidates(MACS, algorithm, policy);
+        final int blockLength = getBlockLength(digestAlgorithm);
+        if (blockLength > 0) candidates.add(new Candidate<>(INTERNAL, () ->
+                HMACSpi.newMac(algorithm, (MessageDigest) digest.clone(), blockLength)));
+
+        final Mac mac = select(MACS, hash, algorithm, policy, candidates, () -> getMac(algorithm, digestAlgorithm, digest));
+        return mac != null ? mac : getMac(algorithm, digestAlgorithm, digest);
+    }
+
+    /**
+     * Return the name of the provider of the specified {@link MessageDigest}
+     * or {@link Mac}, given its (possibly <b>null</b>) {@link Provider}.
+     */
+    static String getProviderName(Provider provider, Object instance) {
+        if (provider != null) return provider.getName();
+        return instance.getClass().getName().startsWith("org.bouncycastle.") ? BOUNCY_CASTLE : INTERNAL;
+    }
+
+    /* ====================================================================== */
+
+    /* Return a new MessageDigest using our default policy */
+    private static MessageDigest getMessageDigest(String algorithm)
+    throws NoSuchAlgorithmException {
+        switch (algorithm) {
+            case "BLAKE3": return new BLAKE3();
+            case "BLAKE2B-512": return BouncyCastle.getMessageDigest(algorithm);
+        }
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException exception) {
+            switch (algorithm) {
+                case "SHA3-256":
+                case "SHA3-512": return BouncyCastle.getMessageDigest(algorithm);
+                default: throw exception;
+            }
+        }
+    }
+
+    /* Return a new Mac using our default policy */
+    private static Mac getMac(String algorithm, String digestAlgorithm, MessageDigest digest)
+    throws NoSuchAlgorithmException {
+        try {
+            return Mac.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException exception) {
+            final int blockLength = getBlockLength(digestAlgorithm);
+            if (blockLength < 1) throw exception;
+            try {
+                return HMACSpi.newMac(algorithm, (MessageDigest) digest.clone(), blockLength);
+            } catch (CloneNotSupportedException cloneException) {
+                throw (NoSuchAlgorithmException) exception.initCause(cloneException);
+            }
+        }
+    }
+
+    /**
+     * Return the block length of the specified digest algorithm (as used
+     * by HMACs), or <b>-1</b> if unknown.
+     */
+    static int getBlockLength(String digestAlgorithm) {
+        switch (digestAlgorithm) {
+            case "MD5":         return  64;
+            case "SHA1":        return  64;
+            case "SHA-256":     return  64;
+            case "SHA-384":     return 128;
+            case "SHA-512":     return 128;
+            case "SHA3-256":    return 136;
+            case "SHA3-512":    return  72;
+            case "BLAKE2B-512": return 128;
+            case "BLAKE3":      return  64;
+            default:            return  -1;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * All references to BouncyCastle classes live here: its JAR is signed
+     * and verifying it is costly, so we only load it when needed.
+     */
+    private static final class BouncyCastle {
+
+        /* An unregistered BouncyCastle provider, created only when needed */
+        private static Provider provider;
+
+        private BouncyCastle() {
+            throw new IllegalStateException("Do not construct");
+        }
+
+        /* Return a new BouncyCastle MessageDigest */
+        private static MessageDigest getMessageDigest(String algorithm)
+        throws NoSuchAlgorithmException {
+            switch (algorithm) {
+                case "BLAKE2B-512": return new Blake2b.Blake2b512();
+                case "SHA3-256":    return new SHA3.Digest256();
+                case "SHA3-512":    return new SHA3.Digest512();
+                default: throw new NoSuchAlgorithmException(algorithm + " MessageDigest not available");
+            }
+        }
+
+        /* Return our unregistered BouncyCastle provider */
+        private static synchronized Provider getProvider() {
+            if (provider == null) provider = new BouncyCastleProvider();
+            return provider;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Return the policy for the specified hash */
+    private static String getPolicy(String hash) {
+        final String policy = System.getProperty(PROVIDER_PROPERTY, "default");
+        return System.getProperty(PROVIDER_PROPERTY + "." + hash, policy).trim();
+    }
+
+    /* Return the names of the providers in a policy */
+    private static String[] getProviderNames(String policy) {
+        final String names = policy.startsWith("fixed:") ? policy.substring(6) : policy;
+        return names.trim().split("\\s*,\\s*");
+    }
+
+    /* Return the candidates offered by the installed providers and BouncyCastle */
+    private static <T> List<Candidate<T>> candidates(Service<T> service, String algorithm, String policy) {
+        final List<Candidate<T>> candidates = new ArrayList<>();
+        boolean bouncyCastleInstalled = false;
+        for (Provider provider: Security.getProviders()) {
+            if (BOUNCY_CASTLE.equals(provider.getName())) bouncyCastleInstalled = true;
+            if (provider.getService(service.type, algorithm) == null) try {
+                /* Resolve aliases, like "SHA1" for "SHA-1" */
+                service.getInstance(algorithm, provider);
+            } catch (NoSuchAlgorithmException exception) {
+                continue;
+            }
+            candidates.add(new Candidate<>(provider.getName(), () -> service.getInstance(algorithm, provider)));
+        }
+
+        /* Only create BouncyCastle when benchmarking or asked for */
+        if (bouncyCastleInstalled) return candidates;
+        boolean wanted = "auto".equals(policy);
+        for (String name: getProviderNames(policy)) wanted |= BOUNCY_CASTLE.equalsIgnoreCase(name);
+        if (wanted) try {
+            final Provider provider = BouncyCastle.getProvider();
+            service.getInstance(algorithm, provider);
+            candidates.add(new Candidate<>(BOUNCY_CASTLE, () -> service.getInstance(algorithm, provider)));
+        } catch (NoSuchAlgorithmException exception) {
+            /* BouncyCastle does not know about this algorithm */
+        }
+        return candidates;
+    }
+
+    /* Select an implementation according to the policy, or null for the default */
+    private static <T> T select(Service<T> service, String hash, String algorithm, String policy,
+                                List<Candidate<T>> candidates, Factory<T> defaultFactory)
+    throws NoSuchAlgorithmException {
+
+        /* Automatic selection by benchmark */
+        if ("auto".equals(policy)) return benchmark(service, hash, algorithm, candidates, defaultFactory);
+
+        /* Fixed or preferred providers, in order */
+        final String[] names = getProviderNames(policy);
+        for (String name: names) {
+            for (Candidate<T> candidate: candidates) {
+                if (! candidate.provider.equalsIgnoreCase(name)) continue;
+                try {
+                    final T instance = candidate.factory.create();
+                    service.copy(instance);
+                    log.debug("Selected provider %s for %s %s of %s", candidate.provider, service.type, algorithm, hash);
+                    return instance;
+                } catch (GeneralSecurityException | CloneNotSupportedException | RuntimeException exception) {
+                    log.warn(exception, "Provider %s unusable for %s %s of %s", candidate.provider, service.type, algorithm, hash);
+                }
+            }
+        }
+
+        if (policy.startsWith("fixed:"))
+            throw new NoSuchAlgorithmException("No provider in [" + String.join(",", names) + "] for " + service.type + " " + algorithm);
+        return null;
+    }
+
+    /* Benchmark all candidates and return the fastest, or null for the default */
+    private static <T> T benchmark(Service<T> service, String hash, String algorithm,
+                                   List<Candidate<T>> candidates, Factory<T> defaultFactory)
+    throws NoSuchAlgorithmException {
+        final byte[] data = new byte[BENCHMARK_LENGTH];
+        new Random(BENCHMARK_LENGTH).nextBytes(data);
+
+        final String defaultProvider;
+        final byte[] expected;
+        try {
+            final T instance = defaultFactory.create();
+            defaultProvider = getProviderName(service.getProvider(instance), instance);
+            expected = service.compute(instance, data);
+        } catch (GeneralSecurityException | CloneNotSupportedException exception) {
+            throw (NoSuchAlgorithmException) new NoSuchAlgorithmException("Unable to compute " + algorithm).initCause(exception);
+        }
+
+        final StringBuilder results = new StringBuilder();
+        Candidate<T> fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        long defaultTime = Long.MAX_VALUE;
+        for (Candidate<T> candidate: candidates) try {
+            final T instance = candidate.factory.create();
+            service.copy(instance);
+
+            /* Check that we get the correct results */
+            if (! MessageDigest.isEqual(service.compute(instance, data), expected)) {
+                log.error("Provider %s computes wrong results for %s %s of %s", candidate.provider, service.type, algorithm, hash);
+                continue;
+            }
+
+            /* One warm up run, and the fastest of a few timed ones */
+            long time = Long.MAX_VALUE;
+            for (int run = 0; run <= BENCHMARK_RUNS; run ++) {
+                final long start = System.nanoTime();
+                for (int round = 0; round < BENCHMARK_ROUNDS; round ++) service.compute(instance, data);
+                if (run > 0) time = Math.min(time, System.nanoTime() - start);
+            }
+
+            final long throughput = (1000L * BENCHMARK_LENGTH * BENCHMARK_ROUNDS) / Math.max(time, 1);
+            results.append(results.length() == 0 ? "" : ", ").append(candidate.provider).append(' ').append(throughput).append(" MB/s");
+            if (candidate.provider.equals(defaultProvider)) defaultTime = time;
+            if (time < fastestTime) {
+                fastestTime = time;
+                fastest = candidate;
+            }
+        } catch (GeneralSecurityException | CloneNotSupportedException | RuntimeException exception) {
+            log.debug(exception, "Provider %s unusable for %s %s of %s", candidate.provider, service.type, algorithm, hash);
+        }
+
+        /* Stick with the default unless something is noticeably faster */
+        if ((fastest == null) || (fastestTime * BENCHMARK_MARGIN > defaultTime)) {
+            log.info("Selected default provider %s for %s %s of %s (%s)", defaultProvider, service.type, algorithm, hash, results);
+            return null;
+        }
+
+        log.info("Selected provider %s for %s %s of %s (%s)", fastest.provider, service.type, algorithm, hash, results);
+        try {
+            return fastest.factory.create();
+        } catch (GeneralSecurityException | CloneNotSupportedException exception) {
+            throw (NoSuchAlgorithmException) new NoSuchAlgorithmException("Unable to create " + algorithm).initCause(exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Create an instance of an implementation */
+    @FunctionalInterface
+    private interface Factory<T> {
+        T create()
+        throws GeneralSecurityException, CloneNotSupportedException;
+    }
+
+    /* A candidate implementation, and the name of its provider */
+    private static final class Candidate<T> {
+
+        private final String provider;
+        private final Factory<T> factory;
+
+        private Candidate(String provider, Factory<T> factory) {
+            this.provider = provider;
+            this.factory = factory;
+        }
+    }
+
+    /* The operations needed to select and benchmark implementations */
+    private static abstract class Service<T> {
+
+        private final String type;
+
+        private Service(String type) {
+            this.type = type;
+        }
+
+        /* Return a new instance from the specified provider */
+        abstract T getInstance(String algorithm, Provider provider)
+        throws NoSuchAlgorithmException;
+
+        /* Return the provider of an instance */
+        abstract Provider getProvider(T instance);
+
+        /* Clone an instance, as Hash does when pooling */
+        abstract T copy(T instance)
+        throws CloneNotSupportedException;
+
+        /* Compute the hash of some data */
+        abstract byte[] compute(T instance, byte[] data)
+        throws GeneralSecurityException;
+
+    }
+
+    /* Our MessageDigest service */
+    private static final Service<MessageDigest> DIGESTS = new Service<MessageDigest>("MessageDigest") {
+
+        @Override
+        MessageDigest getInstance(String algorithm, Provider provider)
+        throws NoSuchAlgorithmException {
+            return MessageDigest.getInstance(algorithm, provider);
+        }
+
+        @Override
+        Provider getProvider(MessageDigest digest) {
+            return digest.getProvider();
+        }
+
+        @Override
+        MessageDigest copy(MessageDigest digest)
+        throws CloneNotSupportedException {
+            return (MessageDigest) digest.clone();
+        }
+
+        @Override
+        byte[] compute(MessageDigest digest, byte[] data) {
+            return digest.digest(data);
+        }
+    };
+
+    /* Our Mac service */
+    private static final Service<Mac> MACS = new Service<Mac>("Mac") {
+
+        private final byte[] key = "Benchmark key".getBytes();
+
+        @Override
+        Mac getInstance(String algorithm, Provider provider)
+        throws NoSuchAlgorithmException {
+            return Mac.getInstance(algorithm, provider);
+        }
+
+        @Override
+        Provider getProvider(Mac mac) {
+            return mac.getProvider();
+        }
+
+        @Override
+        Mac copy(Mac mac)
+        throws CloneNotSupportedException {
+            return (Mac) mac.clone();
+        }
+
+        @Override
+        byte[] compute(Mac mac, byte[] data)
+        throws GeneralSecurityException {
+            mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+            return mac.doFinal(data);
+        }
+    };
+
+}
@@ -0,0 +1,585 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A pure Java implementation of the
+ * <a href="https://github.com/BLAKE3-team/BLAKE3">BLAKE3</a> hash function
+ * producing <b>256-bits</b> hash values.
+ * <p>
+ * Large updates are split into power-of-two subtrees of 1024-byte chunks,
+ * and subtrees of at least {@value #PARALLEL_THRESHOLD} bytes are hashed
+ * on several threads of the {@linkplain java.util.concurrent.ForkJoinPool#commonPool()
+ * common fork-join pool}. Smaller inputs are always hashed on the calling
+ * thread.
+ * <p>
+ * Instances of this class are <b>not</b> thread safe.
+ *
+ * @see <a href="https://github.com/BLAKE3-team/BLAKE3-specs/blob/master/blake3.pdf">BLAKE3
+ *      specification</a>
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class BLAKE3 extends MessageDigest implements Cloneable {
+
+    /** The length (in bytes) of BLAKE3 hashes. */
+    public static final int HASH_LENGTH = 32;
+    /** The length (in bytes) of keys for BLAKE3's <em>keyed hash</em> mode. */
+    public static final int KEY_LENGTH = 32;
+    /** Subtrees of this many bytes (or more) are hashed in parallel. */
+    public static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    /* Block and chunk lengths */
+    private static final int BLOCK_LEN = 64;
+    private static final int CHUNK_LEN = 1024;
+    /* Maximum depth of our chaining values stack (2^54 chunks) */
+    private static final int MAX_DEPTH = 54;
+    /* Largest buffer used to copy data from direct buffers */
+    private static final int COPY_LEN = 1024 * 1024;
+
+    /* Domain separation flags */
+    private static final int CHUNK_START = 1 << 0;
+    private static final int CHUNK_END = 1 << 1;
+    private static final int PARENT = 1 << 2;
+    private static final int ROOT = 1 << 3;
+    private static final int KEYED_HASH = 1 << 4;
+
+    /* The initialization vector (same as SHA-256) */
+    private static final int[] IV = {
+        0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+        0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    /* ====================================================================== */
+
+    /* The key words (IV when not keyed) and base flags */
+    private final int[] key;
+    private final int flags;
+
+    /* The current chunk: chaining value, counter, and partial block */
+    private int[] cv = new int[8];
+    private long chunkCounter;
+    private byte[] block = new byte[BLOCK_LEN];
+    private int blockLength;
+    private int blocksCompressed;
+
+    /* The stack of chaining values for completed subtrees */
+    private int[] stack = new int[MAX_DEPTH * 8];
+    private int stackLength;
+
+    /* Scratch space for message words and chaining values */
+    private int[] words = new int[16];
+
+    /**
+     * Create a new {@link BLAKE3} instance in its default hashing mode.
+     */
+    public BLAKE3() {
+        super("BLAKE3");
+        key = IV;
+        flags = 0;
+        engineReset();
+    }
+
+    /**
+     * Create a new {@link BLAKE3} instance in <em>keyed hash</em> mode,
+     * using the specified {@value #KEY_LENGTH} bytes key.
+     */
+    public BLAKE3(byte[] key) {
+        super("BLAKE3");
+        Check.notNull(key, "Null key");
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException("Key must be " + KEY_LENGTH + " bytes");
+        this.key = new int[8];
+        load(key, 0, this.key, 8);
+        flags = KEYED_HASH;
+        engineReset();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected int engineGetDigestLength() {
+        return HASH_LENGTH;
+    }
+
+    @Override
+    protected void engineReset() {
+        newChunk(0);
+        stackLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (input.hasArray()) {
+            super.engineUpdate(input);
+        } else {
+            /* Copy in large pieces, so that we can still use threads */
+            final byte[] buffer = new byte[Math.min(input.remaining(), COPY_LEN)];
+            while (input.hasRemaining()) {
+                final int length = Math.min(input.remaining(), buffer.length);
+                input.get(buffer, 0, length);
+                engineUpdate(buffer, 0, length);
+            }
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+
+        /* If we have a partial chunk, we need to finish that first */
+        final int chunkLength = blocksCompressed * BLOCK_LEN + blockLength;
+        if (chunkLength > 0) {
+            final int take = Math.min(CHUNK_LEN - chunkLength, length);
+            chunkUpdate(input, offset, take);
+            offset += take;
+            length -= take;
+            if (length == 0) return;
+
+            /* More input is coming, so this chunk is not the root */
+            chunkOutput(words);
+            compress(cv, words, chunkCounter, blockLength, chunkFlags(), cv);
+            pushChainingValue(cv, 0, chunkCounter);
+            newChunk(chunkCounter + 1);
+        }
+
+        /*
+         * Hash the largest whole subtrees we can: they must be a power of two
+         * chunks, and must evenly divide the number of chunks so far. Always
+         * keep some input for the last chunk, which might be the root.
+         */
+        final int[] pair = new int[16];
+        while (length > CHUNK_LEN) {
+            int subtreeLength = Integer.highestOneBit(length);
+            final long countSoFar = chunkCounter * CHUNK_LEN;
+            while (((subtreeLength - 1) & countSoFar) != 0) subtreeLength >>>= 1;
+            final long subtreeChunks = subtreeLength / CHUNK_LEN;
+
+            if (subtreeLength == CHUNK_LEN) {
+                chunk(input, offset, chunkCounter, key, flags, words, pair);
+                pushChainingValue(pair, 0, chunkCounter);
+            } else {
+                /* Push both children, so that the root is never merged early */
+                subtrees(input, offset, subtreeLength, chunkCounter, key, flags, pair);
+                pushChainingValue(pair, 0, chunkCounter);
+                pushChainingValue(pair, 8, chunkCounter + subtreeChunks / 2);
+            }
+
+            chunkCounter += subtreeChunks;
+            offset += subtreeLength;
+            length -= subtreeLength;
+        }
+
+        /* Whatever is left goes in the current chunk */
+        if (length > 0) {
+            chunkUpdate(input, offset, length);
+            mergeStack(chunkCounter);
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        final byte[] result = new byte[HASH_LENGTH];
+        finish(result, 0);
+        return result;
+    }
+
+    @Override
+    protected int engineDigest(byte[] output, int offset, int length)
+    throws DigestException {
+        if ((length < HASH_LENGTH) || (output.length - HASH_LENGTH < offset))
+            throw new DigestException("Buffer too short");
+        finish(output, offset);
+        return HASH_LENGTH;
+    }
+
+    @Override
+    public Object clone()
+    throws CloneNotSupportedException {
+        final BLAKE3 clone = (BLAKE3) super.clone();
+        clone.cv = cv.clone();
+        clone.block = block.clone();
+        clone.stack = stack.clone();
+        clone.words = new int[16];
+        return clone;
+    }
+
+    /* ====================================================================== */
+
+    /* Compute the root output, write it and reset */
+    private void finish(byte[] output, int offset) {
+        final int[] outputCV = new int[8];
+        final int[] outputWords = new int[16];
+        long outputCounter;
+        int outputLength;
+        int outputFlags;
+
+        int remaining = stackLength;
+        if ((remaining == 0) || (blocksCompressed > 0) || (blockLength > 0)) {
+            /* Start from the current chunk */
+            System.arraycopy(cv, 0, outputCV, 0, 8);
+            chunkOutput(outputWords);
+            outputCounter = chunkCounter;
+            outputLength = blockLength;
+            outputFlags = chunkFlags();
+        } else {
+            /* No data in the current chunk: start from the top two values */
+            System.arraycopy(key, 0, outputCV, 0, 8);
+            System.arraycopy(stack, (remaining - 2) * 8, outputWords, 0, 16);
+            outputCounter = 0;
+            outputLength = BLOCK_LEN;
+            outputFlags = flags | PARENT;
+            remaining -= 2;
+        }
+
+        /* Merge the rest of the stack into the output */
+        while (remaining > 0) {
+            compress(outputCV, outputWords, outputCounter, outputLength, outputFlags, outputWords);
+            System.arraycopy(outputWords, 0, outputWords, 8, 8);
+            System.arraycopy(stack, (remaining - 1) * 8, outputWords, 0, 8);
+            System.arraycopy(key, 0, outputCV, 0, 8);
+            outputCounter = 0;
+            outputLength = BLOCK_LEN;
+            outputFlags = flags | PARENT;
+            remaining --;
+        }
+
+        /* Compress the root node and write out the result */
+        compress(outputCV, outputWords, outputCounter, outputLength, outputFlags | ROOT, outputCV);
+        for (int x = 0; x < 8; x ++) {
+            final int word = outputCV[x];
+            output[offset ++] = (byte) (word);
+            output[offset ++] = (byte) (word >>> 8);
+            output[offset ++] = (byte) (word >>> 16);
+            output[offset ++] = (byte) (word >>> 24);
+        }
+
+        engineReset();
+    }
+
+    /* ====================================================================== */
+
+    /* Start a new chunk with the specified counter */
+    private void newChunk(long counter) {
+        System.arraycopy(key, 0, cv, 0, 8);
+        chunkCounter = counter;
+        blockLength = 0;
+        blocksCompressed = 0;
+    }
+
+    /* The flags for the current block in the current chunk */
+    private int chunkFlags() {
+        return flags | (blocksCompressed == 0 ? CHUNK_START : 0) | CHUNK_END;
+    }
+
+    /* Add data to the current chunk, never more than what fits */
+    private void chunkUpdate(byte[] input, int offset, int length) {
+        while (length > 0) {
+            if (blockLength == BLOCK_LEN) {
+                load(block, 0, words, 16);
+                final int start = blocksCompressed == 0 ? CHUNK_START : 0;
+                compress(cv, words, chunkCounter, BLOCK_LEN, flags | start, cv);
+                blocksCompressed ++;
+                blockLength = 0;
+            }
+
+            final int take = Math.min(BLOCK_LEN - blockLength, length);
+            System.arraycopy(input, offset, block, blockLength, take);
+            blockLength += take;
+            offset += take;
+            length -= take;
+        }
+    }
+
+    /* Load the words of the last (zero-padded) block of the current chunk */
+    private void chunkOutput(int[] words) {
+        Arrays.fill(block, blockLength, BLOCK_LEN, (byte) 0);
+        load(block, 0, words, 16);
+    }
+
+    /* Push a chaining value, lazily merging completed subtrees */
+    private void pushChainingValue(int[] value, int offset, long counter) {
+        mergeStack(counter);
+        System.arraycopy(value, offset, stack, stackLength * 8, 8);
+        stackLength ++;
+    }
+
+    /* Merge the stack until it holds one value per bit in the chunk count */
+    private void mergeStack(long chunks) {
+        final int length = Long.bitCount(chunks);
+        while (stackLength > length) {
+            final int position = (stackLength - 2) * 8;
+            System.arraycopy(stack, position, words, 0, 16);
+            compress(key, words, 0, BLOCK_LEN, flags | PARENT, words);
+            System.arraycopy(words, 0, stack, position, 8);
+            stackLength --;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Compute the chaining values of the two halves of a subtree */
+    private static void subtrees(byte[] input, int offset, int length, long counter, int[] key, int flags, int[] pair) {
+        final int half = length / 2;
+        final long rightCounter = counter + half / CHUNK_LEN;
+        if (half >= PARALLEL_THRESHOLD) {
+            final Subtree left = new Subtree(input, offset, half, counter, key, flags, pair, 0);
+            final Subtree right = new Subtree(input, offset + half, half, rightCounter, key, flags, pair, 8);
+            right.fork();
+            left.invoke();
+            right.join();
+        } else {
+            final int[] words = new int[16];
+            subtree(input, offset, half, counter, key, flags, words, pair, 0);
+            subtree(input, offset + half, half, rightCounter, key, flags, words, pair, 8);
+        }
+    }
+
+    /* Compute the chaining value of a subtree, on this thread */
+    private static void subtree(byte[] input, int offset, int length, long counter, int[] key, int flags, int[] words, int[] output, int position) {
+        if (length == CHUNK_LEN) {
+            chunk(input, offset, counter, key, flags, words, words);
+            System.arraycopy(words, 0, output, position, 8);
+        } else {
+            final int half = length / 2;
+            final int[] children = new int[16];
+            subtree(input, offset, half, counter, key, flags, words, children, 0);
+            subtree(input, offset + half, half, counter + half / CHUNK_LEN, key, flags, words, children, 8);
+            compress(key, children, 0, BLOCK_LEN, flags | PARENT, children);
+            System.arraycopy(children, 0, output, position, 8);
+        }
+    }
+
+    /* Compute the chaining value of a whole chunk */
+    private static void chunk(byte[] input, int offset, long counter, int[] key, int flags, int[] words, int[] output) {
+        final int[] value = new int[8];
+        System.arraycopy(key, 0, value, 0, 8);
+        for (int block = 0; block < CHUNK_LEN / BLOCK_LEN; block ++) {
+            load(input, offset + block * BLOCK_LEN, words, 16);
+            final int start = block == 0 ? CHUNK_START : 0;
+            final int end = block == CHUNK_LEN / BLOCK_LEN - 1 ? CHUNK_END : 0;
+            compress(value, words, counter, BLOCK_LEN, flags | start | end, value);
+        }
+        System.arraycopy(value, 0, output, 0, 8);
+    }
+
+    /* Load little-endian words */
+    private static void load(byte[] input, int offset, int[] words, int count) {
+        for (int x = 0; x < count; x ++, offset += 4) {
+            words[x] = (input[offset] & 0xFF)
+                     | (input[offset + 1] & 0xFF) << 8
+                     | (input[offset + 2] & 0xFF) << 16
+                     | (input[offset + 3] & 0xFF) << 24;
+        }
+    }
+
+    /* The BLAKE3 compression function, writing the 8 word chaining value */
+    private static void compress(int[] cv, int[] m, long counter, int blockLength, int flags, int[] output) {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3];
+        int v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = blockLength, v15 = flags;
+
+        final int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+        final int m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        final int m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+        final int m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+
+        /* Seven rounds, unrolled with the message schedule applied in place */
+        /* Round 1 */
+        v0 += v4 + m0; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m1; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m2; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m3; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m4; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m5; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m6; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m7; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m8; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m9; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m10; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m11; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m12; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m13; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m14; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m15; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 2 */
+        v0 += v4 + m2; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m6; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m3; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m10; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m7; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m0; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m4; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m13; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m1; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m11; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m12; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m5; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m9; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m14; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m15; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m8; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 3 */
+        v0 += v4 + m3; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m4; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m10; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m12; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m13; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m2; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m7; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m14; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m6; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m5; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m9; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m0; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m11; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m15; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m8; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m1; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 4 */
+        v0 += v4 + m10; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m7; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m12; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m9; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m14; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m3; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m13; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m15; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m4; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m0; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m11; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m2; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m5; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m8; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m1; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m6; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 5 */
+        v0 += v4 + m12; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m13; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m9; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m11; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m15; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m10; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m14; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m8; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m7; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m2; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m5; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m3; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m0; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m1; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m6; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m4; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 6 */
+        v0 += v4 + m9; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m14; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m11; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m5; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m8; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m12; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m15; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m1; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m13; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m3; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m0; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m10; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m2; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m6; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m4; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m7; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        /* Round 7 */
+        v0 += v4 + m11; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m15; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m5; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m0; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m1; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m9; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m8; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m6; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m14; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m10; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m2; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m12; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m3; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m4; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m7; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m13; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        output[0] = v0 ^ v8;   output[1] = v1 ^ v9;
+        output[2] = v2 ^ v10;  output[3] = v3 ^ v11;
+        output[4] = v4 ^ v12;  output[5] = v5 ^ v13;
+        output[6] = v6 ^ v14;  output[7] = v7 ^ v15;
+    }
+
+    /* ====================================================================== */
+
+    /* Compute the chaining value of a subtree in the fork-join pool */
+    private static final class Subtree extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] input;
+        private final int offset;
+        private final int length;
+        private final long counter;
+        private final int[] key;
+        private final int flags;
+        private final int[] output;
+        private final int position;
+
+        private Subtree(byte[] input, int offset, int length, long counter, int[] key, int flags, int[] output, int position) {
+            this.input = input;
+            this.offset = offset;
+            this.length = length;
+            this.counter = counter;
+            this.key = key;
+            this.flags = flags;
+            this.output = output;
+            this.position = position;
+        }
+
+        @Override
+        protected void compute() {
+            if (length == CHUNK_LEN) {
+                final int[] words = new int[16];
+                subtree(input, offset, length, counter, key, flags, words, output, position);
+            } else {
+                final int[] children = new int[16];
+                subtrees(input, offset, length, counter, key, flags, children);
+                compress(key, children, 0, BLOCK_LEN, flags | PARENT, children);
+                System.arraycopy(children, 0, output, position, 8);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A range of items processed in the {@linkplain ForkJoinPool#commonPool()
+ * common fork-join pool}, recursively split in halves until each task
+ * processes no more than a batch of items.
+ * <p>
+ * Each item has its output at a fixed <em>stride</em> from the previous
+ * one's, so the position of the first item of each sub-range is known
+ * before processing.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class Batch extends RecursiveAction {
+
+    /* The minimum number of items processed by each parallel task */
+    private static final int MINIMUM = 256;
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The processor of a contiguous range of items.
+     */
+    interface Range {
+
+        /**
+         * Process the items from <code>from</code> (inclusive) to
+         * <code>to</code> (exclusive), writing the output of the first
+         * one at the specified position.
+         */
+        void process(int from, int to, int position);
+
+    }
+
+    private final int from;
+    private final int to;
+    private final int batch;
+    private final int offset;
+    private final int stride;
+    private final Range range;
+
+    private Batch(int from, int to, int batch, int offset, int stride, Range range) {
+        this.from = from;
+        this.to = to;
+        this.batch = batch;
+        this.offset = offset;
+        this.stride = stride;
+        this.range = range;
+    }
+
+    /**
+     * Process the specified number of items, whose outputs are written
+     * one after the other starting at the given offset, in parallel if
+     * there are enough of them or in the calling thread otherwise.
+     */
+    static void process(int size, int offset, int stride, Range range) {
+        final int tasks = Math.min(ForkJoinPool.commonPool().getParallelism() * 4, size / MINIMUM);
+        if (tasks < 2) {
+            range.process(0, size, offset);
+        } else {
+            new Batch(0, size, (size + tasks - 1) / tasks, offset, stride, range).invoke();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > batch) {
+            final int middle = (from + to) >>> 1;
+            final Batch right = new Batch(middle, to, batch, offset + (middle - from) * stride, stride, range);
+            right.fork();
+            new Batch(from, middle, batch, offset, stride, range).invoke();
+            right.join();
+        } else {
+            range.process(from, to, offset);
+        }
+    }
+}
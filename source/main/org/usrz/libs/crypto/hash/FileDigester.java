@@ -0,0 +1,218 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A digest engine for files and directory trees.
+ * <p>
+ * Large files are digested through {@linkplain FileChannel#map(MapMode,
+ * long, long) memory-mapped} windows, avoiding copies through the Java
+ * heap, while small ones (for which mapping is more costly than reading)
+ * are simply read.
+ * <p>
+ * The files of a directory tree are digested concurrently on a bounded
+ * pool of threads (created for, and shut down after each call) producing
+ * a sorted {@link Manifest}. Given the {@link Manifest} of a previous run,
+ * files whose size and last modification time did not change are not
+ * digested again.
+ * <p>
+ * Only regular files are included in manifests: symbolic links are not
+ * followed, and directories are implied by the paths of their files.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class FileDigester {
+
+    /* Files smaller than this are read, not mapped */
+    private static final int MAP_THRESHOLD = 256 * 1024;
+    /* The size of each mapped window */
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+
+    /* Our hash, and the number of files digested concurrently */
+    private final Hash hash;
+    private final int threads;
+
+    /**
+     * Create a new {@link FileDigester} digesting as many files
+     * concurrently as the number of available processors.
+     */
+    public FileDigester(Hash hash) {
+        this(hash, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new {@link FileDigester} digesting at most the specified
+     * number of files concurrently.
+     */
+    public FileDigester(Hash hash, int threads) {
+        this.hash = Check.notNull(hash, "Null hash");
+        if (threads < 1) throw new IllegalArgumentException("Invalid number of threads " + threads);
+        this.threads = threads;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} used by this {@link FileDigester}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Digest the contents of the specified file.
+     */
+    public byte[] digest(Path file)
+    throws IOException {
+        Check.notNull(file, "Null file");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return digest(channel, channel.size());
+        }
+    }
+
+    /**
+     * Digest all regular files in the specified directory tree, returning
+     * a sorted {@link Manifest}.
+     */
+    public Manifest manifest(Path root)
+    throws IOException {
+        return manifest(root, null);
+    }
+
+    /**
+     * Digest all regular files in the specified directory tree, re-using
+     * the digests from the specified {@link Manifest} (if not <b>null</b>)
+     * for files whose size and last modification time did not change.
+     * <p>
+     * To verify a tree against a previous manifest, simply check the
+     * {@linkplain Manifest#differences(Manifest) differences} between it
+     * and the returned one.
+     */
+    public Manifest manifest(Path root, Manifest previous)
+    throws IOException {
+        Check.notNull(root, "Null root");
+        if ((previous != null) && (previous.getHash() != hash))
+            throw new IllegalArgumentException("Manifest hash " + previous.getHash() + " does not match " + hash);
+
+        /* Walk the tree, collecting unchanged entries and files to digest */
+        final List<Manifest.Entry> entries = new ArrayList<>();
+        final List<Callable<Manifest.Entry>> tasks = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (! attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+
+                final String path = path(root, file);
+                final long size = attributes.size();
+                final long lastModified = attributes.lastModifiedTime().toMillis();
+
+                final Manifest.Entry entry = previous == null ? null : previous.getEntry(path);
+                if ((entry != null) && entry.sameAttributes(size, lastModified)) {
+                    entries.add(entry);
+                } else {
+                    /* Record the size of what was actually digested */
+                    tasks.add(() -> {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            final long length = channel.size();
+                            return new Manifest.Entry(path, length, lastModified, digest(channel, length));
+                        }
+                    });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        /* Digest all new or changed files concurrently */
+        if (! tasks.isEmpty()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+            try {
+                for (Future<Manifest.Entry> future: executor.invokeAll(tasks)) {
+                    entries.add(future.get());
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new InterruptedIOException("Interrupted digesting files").initCause(exception);
+            } catch (ExecutionException exception) {
+                final Throwable cause = exception.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException("Error digesting files", cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        return new Manifest(hash, entries);
+    }
+
+    /* ====================================================================== */
+
+    /* Digest the first "size" bytes of a channel, mapping large files */
+    private byte[] digest(FileChannel channel, long size)
+    throws IOException {
+        try (MD digest = hash.digest()) {
+            if (size < MAP_THRESHOLD) {
+                final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+            } else {
+                for (long position = 0; position < size; position += MAP_SIZE) {
+                    final long length = Math.min(MAP_SIZE, size - position);
+                    digest.update(channel.map(MapMode.READ_ONLY, position, length));
+                }
+            }
+            return digest.finish();
+        }
+    }
+
+    /* The relative path of a file, separated by forward slashes */
+    private static String path(Path root, Path file) {
+        if (root.equals(file)) return file.getFileName().toString();
+        final StringBuilder builder = new StringBuilder();
+        for (Path element: root.relativize(file)) {
+            if (builder.length() > 0) builder.append('/');
+            builder.append(element.toString());
+        }
+        return builder.toString();
+    }
+
+}
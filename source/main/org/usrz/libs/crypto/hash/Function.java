@@ -15,13 +15,18 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.hash;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.usrz.libs.utils.Check;
+
 /**
  * A component capable of producing a hash for a <code>byte[]</code>.
  *
  * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
  * @param <F> The concrete type of {@link Function} implemented.
  */
-public interface Function<F extends Function<F>> {
+public interface Function<F extends Function<F>> extends AutoCloseable {
 
     /**
      * Return the {@link Hash} associated with this instance.
@@ -54,6 +59,63 @@ public interface Function<F extends Function<F>> {
      */
     public F update(byte[] input, int offset, int length);
 
+    /**
+     * Updates the hash value using the remaining bytes in the specified
+     * {@link ByteBuffer}, whose position will be advanced to its limit.
+     */
+    @SuppressWarnings("unchecked")
+    public default F update(ByteBuffer input) {
+        if (input.hasArray()) {
+            final int position = input.position();
+            final int length = input.remaining();
+            update(input.array(), input.arrayOffset() + position, length);
+            input.position(position + length);
+            return (F) this;
+        }
+
+        /* Direct or read-only buffers: copy through a small array */
+        final byte[] buffer = new byte[Math.min(input.remaining(), 4096)];
+        while (input.hasRemaining()) {
+            final int length = Math.min(input.remaining(), buffer.length);
+            input.get(buffer, 0, length);
+            update(buffer, 0, length);
+        }
+        return (F) this;
+    }
+
+    /**
+     * Updates the hash value using the specified <code>char[]</code>, encoded
+     * with the given {@link Charset}.
+     * <p>
+     * Characters are encoded through a small internal buffer which is zeroed
+     * afterwards, without ever creating a full copy of the encoded input.
+     */
+    public default F update(char[] input, Charset charset) {
+        return update(input, 0, input.length, charset);
+    }
+
+    /**
+     * Updates the hash value using a part of the specified <code>char[]</code>,
+     * encoded with the given {@link Charset}.
+     *
+     * @see #update(char[], Charset)
+     */
+    @SuppressWarnings("unchecked")
+    public default F update(char[] input, int offset, int length, Charset charset) {
+        return FunctionEncoder.update((F) this, input, offset, length, charset);
+    }
+
+    /**
+     * Updates the hash value using the specified {@link CharSequence},
+     * encoded with the given {@link Charset}.
+     *
+     * @see #update(char[], Charset)
+     */
+    @SuppressWarnings("unchecked")
+    public default F update(CharSequence input, Charset charset) {
+        return FunctionEncoder.update((F) this, input, charset);
+    }
+
     /**
      * Compute the final hash value and return it as a new <code>byte[]</code>.
      * <p>
@@ -76,10 +138,106 @@ public interface Function<F extends Function<F>> {
     public void finish(byte[] output, int offset)
     throws IllegalArgumentException;
 
+    /**
+     * Compute the final hash value and write it in the specified
+     * {@link ByteBuffer}, advancing its position by the
+     * {@linkplain #getHashLength() hash length}.
+     * <p>
+     * This instance is {@linkplain #reset() reset} after calling this method.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public default void finish(ByteBuffer output)
+    throws IllegalArgumentException {
+        final int length = getHashLength();
+        if (output.remaining() < length)
+            throw new IllegalArgumentException("Buffer too short");
+
+        if (output.hasArray()) {
+            final int position = output.position();
+            finish(output.array(), output.arrayOffset() + position);
+            output.position(position + length);
+        } else {
+            output.put(finish());
+        }
+    }
+
+    /**
+     * Compute the final hash value and compare it, in constant time, with
+     * the specified <code>byte[]</code>, which must be exactly as long as
+     * the {@linkplain #getHashLength() hash length}.
+     * <p>
+     * The hash is computed in a reused internal buffer, zeroed afterwards,
+     * and this instance is {@linkplain #reset() reset} after calling this
+     * method.
+     */
+    public default boolean verify(byte[] expected) {
+        final boolean length = Check.notNull(expected, "Null expected hash").length == getHashLength();
+        return verify(expected, 0) & length;
+    }
+
+    /**
+     * Compute the final hash value and compare it, in constant time, with
+     * the {@linkplain #getHashLength() hash length} bytes of the specified
+     * <code>byte[]</code> starting at the given offset.
+     * <p>
+     * If fewer bytes are available the hash is still computed (and this
+     * instance {@linkplain #reset() reset}) but <b>false</b> is returned.
+     *
+     * @see #verify(byte[])
+     */
+    public default boolean verify(byte[] expected, int offset) {
+        return FunctionVerifier.verify(this, expected, offset);
+    }
+
     /**
      * Reset this instance to its original construction state, discarding all
      * the data it was {@linkplain #update(byte[], int, int) updated} with.
      */
     public F reset();
 
+    /**
+     * Return a new {@link Function} whose state is an independent copy of
+     * the current state of this instance.
+     * <p>
+     * Data already {@linkplain #update(byte[], int, int) fed} to this
+     * instance is not processed again by the returned copy, which is not
+     * pooled, and can be used (and {@linkplain #finish() finished}) without
+     * affecting this instance.
+     *
+     * @throws UnsupportedOperationException If the underlying
+     *         {@link java.security.MessageDigest MessageDigest} or
+     *         {@link javax.crypto.Mac Mac} can not be cloned.
+     */
+    public F fork()
+    throws UnsupportedOperationException;
+
+    /**
+     * Return an immutable {@link Snapshot} of the current state of this
+     * instance, from which any number of {@linkplain Snapshot#fork() forks}
+     * can be created.
+     *
+     * @see #fork()
+     */
+    public default Snapshot<F> snapshot()
+    throws UnsupportedOperationException {
+        return new Snapshot<>(fork());
+    }
+
+    /**
+     * Return the underlying {@link java.security.MessageDigest MessageDigest}
+     * or {@link javax.crypto.Mac Mac} to the pool it was borrowed from.
+     * <p>
+     * This instance <b>must not</b> be used after being closed, and will
+     * throw an {@link IllegalStateException} if it is. Closing is
+     * optional with the default (<code>ThreadLocal</code>) pooling strategy,
+     * but required for instances to be reused when the shared pool is
+     * selected with the <code>org.usrz.libs.crypto.hash.pooling</code>
+     * system property.
+     */
+    @Override
+    public default void close() {
+        /* Nothing to do by default */
+    }
+
 }
@@ -0,0 +1,119 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * Stream-encode characters into {@link Function}s through a small
+ * per-thread buffer, which is zeroed after each use.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class FunctionEncoder {
+
+    /* The size of our (per-thread) encoding buffer */
+    private static final int BUFFER_SIZE = 256;
+
+    /* Our per-thread encoders */
+    private static final ThreadLocal<FunctionEncoder> encoders = new ThreadLocal<FunctionEncoder>() {
+        @Override
+        protected FunctionEncoder initialValue() {
+            return new FunctionEncoder();
+        }
+    };
+
+    /* The buffer where characters are encoded */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer bytes = ByteBuffer.wrap(buffer);
+    /* The last encoder we used, and its charset */
+    private CharsetEncoder encoder;
+    private Charset charset;
+
+    private FunctionEncoder() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Update the specified {@link Function} with the given characters,
+     * encoded with the specified {@link Charset}.
+     */
+    static <F extends Function<F>> F update(F function, CharSequence input, Charset charset) {
+        Check.notNull(input, "Null input");
+        Check.notNull(charset, "Null charset");
+        return encoders.get().encode(function, CharBuffer.wrap(input), charset);
+    }
+
+    /**
+     * Update the specified {@link Function} with the given characters,
+     * encoded with the specified {@link Charset}.
+     */
+    static <F extends Function<F>> F update(F function, char[] input, int offset, int length, Charset charset) {
+        Check.notNull(input, "Null input");
+        Check.notNull(charset, "Null charset");
+        return encoders.get().encode(function, CharBuffer.wrap(input, offset, length), charset);
+    }
+
+    /* ====================================================================== */
+
+    private <F extends Function<F>> F encode(F function, CharBuffer chars, Charset charset) {
+
+        /* Reuse our last encoder if the charset is the same */
+        if (charset.equals(this.charset)) {
+            encoder.reset();
+        } else {
+            encoder = charset.newEncoder();
+            this.charset = charset;
+        }
+
+        try {
+            /* Encode all our characters, one buffer-full at a time */
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, bytes, true);
+                if (result.isError())
+                    throw new IllegalArgumentException("Error encoding " + charset.name() + ": " + result);
+                drain(function);
+            } while (result.isOverflow());
+
+            /* Flush whatever might be left in the encoder */
+            do {
+                result = encoder.flush(bytes);
+                drain(function);
+            } while (result.isOverflow());
+
+            return function;
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+            bytes.clear();
+        }
+    }
+
+    private void drain(Function<?> function) {
+        if (bytes.position() > 0) function.update(buffer, 0, bytes.position());
+        bytes.clear();
+    }
+
+}
@@ -0,0 +1,70 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.crypto.utils.CryptoUtils.isEqual;
+
+import java.util.Arrays;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * Verify the hashes computed by {@link Function}s through a small
+ * per-thread buffer, which is zeroed after each use.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class FunctionVerifier {
+
+    /* The initial size of our (per-thread) buffer, fits all our hashes */
+    private static final int BUFFER_SIZE = 64;
+
+    /* Our per-thread buffers */
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private FunctionVerifier() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Finish the specified {@link Function} and compare its hash, in
+     * constant time, with the bytes of the given <code>byte[]</code>
+     * starting at the specified offset.
+     */
+    static boolean verify(Function<?> function, byte[] expected, int offset) {
+        Check.notNull(expected, "Null expected hash");
+
+        final int length = function.getHashLength();
+        byte[] buffer = buffers.get();
+        if (buffer.length < length) buffers.set(buffer = new byte[length]);
+
+        try {
+            function.finish(buffer, 0);
+            if ((offset < 0) || (expected.length - offset < length)) return false;
+            return isEqual(buffer, 0, expected, offset, length);
+        } finally {
+            Arrays.fill(buffer, 0, length, (byte) 0);
+        }
+    }
+
+}
@@ -15,6 +15,10 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.hash;
 
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.Key;
+
 import javax.crypto.Mac;
 import javax.crypto.ShortBufferException;
 
@@ -31,16 +35,39 @@ public class HMAC implements Function<HMAC> {
 
     /* The {@link Hash} wrapped by this instance. */
     private final Hash hash;
-    /* The {@link Mac} wrapped by this instance. */
-    private final Mac mac;
+    /* The {@link Mac} wrapped by this instance, null once closed. */
+    private Mac mac;
+    /* The pool our {@link Mac} was borrowed from, if any. */
+    private Pool<Mac> pool;
+    /* Our own resumable implementation wrapped by the {@link Mac}, if any,
+     * and the key it was initialized with (needed to fork it) */
+    private final HMACSpi spi;
+    private final Key key;
 
     /**
      * Create a new {@link HMAC} instance associated with the given {@link Hash}
      * and {@link Mac}.
      */
     protected HMAC(Hash hash, Mac mac) {
+        this(hash, mac, null);
+    }
+
+    /* Create a new instance returning its Mac to a pool when closed */
+    HMAC(Hash hash, Mac mac, Pool<Mac> pool) {
+        this(hash, mac, pool, null, null);
+    }
+
+    /* Create a new resumable instance wrapping our own implementation */
+    HMAC(Hash hash, Mac mac, HMACSpi spi, Key key) {
+        this(hash, mac, null, Check.notNull(spi, "Null spi"), Check.notNull(key, "Null key"));
+    }
+
+    private HMAC(Hash hash, Mac mac, Pool<Mac> pool, HMACSpi spi, Key key) {
         this.hash = Check.notNull(hash, "Null hash");
         this.mac = Check.notNull(mac, "Null mac");
+        this.pool = pool;
+        this.spi = spi;
+        this.key = key;
     }
 
     /* ====================================================================== */
@@ -54,27 +81,86 @@ public class HMAC implements Function<HMAC> {
      * Return the underlying {@link Mac} associated with this instance.
      */
     public final Mac getMac() {
+        return mac();
+    }
+
+    /* Return our Mac, failing if this instance was closed */
+    private Mac mac() {
+        final Mac mac = this.mac;
+        if (mac == null) throw new IllegalStateException("Mac closed");
         return mac;
     }
 
     /* ====================================================================== */
 
     @Override
-    public final HMAC reset() {
+    public void close() {
+        final Mac mac = this.mac;
+        if (mac == null) return;
+        this.mac = null;
+
+        final Pool<Mac> pool = this.pool;
+        if (pool == null) return;
+        this.pool = null;
         mac.reset();
+        pool.release(mac);
+    }
+
+    @Override
+    public HMAC fork() {
+        final Mac mac = mac();
+        try {
+            if (spi == null) return new HMAC(hash, (Mac) mac.clone());
+
+            /* Wrap a new copy of our own implementation, keeping it exportable */
+            final HMACSpi copy = (HMACSpi) spi.clone();
+            final Mac forked = HMACSpi.newMac(mac.getAlgorithm(), copy);
+            forked.init(key);
+            copy.copyState(spi);
+            return new HMAC(hash, forked, copy, key);
+        } catch (CloneNotSupportedException exception) {
+            throw new UnsupportedOperationException("Mac not cloneable", exception);
+        } catch (InvalidKeyException exception) {
+            throw new IllegalStateException("Unable to initialize forked HMAC", exception);
+        }
+    }
+
+    /**
+     * Export the current state of this {@link HMAC} as a {@link Midstate},
+     * from which hashing can be {@linkplain Hash#resumableHmac(byte[],
+     * Midstate) resumed} later with the same key.
+     *
+     * @throws UnsupportedOperationException If this instance was not
+     *         created {@linkplain Hash#resumableHmac(byte[]) resumable}.
+     */
+    public Midstate exportState() {
+        if (spi == null) throw new UnsupportedOperationException("Mac state not exportable");
+        mac(); // fail if closed
+        return new Midstate(hash, true, spi.getLength(), spi.getState());
+    }
+
+    @Override
+    public final HMAC reset() {
+        mac().reset();
         return this;
     }
 
     @Override
     public HMAC update(byte[] input, int offset, int length) {
-        mac.update(input, offset, length);
+        mac().update(input, offset, length);
+        return this;
+    }
+
+    @Override
+    public HMAC update(ByteBuffer input) {
+        mac().update(input);
         return this;
     }
 
     @Override
     public void finish(byte[] output, int offset) {
         try {
-            mac.doFinal(output, offset);
+            mac().doFinal(output, offset);
         } catch (ShortBufferException exception) {
             throw new IllegalArgumentException("Buffer too short", exception);
         }
@@ -0,0 +1,94 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import javax.crypto.Mac;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A pre-initialized key for {@linkplain HMAC hash-based message
+ * authentication codes}.
+ * <p>
+ * Every call to {@link Hash#hmac(byte[])} initializes a {@link Mac} with
+ * the given key, re-computing the inner and outer padded key state. For
+ * keys used over and over again (like the ones signing tokens), instances
+ * of this class keep a {@link Mac} <em>prototype</em> initialized once
+ * with the key, cloning it into pooled instances which are simply
+ * {@linkplain Mac#reset() reset} when {@linkplain #hmac() requested}.
+ * <p>
+ * Pooled instances live as long as this instance, therefore instances of
+ * this class should be long-lived and shared, rather than being created
+ * on a per-request basis.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class HMACKey {
+
+    /* The hash of this key */
+    private final Hash hash;
+    /* Our pre-initialized Mac prototype */
+    private final Mac prototype;
+
+    /* Keep copies of our prototype around in a Pool. */
+    private final Pool<Mac> macPool = Pool.create(this::copy);
+
+    /**
+     * Create a new {@link HMACKey} for the specified {@link Hash} and key.
+     *
+     * @see Hash#hmacKey(byte[])
+     */
+    HMACKey(Hash hash, byte[] key) {
+        this.hash = Check.notNull(hash, "Null hash");
+        prototype = hash.newMac(key);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} associated with this instance.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return an {@link HMAC} {@linkplain Function function} already
+     * initialized with this key.
+     * <p>
+     * The returned instance should be {@linkplain HMAC#close() closed} (for
+     * example with a <code>try</code>-with-resources statement) once done.
+     */
+    public HMAC hmac() {
+        final Mac mac = macPool.borrow();
+        mac.reset();
+        return new HMAC(hash, mac, macPool);
+    }
+
+    /* ====================================================================== */
+
+    /* Clone our prototype */
+    private Mac copy() {
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException exception) {
+            final String name = prototype.getClass().getName();
+            final Error error = new InternalError(name + " not cloneable");
+            throw (Error) error.initCause(exception);
+        }
+    }
+
+}
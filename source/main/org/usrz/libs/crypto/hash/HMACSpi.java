@@ -0,0 +1,238 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A generic <a href="http://tools.ietf.org/html/rfc2104">RFC 2104</a>
+ * HMAC implementation over any {@link MessageDigest}, for those hashes
+ * whose HMAC is not offered by any installed provider, and for HMACs over
+ * {@link ResumableDigest}s whose inner state can be exported and imported.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class HMACSpi extends MacSpi implements Cloneable {
+
+    /* The RFC 2104 inner and outer pads */
+    private static final byte IPAD = 0x36;
+    private static final byte OPAD = 0x5c;
+
+    /* The length of the blocks processed by the digest */
+    private final int blockLength;
+    /* Our inner and outer digests */
+    private MessageDigest inner;
+    private MessageDigest outer;
+    /* The key XORed with the inner and outer pads */
+    private byte[] innerPad;
+    private byte[] outerPad;
+    /* Whether the inner digest still needs its pad */
+    private boolean first = true;
+
+    /* Create a new instance */
+    private HMACSpi(MessageDigest digest, int blockLength)
+    throws CloneNotSupportedException {
+        this.blockLength = blockLength;
+        inner = Check.notNull(digest, "Null digest");
+        outer = (MessageDigest) digest.clone();
+    }
+
+    /**
+     * Create a new {@link HMACSpi} computing HMACs using the specified
+     * {@link MessageDigest}, operating on blocks of the given length.
+     */
+    static HMACSpi create(MessageDigest digest, int blockLength) {
+        try {
+            return new HMACSpi(digest, blockLength);
+        } catch (CloneNotSupportedException exception) {
+            final String name = digest.getClass().getName();
+            final Error error = new InternalError(name + " not cloneable");
+            throw (Error) error.initCause(exception);
+        }
+    }
+
+    /**
+     * Create a new {@link Mac} computing HMACs using the specified
+     * {@link MessageDigest}, operating on blocks of the given length.
+     */
+    static Mac newMac(String algorithm, MessageDigest digest, int blockLength) {
+        return newMac(algorithm, create(digest, blockLength));
+    }
+
+    /**
+     * Create a new {@link Mac} wrapping the specified {@link HMACSpi}.
+     */
+    static Mac newMac(String algorithm, HMACSpi spi) {
+        return new Mac(spi, null, algorithm) {
+            /* Mac's constructor is protected */
+        };
+    }
+
+    /* Zero-pad the (at most block-long) secret and XOR it with a pad */
+    private static byte[] pad(byte[] secret, int blockLength, byte pad) {
+        final byte[] padded = new byte[blockLength];
+        for (int x = 0; x < blockLength; x ++) {
+            padded[x] = (byte) ((x < secret.length ? secret[x] : 0) ^ pad);
+        }
+        return padded;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected int engineGetMacLength() {
+        return inner.getDigestLength();
+    }
+
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params)
+    throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (params != null) throw new InvalidAlgorithmParameterException("HMAC does not use parameters");
+        if (key == null) throw new InvalidKeyException("Null key");
+
+        byte[] secret = key.getEncoded();
+        if (secret == null) throw new InvalidKeyException("Missing key data");
+
+        /* Keys longer than a block are hashed */
+        if (secret.length > blockLength) {
+            final byte[] hashed = inner.digest(secret);
+            Arrays.fill(secret, (byte) 0);
+            secret = hashed;
+        }
+
+        innerPad = pad(secret, blockLength, IPAD);
+        outerPad = pad(secret, blockLength, OPAD);
+        Arrays.fill(secret, (byte) 0);
+
+        inner.reset();
+        first = true;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        if (first) pad();
+        inner.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        if (first) pad();
+        inner.update(input, offset, length);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (first) pad();
+        inner.update(input);
+    }
+
+    @Override
+    protected byte[] engineDoFinal() {
+        if (first) pad();
+        final byte[] hash = inner.digest();
+        outer.update(outerPad);
+        outer.update(hash);
+        first = true;
+        return outer.digest();
+    }
+
+    @Override
+    protected void engineReset() {
+        if (! first) {
+            inner.reset();
+            first = true;
+        }
+    }
+
+    @Override
+    public Object clone()
+    throws CloneNotSupportedException {
+        final HMACSpi clone = (HMACSpi) super.clone();
+        clone.inner = (MessageDigest) inner.clone();
+        clone.outer = (MessageDigest) outer.clone();
+        return clone;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the number of bytes of data hashed so far by this (keyed)
+     * HMAC over a {@link ResumableDigest}, excluding the padded key.
+     */
+    long getLength() {
+        return resumable().getLength() - blockLength;
+    }
+
+    /**
+     * Return the current inner state of this (keyed) HMAC over a
+     * {@link ResumableDigest}.
+     */
+    byte[] getState() {
+        return resumable().getState();
+    }
+
+    /**
+     * Continue hashing from the specified inner state of a (keyed) HMAC over
+     * a {@link ResumableDigest}, after the given number of bytes of data.
+     */
+    void setState(byte[] state, long length) {
+        resumable().setState(state, length + blockLength);
+    }
+
+    /**
+     * Continue hashing from the current inner state of the specified
+     * {@link HMACSpi}, which must have been keyed with the same key.
+     */
+    void copyState(HMACSpi spi) {
+        try {
+            inner = (MessageDigest) spi.inner.clone();
+            first = spi.first;
+        } catch (CloneNotSupportedException exception) {
+            final String name = spi.inner.getClass().getName();
+            final Error error = new InternalError(name + " not cloneable");
+            throw (Error) error.initCause(exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Start the inner digest with its pad */
+    private void pad() {
+        inner.update(innerPad);
+        first = false;
+    }
+
+    /* Return our keyed inner digest, which must be resumable */
+    private ResumableDigest resumable() {
+        if (innerPad == null) throw new IllegalStateException("HMAC not initialized");
+        if (! (inner instanceof ResumableDigest))
+            throw new UnsupportedOperationException("Digest " + inner.getAlgorithm() + " not resumable");
+        if (first) pad();
+        return (ResumableDigest) inner;
+    }
+
+}
@@ -16,12 +16,17 @@
 package org.usrz.libs.crypto.hash;
 
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.usrz.libs.utils.Check;
+
 /**
  * An enumeration of all supported hashing algorithms.
  * <p>
@@ -31,8 +36,25 @@ import javax.crypto.spec.SecretKeySpec;
  * <p>
  * This enumeration offers a convenient way to instantiate {@link Mac}s and
  * {@link MessageDigest}s associated with well known hashing algorithms,
- * relying on cloning instances and pooling generated instances using a
- * {@link ThreadLocal}, and support empty keys for {@link Mac}s.
+ * relying on cloning instances and pooling generated instances (by default
+ * in a {@link ThreadLocal}), and support empty keys for {@link Mac}s.
+ * The shared instances of each algorithm are created (and checked) only
+ * when first used, so that referencing this class is cheap.
+ * <p>
+ * Algorithms not offered by the installed providers (<em>SHA-3</em> on
+ * Java 8, <em>BLAKE2b</em> and <em>BLAKE3</em>) are backed by BouncyCastle
+ * or by our own implementations, and their {@link Mac}s (when missing) by a
+ * generic RFC 2104 HMAC.
+ * <p>
+ * The providers of {@link MessageDigest}s and {@link Mac}s can be chosen
+ * with the <code>org.usrz.libs.crypto.hash.provider</code> system property
+ * (for all hashes) or the same property followed by a dot and the name of
+ * a {@link Hash} (for example <code>...provider.SHA256</code>), set to
+ * <code>auto</code> (select the fastest implementation by benchmark),
+ * to a comma separated list of preferred provider names, or to
+ * <code>fixed:</code> followed by a list of the only providers allowed.
+ * The selected providers are exposed by {@link #getDigestProvider()} and
+ * {@link #getMacProvider()}.
  * <p>
  * <b>NOTE:</b> The current JSSE included with Java 7 does not support the SHA2
  * algorithm with 224-bits hash values, this feature will be added in
@@ -70,89 +92,66 @@ public enum Hash {
      * The <a href="http://en.wikipedia.org/wiki/SHA-2">SHA-2</a> algorithm
      * algorithm producing <b>512-bits</b> hash values.
      */
-    SHA512 ("SHA-512", "HmacSHA512");
+    SHA512 ("SHA-512", "HmacSHA512"),
 
-    /* ====================================================================== */
+    /**
+     * The <a href="http://en.wikipedia.org/wiki/SHA-3">SHA-3</a> hashing
+     * algorithm producing <b>256-bits</b> hash values.
+     */
+    SHA3_256 ("SHA3-256", "HmacSHA3-256"),
 
-    /* An empty secret key for Mac initialization */
-    private final SecretKeySpec emptySecretKeySpec;
+    /**
+     * The <a href="http://en.wikipedia.org/wiki/SHA-3">SHA-3</a> hashing
+     * algorithm producing <b>512-bits</b> hash values.
+     */
+    SHA3_512 ("SHA3-512", "HmacSHA3-512"),
 
-    /* A shared Mac instance from which to clone from. */
-    private final Mac sharedMac;
+    /**
+     * The <a href="https://blake2.net/">BLAKE2b</a> hashing algorithm
+     * producing <b>512-bits</b> hash values.
+     */
+    BLAKE2B ("BLAKE2B-512", "HmacBLAKE2B-512"),
 
-    /* A shared MessageDigest instance from which to clone from. */
-    private final MessageDigest sharedDigest;
+    /**
+     * The <a href="https://github.com/BLAKE3-team/BLAKE3">BLAKE3</a> hashing
+     * algorithm producing <b>256-bits</b> hash values.
+     *
+     * @see org.usrz.libs.crypto.hash.BLAKE3
+     */
+    BLAKE3 ("BLAKE3", "HmacBLAKE3");
 
-    /* The length of hashes produced by this algorithm. */
-    private final int length;
+    /* ====================================================================== */
 
-    /* Keep copies of Mac instances around in a ThreadLocal. */
-    private final ThreadLocal<Mac> macPool = new ThreadLocal<Mac>() {
-        @Override
-        public Mac initialValue() {
-            try {
-                return (Mac) sharedMac.clone();
-            } catch (CloneNotSupportedException exception) {
-                final String name = sharedMac.getClass().getName();
-                final Error error = new InternalError(name + " not cloneable");
-                throw (Error) error.initCause(exception);
-            }
-        }
-    };
+    /* The names of our MessageDigest and Mac algorithms */
+    private final String digestAlgorithm;
+    private final String macAlgorithm;
 
-    /* Keep copies of MessageDigest instances around in a ThreadLocal. */
-    private final ThreadLocal<MessageDigest> digestPool = new ThreadLocal<MessageDigest>() {
-        @Override
-        public MessageDigest initialValue() {
-            try {
-                return (MessageDigest) sharedDigest.clone();
-            } catch (CloneNotSupportedException exception) {
-                final String name = sharedDigest.getClass().getName();
-                final Error error = new InternalError(name + " not cloneable");
-                throw (Error) error.initCause(exception);
-            }
-        }
-    };
+    /* Our shared instances, lazily created on first use */
+    private volatile Engine engine;
 
-    /* ====================================================================== */
+    /* Keep copies of Mac instances around in a Pool. */
+    private final Pool<Mac> macPool = Pool.create(() -> engine().cloneMac());
 
-    /* Create a new PBKDF2Algorithm instance with the given algorithm name. */
-    private Hash(final String digestAlgorithm, String macAlgorithm) {
+    /* Keep copies of MessageDigest instances around in a Pool. */
+    private final Pool<MessageDigest> digestPool = Pool.create(() -> engine().cloneDigest());
 
-        /* Create a shared Mac instance */
-        try {
-            sharedDigest = MessageDigest.getInstance(digestAlgorithm);
-            sharedMac = Mac.getInstance(macAlgorithm);
-            length = sharedDigest.getDigestLength();
-        } catch (NoSuchAlgorithmException exception) {
-            final Error error = new InternalError("Invalid algorithm " + macAlgorithm);
-            throw (Error) error.initCause(exception);
-        }
+    /* ====================================================================== */
 
-        /* Create an empty secret key spec instance for this algorithm */
-        emptySecretKeySpec = new SecretKeySpec("foo".getBytes(), sharedMac.getAlgorithm()) {
+    /* Create a new Hash instance with the given algorithm names. */
+    private Hash(final String digestAlgorithm, String macAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+        this.macAlgorithm = macAlgorithm;
+    }
 
-            private final byte[] empty = new byte[0];
+    /* Return our engine, creating and checking it on first use */
+    private Engine engine() {
+        final Engine engine = this.engine;
+        if (engine != null) return engine;
 
-            @Override
-            public byte[] getEncoded() {
-                return empty;
-            }
-        };
-
-        /* Check sizes of digest and mac */
-        if (sharedDigest.getDigestLength() != sharedMac.getMacLength()) {
-            final String digestClass = sharedDigest.getClass().getName();
-            final String macClass = sharedMac.getClass().getName();
-            throw new InternalError("Length mismatch between " + digestClass + "["
-                        + digestAlgorithm + "] (" + sharedDigest.getDigestLength()
-                        + ") and " + macClass + "[" + macAlgorithm + "] ("
-                        + sharedMac.getMacLength() + ")");
+        synchronized (this) {
+            if (this.engine == null) this.engine = new Engine(this, digestAlgorithm, macAlgorithm);
+            return this.engine;
         }
-
-        /* Chech proper functionality */
-        digest().finish();
-        hmac(null).finish();
     }
 
     /* ====================================================================== */
@@ -161,15 +160,52 @@ public enum Hash {
      * Return the length (in bytes) of the digest or mac produced by this.
      */
     public int getHashLength() {
-        return length;
+        return engine().length;
+    }
+
+    /**
+     * Return the name of the {@link Mac} algorithm associated with this.
+     */
+    public String getMacAlgorithm() {
+        return engine().mac.getAlgorithm();
+    }
+
+    /* Return the block length of this hash, as used by HMACs */
+    int getBlockLength() {
+        return Algorithms.getBlockLength(digestAlgorithm);
+    }
+
+    /**
+     * Return the name of the provider of the {@link MessageDigest}s used
+     * by this, as selected by the provider policy.
+     * <p>
+     * This is the name of a JCA provider, or <code>BC</code> for
+     * BouncyCastle (even when not installed) or <code>internal</code>
+     * for our own implementations.
+     */
+    public String getDigestProvider() {
+        return engine().digestProvider;
+    }
+
+    /**
+     * Return the name of the provider of the {@link Mac}s used by this, as
+     * selected by the provider policy.
+     *
+     * @see #getDigestProvider()
+     */
+    public String getMacProvider() {
+        return engine().macProvider;
     }
 
     /**
      * Return an {@link MD} {@linkplain Function function} digesting data
      * with this {@link Hash}.
+     * <p>
+     * The returned instance should be {@linkplain MD#close() closed} (for
+     * example with a <code>try</code>-with-resources statement) once done.
      */
     public MD digest() {
-        return new MD(this, getMessageDigest());
+        return new MD(this, getMessageDigest(), digestPool);
     }
 
     /**
@@ -178,30 +214,318 @@ public enum Hash {
      * <p>
      * If the specified key is empty or <b>null</b> the {@link HMAC} will be
      * initialized with an empty key.
+     * <p>
+     * The returned instance should be {@linkplain HMAC#close() closed} (for
+     * example with a <code>try</code>-with-resources statement) once done.
      */
     public HMAC hmac(byte[] key) {
-        return new HMAC(this, getMac(key));
+        return new HMAC(this, getMac(key), macPool);
+    }
+
+    /**
+     * Return an {@link HMACKey} pre-initialized with the specified key,
+     * producing {@link HMAC}s without re-initializing them every time.
+     * <p>
+     * If the specified key is empty or <b>null</b> the {@link HMACKey} will
+     * be initialized with an empty key.
+     */
+    public HMACKey hmacKey(byte[] key) {
+        return new HMACKey(this, key);
+    }
+
+    /**
+     * Return a new {@link Mac} initialized with the specified key computing
+     * HMACs with this {@link Hash}, owned by the caller rather than borrowed
+     * from any pool.
+     * <p>
+     * The returned {@link Mac} follows the provider selection of this
+     * {@link Hash} (possibly being our own generic implementation) and can
+     * be freely {@linkplain Mac#init(Key) re-initialized} with other keys.
+     * If the specified key is empty or <b>null</b> the {@link Mac} will be
+     * initialized with an empty key.
+     */
+    public Mac newMac(byte[] key) {
+        final Engine engine = engine();
+        return engine.initMac(engine.cloneMac(), key);
+    }
+
+    /**
+     * Return a <em>resumable</em> {@link MD} whose state can be
+     * {@linkplain MD#exportState() exported} as a {@link Midstate}.
+     * <p>
+     * Only the SHA-1 and SHA-2 hashes are supported. Resumable instances
+     * are backed by BouncyCastle, are not pooled, and might be slower than
+     * the ones returned by {@link #digest()}.
+     *
+     * @throws UnsupportedOperationException If this {@link Hash} does not
+     *                                       support midstates.
+     */
+    public MD resumableDigest() {
+        return new MD(this, ResumableDigest.create(this));
+    }
+
+    /**
+     * Return a <em>resumable</em> {@link MD} continuing from the specified
+     * {@link Midstate}, previously {@linkplain MD#exportState() exported}.
+     *
+     * @see #resumableDigest()
+     */
+    public MD resumableDigest(Midstate midstate) {
+        checkMidstate(midstate, false);
+        final ResumableDigest digest = ResumableDigest.create(this);
+        digest.setState(midstate.getState(), midstate.getLength());
+        return new MD(this, digest);
+    }
+
+    /**
+     * Return a <em>resumable</em> {@link HMAC} initialized with the specified
+     * key, whose state can be {@linkplain HMAC#exportState() exported} as a
+     * {@link Midstate}.
+     *
+     * @see #resumableDigest()
+     */
+    public HMAC resumableHmac(byte[] key) {
+        return resumableHmac(key, null, 0);
+    }
+
+    /**
+     * Return a <em>resumable</em> {@link HMAC} initialized with the specified
+     * key continuing from the specified {@link Midstate}, previously
+     * {@linkplain HMAC#exportState() exported}.
+     * <p>
+     * The key <b>must</b> be the same one used when the {@link Midstate}
+     * was exported, otherwise the resulting HMAC will be wrong.
+     *
+     * @see #resumableDigest()
+     */
+    public HMAC resumableHmac(byte[] key, Midstate midstate) {
+        checkMidstate(midstate, true);
+        return resumableHmac(key, midstate.getState(), midstate.getLength());
+    }
+
+    /* Create a new resumable HMAC, possibly importing its state */
+    private HMAC resumableHmac(byte[] key, byte[] state, long length) {
+        final ResumableDigest digest = ResumableDigest.create(this);
+        final HMACSpi spi = HMACSpi.create(digest, digest.getBlockLength());
+        final Mac mac = HMACSpi.newMac(getMacAlgorithm(), spi);
+        final Key keySpec = engine().keySpec(key);
+        try {
+            mac.init(keySpec);
+        } catch (InvalidKeyException exception) {
+            throw new IllegalArgumentException("Invalid key", exception);
+        }
+
+        /* Continue from an imported inner state */
+        if (state != null) spi.setState(state, length);
+        return new HMAC(this, mac, spi, keySpec);
+    }
+
+    /* Check that a midstate can be resumed by us */
+    private void checkMidstate(Midstate midstate, boolean hmac) {
+        Check.notNull(midstate, "Null midstate");
+        if (midstate.getHash() != this)
+            throw new IllegalArgumentException("Midstate hash " + midstate.getHash() + " does not match " + this);
+        if (midstate.isHMAC() != hmac)
+            throw new IllegalArgumentException("Midstate is not for " + (hmac ? "an HMAC" : "a digest"));
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Digest all the specified messages, writing their hashes one after
+     * the other in the specified output array.
+     *
+     * @see #digestAll(List, byte[], int)
+     */
+    public void digestAll(List<byte[]> messages, byte[] output) {
+        digestAll(messages, output, 0);
+    }
+
+    /**
+     * Digest all the specified messages, writing their hashes one after
+     * the other in the specified output array starting at the given offset.
+     * <p>
+     * A single {@link MessageDigest} is used for the whole batch, and the
+     * output array must be at least {@link #getHashLength()} times the
+     * number of messages long.
+     */
+    public void digestAll(List<byte[]> messages, byte[] output, int offset) {
+        checkBatch(messages, output, offset);
+        final int length = getHashLength();
+        try (MD digest = digest()) {
+            for (byte[] message: messages) {
+                digest.update(Check.notNull(message, "Null message")).finish(output, offset);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Digest all the specified messages in parallel, writing their hashes
+     * one after the other in the specified output array.
+     *
+     * @see #parallelDigestAll(List, byte[], int)
+     */
+    public void parallelDigestAll(List<byte[]> messages, byte[] output) {
+        parallelDigestAll(messages, output, 0);
+    }
+
+    /**
+     * Digest all the specified messages in parallel, writing their hashes
+     * one after the other in the specified output array starting at the
+     * given offset.
+     * <p>
+     * Large batches are split across the {@linkplain ForkJoinPool#commonPool()
+     * common fork-join pool}, each task using its own {@link MessageDigest},
+     * while small ones are simply {@linkplain #digestAll(List, byte[], int)
+     * digested} in the calling thread.
+     */
+    public void parallelDigestAll(List<byte[]> messages, byte[] output, int offset) {
+        checkBatch(messages, output, offset);
+
+        final byte[][] array = messages.toArray(new byte[messages.size()][]);
+        final int length = getHashLength();
+        Batch.process(array.length, offset, length, (from, to, position) -> {
+            try (MD digest = digest()) {
+                for (int x = from, p = position; x < to; x ++, p += length) {
+                    digest.update(Check.notNull(array[x], "Null message")).finish(output, p);
+                }
+            }
+        });
+    }
+
+    /* Check the arguments of our batch digest methods */
+    private void checkBatch(List<byte[]> messages, byte[] output, int offset) {
+        Check.notNull(messages, "Null messages");
+        Check.notNull(output, "Null output");
+        if ((long) messages.size() * getHashLength() > output.length - offset)
+            throw new IllegalArgumentException("Buffer too short");
     }
 
     /* ====================================================================== */
 
     /* Return an instance of a {@link MessageDigest}. */
     private MessageDigest getMessageDigest() {
-        final MessageDigest digest = digestPool.get();
+        final MessageDigest digest = digestPool.borrow();
         digest.reset();
         return digest;
     }
 
     /* Return a {@link Mac} instance initialized with the specified key */
     private Mac getMac(byte[] key) {
-        final Mac mac = macPool.get();
+        final Mac mac = macPool.borrow();
         try {
-            mac.init(key == null ? emptySecretKeySpec :
-                     key.length == 0 ?  emptySecretKeySpec :
-                     new SecretKeySpec(key, mac.getAlgorithm()));
-            return mac;
-        } catch (InvalidKeyException exception) {
-            throw new IllegalArgumentException("Invalid key", exception);
+            return initMac(mac, key);
+        } catch (IllegalArgumentException exception) {
+            macPool.release(mac);
+            throw exception;
+        }
+    }
+
+    /* Initialize the specified {@link Mac} with the specified key */
+    private Mac initMac(Mac mac, byte[] key) {
+        return engine().initMac(mac, key);
+    }
+
+    /* ====================================================================== */
+
+    /* The shared instances (and their details) of a Hash */
+    private static final class Engine {
+
+        /* An empty secret key for Mac initialization */
+        private final SecretKeySpec emptySecretKeySpec;
+
+        /* A shared Mac instance from which to clone from. */
+        private final Mac mac;
+
+        /* A shared MessageDigest instance from which to clone from. */
+        private final MessageDigest digest;
+
+        /* The length of hashes produced by this algorithm. */
+        private final int length;
+
+        /* The names of the providers of our MessageDigest and Mac. */
+        private final String digestProvider;
+        private final String macProvider;
+
+        /* Create the shared instances of a Hash and check them */
+        private Engine(Hash hash, String digestAlgorithm, String macAlgorithm) {
+
+            /* Create a shared Mac instance */
+            try {
+                digest = Algorithms.getMessageDigest(hash.name(), digestAlgorithm);
+                mac = Algorithms.getMac(hash.name(), macAlgorithm, digestAlgorithm, digest);
+                length = digest.getDigestLength();
+                digestProvider = Algorithms.getProviderName(digest.getProvider(), digest);
+                macProvider = Algorithms.getProviderName(mac.getProvider(), mac);
+            } catch (NoSuchAlgorithmException exception) {
+                final Error error = new InternalError("Invalid algorithm " + macAlgorithm);
+                throw (Error) error.initCause(exception);
+            }
+
+            /* Create an empty secret key spec instance for this algorithm */
+            emptySecretKeySpec = new SecretKeySpec("foo".getBytes(), mac.getAlgorithm()) {
+
+                private final byte[] empty = new byte[0];
+
+                @Override
+                public byte[] getEncoded() {
+                    return empty;
+                }
+            };
+
+            /* Check sizes of digest and mac */
+            if (digest.getDigestLength() != mac.getMacLength()) {
+                final String digestClass = digest.getClass().getName();
+                final String macClass = mac.getClass().getName();
+                throw new InternalError("Length mismatch between " + digestClass + "["
+                            + digestAlgorithm + "] (" + digest.getDigestLength()
+                            + ") and " + macClass + "[" + macAlgorithm + "] ("
+                            + mac.getMacLength() + ")");
+            }
+
+            /* Chech proper functionality (directly, as we're not published yet) */
+            cloneDigest().digest();
+            initMac(cloneMac(), null).doFinal();
+        }
+
+        /* Clone our shared {@link Mac} instance */
+        private Mac cloneMac() {
+            try {
+                return (Mac) mac.clone();
+            } catch (CloneNotSupportedException exception) {
+                final String name = mac.getClass().getName();
+                final Error error = new InternalError(name + " not cloneable");
+                throw (Error) error.initCause(exception);
+            }
+        }
+
+        /* Clone our shared {@link MessageDigest} instance */
+        private MessageDigest cloneDigest() {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException exception) {
+                final String name = digest.getClass().getName();
+                final Error error = new InternalError(name + " not cloneable");
+                throw (Error) error.initCause(exception);
+            }
+        }
+
+        /* Initialize the specified {@link Mac} with the specified key */
+        private Mac initMac(Mac mac, byte[] key) {
+            try {
+                mac.init(keySpec(key));
+                return mac;
+            } catch (InvalidKeyException exception) {
+                throw new IllegalArgumentException("Invalid key", exception);
+            }
+        }
+
+        /* Return a {@link SecretKeySpec} for the specified key */
+        private SecretKeySpec keySpec(byte[] key) {
+            return key == null ? emptySecretKeySpec :
+                   key.length == 0 ?  emptySecretKeySpec :
+                   new SecretKeySpec(key, mac.getAlgorithm());
         }
     }
 
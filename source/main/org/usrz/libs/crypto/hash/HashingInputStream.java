@@ -0,0 +1,104 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * An {@link InputStream} {@linkplain Function#update(byte[], int, int)
+ * updating} a {@link Function} with all the data read through it, hashing
+ * data in the same pass that consumes it.
+ * <p>
+ * Skipped bytes are read (and hashed) rather than skipped, and marking is
+ * not supported. Closing this stream does not
+ * {@linkplain Function#finish() finish} nor {@linkplain Function#close()
+ * close} the {@link Function}, which remains owned by the caller.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class HashingInputStream extends FilterInputStream {
+
+    /* The function hashing our data */
+    private final Function<?> function;
+
+    /**
+     * Create a new {@link HashingInputStream} reading from the specified
+     * {@link InputStream} and updating the given {@link Function}.
+     */
+    public HashingInputStream(InputStream input, Function<?> function) {
+        super(Check.notNull(input, "Null input stream"));
+        this.function = Check.notNull(function, "Null function");
+    }
+
+    /**
+     * Return the {@link Function} updated by this {@link HashingInputStream}.
+     */
+    public Function<?> getFunction() {
+        return function;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public int read()
+    throws IOException {
+        final int read = in.read();
+        if (read >= 0) function.update((byte) read);
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+    throws IOException {
+        final int read = in.read(buffer, offset, length);
+        if (read > 0) function.update(buffer, offset, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long count)
+    throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(Math.max(count, 0), 4096)];
+        long skipped = 0;
+        while (skipped < count) {
+            final int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+            if (read < 0) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int limit) {
+        /* Marking is not supported */
+    }
+
+    @Override
+    public void reset()
+    throws IOException {
+        throw new IOException("Mark/reset not supported");
+    }
+
+}
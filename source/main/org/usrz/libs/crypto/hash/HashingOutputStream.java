@@ -0,0 +1,72 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * An {@link OutputStream} {@linkplain Function#update(byte[], int, int)
+ * updating} a {@link Function} with all the data written through it,
+ * hashing data in the same pass that produces it.
+ * <p>
+ * Closing this stream does not {@linkplain Function#finish() finish} nor
+ * {@linkplain Function#close() close} the {@link Function}, which remains
+ * owned by the caller.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class HashingOutputStream extends FilterOutputStream {
+
+    /* The function hashing our data */
+    private final Function<?> function;
+
+    /**
+     * Create a new {@link HashingOutputStream} writing to the specified
+     * {@link OutputStream} and updating the given {@link Function}.
+     */
+    public HashingOutputStream(OutputStream output, Function<?> function) {
+        super(Check.notNull(output, "Null output stream"));
+        this.function = Check.notNull(function, "Null function");
+    }
+
+    /**
+     * Return the {@link Function} updated by this {@link HashingOutputStream}.
+     */
+    public Function<?> getFunction() {
+        return function;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void write(int data)
+    throws IOException {
+        out.write(data);
+        function.update((byte) data);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+    throws IOException {
+        out.write(buffer, offset, length);
+        function.update(buffer, offset, length);
+    }
+
+}
@@ -0,0 +1,85 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A {@link ReadableByteChannel} {@linkplain Function#update(ByteBuffer)
+ * updating} a {@link Function} with all the data read through it, hashing
+ * data in the same pass that consumes it.
+ * <p>
+ * Closing this channel does not {@linkplain Function#finish() finish} nor
+ * {@linkplain Function#close() close} the {@link Function}, which remains
+ * owned by the caller.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class HashingReadableByteChannel implements ReadableByteChannel {
+
+    /* The channel we read from, and the function hashing our data */
+    private final ReadableByteChannel channel;
+    private final Function<?> function;
+
+    /**
+     * Create a new {@link HashingReadableByteChannel} reading from the
+     * specified {@link ReadableByteChannel} and updating the given
+     * {@link Function}.
+     */
+    public HashingReadableByteChannel(ReadableByteChannel channel, Function<?> function) {
+        this.channel = Check.notNull(channel, "Null channel");
+        this.function = Check.notNull(function, "Null function");
+    }
+
+    /**
+     * Return the {@link Function} updated by this channel.
+     */
+    public Function<?> getFunction() {
+        return function;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public int read(ByteBuffer buffer)
+    throws IOException {
+        final int position = buffer.position();
+        final int read = channel.read(buffer);
+        if (read > 0) {
+            final ByteBuffer hashed = buffer.duplicate();
+            hashed.position(position);
+            hashed.limit(position + read);
+            function.update(hashed);
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        channel.close();
+    }
+
+}
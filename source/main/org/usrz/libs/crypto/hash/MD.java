@@ -15,6 +15,7 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.hash;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 
@@ -31,16 +32,24 @@ public class MD implements Function<MD> {
 
     /* The {@link Hash} wrapped by this instance. */
     private final Hash hash;
-    /* The {@link MessageDigest} wrapped by this instance. */
-    private final MessageDigest digest;
+    /* The {@link MessageDigest} wrapped by this instance, null once closed. */
+    private MessageDigest digest;
+    /* The pool our {@link MessageDigest} was borrowed from, if any. */
+    private Pool<MessageDigest> pool;
 
     /**
      * Create a new {@link MD} instance associated with the given {@link Hash}
      * and {@link MessageDigest}.
      */
     protected MD(Hash hash, MessageDigest digest) {
+        this(hash, digest, null);
+    }
+
+    /* Create a new instance returning its MessageDigest to a pool when closed */
+    MD(Hash hash, MessageDigest digest, Pool<MessageDigest> pool) {
         this.hash = Check.notNull(hash, "Null hash");
         this.digest = Check.notNull(digest, "Null message digest");
+        this.pool = pool;
     }
 
     /* ====================================================================== */
@@ -54,20 +63,71 @@ public class MD implements Function<MD> {
      * Return the underlying {@link MessageDigest} associated with this instance.
      */
     public final MessageDigest getMessageDigest() {
+        return digest();
+    }
+
+    /* Return our MessageDigest, failing if this instance was closed */
+    private MessageDigest digest() {
+        final MessageDigest digest = this.digest;
+        if (digest == null) throw new IllegalStateException("Digest closed");
         return digest;
     }
 
     /* ====================================================================== */
 
     @Override
-    public final MD reset() {
+    public void close() {
+        final MessageDigest digest = this.digest;
+        if (digest == null) return;
+        this.digest = null;
+
+        final Pool<MessageDigest> pool = this.pool;
+        if (pool == null) return;
+        this.pool = null;
         digest.reset();
+        pool.release(digest);
+    }
+
+    @Override
+    public MD fork() {
+        try {
+            return new MD(hash, (MessageDigest) digest().clone());
+        } catch (CloneNotSupportedException exception) {
+            throw new UnsupportedOperationException("Digest not cloneable", exception);
+        }
+    }
+
+    /**
+     * Export the current state of this {@link MD} as a {@link Midstate},
+     * from which hashing can be {@linkplain Hash#resumableDigest(Midstate)
+     * resumed} later.
+     *
+     * @throws UnsupportedOperationException If this instance was not
+     *         created {@linkplain Hash#resumableDigest() resumable}.
+     */
+    public Midstate exportState() {
+        final MessageDigest digest = digest();
+        if (! (digest instanceof ResumableDigest))
+            throw new UnsupportedOperationException("Digest state not exportable");
+        final ResumableDigest resumable = (ResumableDigest) digest;
+        return new Midstate(hash, false, resumable.getLength(), resumable.getState());
+    }
+
+    @Override
+    public final MD reset() {
+        digest().reset();
         return this;
     }
 
     @Override
     public MD update(byte[] input, int offset, int length) {
-        digest.update(input, offset, length);
+        digest().update(input, offset, length);
+        return this;
+    }
+
+    @Override
+    public MD update(ByteBuffer input) {
+        digest().update(input);
         return this;
     }
 
@@ -75,6 +135,7 @@ public class MD implements Function<MD> {
     public void finish(byte[] output, int offset) {
         if (output.length - getHashLength() < offset)
             throw new IllegalArgumentException("Buffer too short");
+        final MessageDigest digest = digest();
         try {
             digest.digest(output, offset, getHashLength());
         } catch (DigestException exception) {
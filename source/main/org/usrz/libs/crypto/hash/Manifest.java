@@ -0,0 +1,289 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.utils.codecs.HexCodec.HEX;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A manifest of the files in a directory tree, sorted by path, recording
+ * the size, last modification time and digest of each file.
+ * <p>
+ * Manifests are {@linkplain FileDigester#manifest(java.nio.file.Path)
+ * produced} by a {@link FileDigester}, and can be {@linkplain #write(Writer)
+ * written} to and {@linkplain #read(Reader) read} from a simple text format,
+ * whose first line names the {@link Hash}, followed by one line per file:
+ * <pre>
+ * # SHA256
+ * &lt;digest&gt; &lt;size&gt; &lt;last modified&gt; &lt;path&gt;
+ * </pre>
+ * where the digest is hex-encoded, the last modification time expressed
+ * in milliseconds since the epoch, and paths are relative to the root of
+ * the tree, separated by forward slashes, with backslashes, line feeds
+ * and carriage returns escaped as <code>\\</code>, <code>\n</code> and
+ * <code>\r</code>.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class Manifest {
+
+    /* Our hash and our entries, sorted by path */
+    private final Hash hash;
+    private final Map<String, Entry> entries;
+    private final List<Entry> list;
+
+    /**
+     * Create a new {@link Manifest} with the specified entries.
+     */
+    public Manifest(Hash hash, Collection<Entry> entries) {
+        this.hash = Check.notNull(hash, "Null hash");
+        this.entries = new TreeMap<>();
+        for (Entry entry: Check.notNull(entries, "Null entries")) {
+            Check.notNull(entry, "Null entry");
+            if (entry.digest.length != hash.getHashLength())
+                throw new IllegalArgumentException("Invalid digest length for \"" + entry.path + "\"");
+            if (this.entries.put(entry.path, entry) != null)
+                throw new IllegalArgumentException("Duplicate path \"" + entry.path + "\"");
+        }
+        list = Collections.unmodifiableList(new ArrayList<>(this.entries.values()));
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} used to digest files in this {@link Manifest}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return all the {@linkplain Entry entries} of this {@link Manifest},
+     * sorted by path.
+     */
+    public List<Entry> getEntries() {
+        return list;
+    }
+
+    /**
+     * Return the {@link Entry} for the specified path or <b>null</b>.
+     */
+    public Entry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Return the sorted paths of all files added, removed or changed (in
+     * size or digest) between this and the specified {@link Manifest}.
+     * <p>
+     * Last modification times are ignored, and an empty set returned when
+     * both manifests describe the same contents.
+     */
+    public SortedSet<String> differences(Manifest manifest) {
+        Check.notNull(manifest, "Null manifest");
+        if (manifest.hash != hash)
+            throw new IllegalArgumentException("Manifest hash " + manifest.hash + " does not match " + hash);
+
+        final SortedSet<String> differences = new TreeSet<>();
+        for (Entry entry: list) {
+            final Entry other = manifest.entries.get(entry.path);
+            if ((other == null) || (! entry.sameContents(other))) differences.add(entry.path);
+        }
+        for (String path: manifest.entries.keySet()) {
+            if (! entries.containsKey(path)) differences.add(path);
+        }
+        return differences;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Write this {@link Manifest} to the specified {@link Writer}.
+     */
+    public void write(Writer writer)
+    throws IOException {
+        writer.write("# " + hash.name() + "\n");
+        for (Entry entry: list) {
+            writer.write(HEX.encode(entry.digest) + " " + entry.size + " " + entry.lastModified + " " + escape(entry.path) + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Read a {@link Manifest} from the specified {@link Reader}.
+     */
+    public static Manifest read(Reader reader)
+    throws IOException {
+        final BufferedReader lines = new BufferedReader(Check.notNull(reader, "Null reader"));
+
+        final String header = lines.readLine();
+        if ((header == null) || (! header.startsWith("# ")))
+            throw new IOException("Invalid manifest header \"" + header + "\"");
+        final Hash hash;
+        try {
+            hash = Hash.valueOf(header.substring(2).trim());
+        } catch (IllegalArgumentException exception) {
+            throw new IOException("Invalid manifest hash \"" + header.substring(2).trim() + "\"", exception);
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        int number = 1;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            number ++;
+            if (line.isEmpty()) continue;
+            final String[] fields = line.split(" ", 4);
+            try {
+                if (fields.length != 4) throw new IllegalArgumentException("Not enough fields");
+                entries.add(new Entry(unescape(fields[3]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), HEX.decode(fields[0])));
+            } catch (IllegalArgumentException exception) {
+                throw new IOException("Invalid manifest entry at line " + number, exception);
+            }
+        }
+
+        try {
+            return new Manifest(hash, entries);
+        } catch (IllegalArgumentException exception) {
+            throw new IOException("Invalid manifest: " + exception.getMessage(), exception);
+        }
+    }
+
+    /* Escape backslashes and line terminators in a path */
+    private static String escape(String path) {
+        final StringBuilder builder = new StringBuilder(path.length());
+        for (int x = 0; x < path.length(); x ++) {
+            final char c = path.charAt(x);
+            switch (c) {
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                default: builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /* Unescape a path escaped by escape(...) */
+    private static String unescape(String path) {
+        if (path.indexOf('\\') < 0) return path;
+        final StringBuilder builder = new StringBuilder(path.length());
+        for (int x = 0; x < path.length(); x ++) {
+            final char c = path.charAt(x);
+            if (c != '\\') {
+                builder.append(c);
+            } else if (++ x < path.length()) {
+                switch (path.charAt(x)) {
+                    case '\\': builder.append('\\'); break;
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    default: throw new IllegalArgumentException("Invalid escape in path \"" + path + "\"");
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid escape in path \"" + path + "\"");
+            }
+        }
+        return builder.toString();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * A single file in a {@link Manifest}.
+     */
+    public static final class Entry {
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final byte[] digest;
+
+        /**
+         * Create a new {@link Entry} for the specified file.
+         *
+         * @param path The path of the file, relative to the root of the
+         *             tree and separated by forward slashes.
+         * @param size The size of the file in bytes.
+         * @param lastModified The last modification time of the file in
+         *                     milliseconds since the epoch.
+         * @param digest The digest of the file contents.
+         */
+        public Entry(String path, long size, long lastModified, byte[] digest) {
+            this.path = Check.notNull(path, "Null path");
+            if (path.isEmpty()) throw new IllegalArgumentException("Empty path");
+            if (size < 0) throw new IllegalArgumentException("Invalid size " + size + " for \"" + path + "\"");
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = Check.notNull(digest, "Null digest").clone();
+        }
+
+        /**
+         * Return the path of the file, relative to the root of the tree.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Return the size of the file in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Return the last modification time in milliseconds since the epoch.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Return the digest of the file contents.
+         */
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+
+        /* Check whether two entries have the same size and digest */
+        boolean sameContents(Entry entry) {
+            return (size == entry.size) && MessageDigest.isEqual(digest, entry.digest);
+        }
+
+        /* Check whether two entries have the same size and modification time */
+        boolean sameAttributes(long size, long lastModified) {
+            return (this.size == size) && (this.lastModified == lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return HEX.encode(digest) + " " + size + " " + lastModified + " " + path;
+        }
+    }
+}
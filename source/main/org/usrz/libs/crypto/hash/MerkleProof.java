@@ -0,0 +1,154 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.security.MessageDigest;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * An <em>audit path</em> proving that a chunk of data is the leaf at a
+ * given index of a {@link MerkleTree} with a known root, as defined by
+ * <a href="http://tools.ietf.org/html/rfc6962#section-2.1.1">RFC 6962</a>.
+ * <p>
+ * Proofs are {@linkplain MerkleTree#getProof(int) produced} by whoever
+ * holds the whole input, and verified by anyone holding the root hash and
+ * a single chunk, without access to the rest of the input.
+ * <p>
+ * The number of leaves must be trusted by the verifier (for example being
+ * derived from the known length of the input and the chunk size), as the
+ * same path can prove the leftmost leaves of trees of different sizes.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class MerkleProof {
+
+    /* Our hash, the index of the leaf and the number of leaves */
+    private final Hash hash;
+    private final int index;
+    private final int leafCount;
+    /* The sibling hashes, from the leaf up to the root */
+    private final byte[][] path;
+
+    /**
+     * Create a new {@link MerkleProof} for the leaf at the specified index
+     * of a {@link MerkleTree} with the given number of leaves.
+     *
+     * @param path The hashes of the siblings of the leaf and of its
+     *             ancestors, from the bottom of the tree up to the root.
+     */
+    public MerkleProof(Hash hash, int index, int leafCount, byte[][] path) {
+        this.hash = Check.notNull(hash, "Null hash");
+        if ((index < 0) || (index >= leafCount))
+            throw new IllegalArgumentException("Invalid leaf " + index + " of " + leafCount);
+
+        this.index = index;
+        this.leafCount = leafCount;
+        this.path = Check.notNull(path, "Null path").clone();
+        for (byte[] node: this.path) {
+            if (Check.notNull(node, "Null node in path").length != hash.getHashLength())
+                throw new IllegalArgumentException("Invalid node length " + node.length + " in path");
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} used by this {@link MerkleProof}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return the index of the leaf proven by this {@link MerkleProof}.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Return the number of leaves of the {@link MerkleTree}.
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Return the hashes of the siblings of the leaf and of its ancestors,
+     * from the bottom of the tree up to the root.
+     */
+    public byte[][] getPath() {
+        final byte[][] path = new byte[this.path.length][];
+        for (int x = 0; x < path.length; x ++) path[x] = this.path[x].clone();
+        return path;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Verify that the specified chunk is the leaf proven by this instance
+     * in a {@link MerkleTree} with the given root.
+     */
+    public boolean verify(byte[] root, byte[] chunk) {
+        return verify(root, chunk, 0, chunk.length);
+    }
+
+    /**
+     * Verify that the specified part of a <code>byte[]</code> is the leaf
+     * proven by this instance in a {@link MerkleTree} with the given root.
+     */
+    public boolean verify(byte[] root, byte[] chunk, int offset, int length) {
+        Check.notNull(root, "Null root");
+        Check.notNull(chunk, "Null chunk");
+        final byte[] computed = computeRoot(chunk, offset, length);
+        return (computed != null) && MessageDigest.isEqual(root, computed);
+    }
+
+    /**
+     * Compute the root of the {@link MerkleTree} in which the specified part
+     * of a <code>byte[]</code> is the leaf proven by this instance.
+     *
+     * @return The root hash, or <b>null</b> if the path is not valid for
+     *         the index and number of leaves of this proof.
+     */
+    public byte[] computeRoot(byte[] chunk, int offset, int length) {
+        try (MD digest = hash.digest()) {
+            byte[] node = new byte[hash.getHashLength()];
+            MerkleTree.leaf(digest, chunk, offset, length, node, 0);
+
+            /* RFC 6962 (and RFC 9162, section 2.1.3.2) verification */
+            int position = index;
+            int last = leafCount - 1;
+            for (byte[] sibling: path) {
+                if (last == 0) return null;
+                if (((position & 1) != 0) || (position == last)) {
+                    node = MerkleTree.node(digest, sibling, node);
+                    while (((position & 1) == 0) && (position != 0)) {
+                        position >>>= 1;
+                        last >>>= 1;
+                    }
+                } else {
+                    node = MerkleTree.node(digest, node, sibling);
+                }
+                position >>>= 1;
+                last >>>= 1;
+            }
+            return last == 0 ? node : null;
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveAction;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A <a href="http://en.wikipedia.org/wiki/Merkle_tree">Merkle tree</a>
+ * of the fixed-size chunks of a (possibly very large) input.
+ * <p>
+ * Chunks (the <em>leaves</em> of the tree) are hashed in parallel in the
+ * {@linkplain java.util.concurrent.ForkJoinPool#commonPool() common
+ * fork-join pool}, and combined into a root as defined by
+ * <a href="http://tools.ietf.org/html/rfc6962#section-2.1">RFC 6962</a>:
+ * <pre>
+ * leaf = H(0x00 || chunk)
+ * node = H(0x01 || left || right)
+ * </pre>
+ * where the left subtree of each node holds the largest power of two
+ * leaves smaller than the total, and the root of an empty input is the
+ * hash of no data at all.
+ * <p>
+ * Any chunk of the input can be verified against the {@linkplain #getRoot()
+ * root} alone with a {@link MerkleProof}, without re-hashing the whole
+ * input: the chunks covering a byte range start at the index of
+ * <code>offset / chunkSize</code>.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class MerkleTree {
+
+    /** The default size of each chunk (leaf) of the tree: 1 MiB. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /* The minimum number of bytes hashed by each parallel task */
+    private static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
+    /* The prefixes for leaf and node hashes */
+    private static final byte[] LEAF = { 0x00 };
+    private static final byte[] NODE = { 0x01 };
+
+    /* Our hash, input length and chunk size */
+    private final Hash hash;
+    private final long length;
+    private final int chunkSize;
+    /* The number of leaves, and their hashes one after the other */
+    private final int leafCount;
+    private final byte[] leaves;
+    /* The root hash of the tree */
+    private final byte[] root;
+
+    /* Create a new Merkle tree hashing the chunks read from the source */
+    private MerkleTree(Hash hash, long length, int chunkSize, Source source) {
+        this.hash = Check.notNull(hash, "Null hash");
+        if (chunkSize < 1) throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+
+        final long count = (length + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE / hash.getHashLength())
+            throw new IllegalArgumentException("Too many chunks of " + chunkSize + " bytes in " + length + " bytes");
+
+        this.length = length;
+        this.chunkSize = chunkSize;
+        leafCount = (int) count;
+        leaves = new byte[leafCount * hash.getHashLength()];
+
+        if (leafCount > 0) new Leaves(this, source, 0, leafCount).invoke();
+        try (MD digest = hash.digest()) {
+            root = leafCount == 0 ? digest.finish() : subtree(digest, 0, leafCount);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Create a {@link MerkleTree} of the specified data, split in chunks
+     * of {@value #DEFAULT_CHUNK_SIZE} bytes.
+     */
+    public static MerkleTree hash(Hash hash, byte[] data) {
+        return hash(hash, ByteBuffer.wrap(Check.notNull(data, "Null data")), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a {@link MerkleTree} of the remaining bytes of the specified
+     * {@link ByteBuffer} (for example a memory-mapped file), split in chunks
+     * of the specified size.
+     * <p>
+     * The position of the buffer is not changed.
+     */
+    public static MerkleTree hash(Hash hash, ByteBuffer data, int chunkSize) {
+        final ByteBuffer buffer = Check.notNull(data, "Null data").duplicate();
+        final int start = buffer.position();
+        return new MerkleTree(hash, buffer.remaining(), chunkSize, (digest, offset, length) -> {
+            final ByteBuffer chunk = buffer.duplicate();
+            chunk.position(start + (int) offset).limit(start + (int) offset + length);
+            digest.update(chunk);
+        });
+    }
+
+    /**
+     * Create a {@link MerkleTree} of the whole contents of the specified
+     * {@link FileChannel}, split in chunks of the specified size.
+     * <p>
+     * Chunks are read in parallel with positional reads, therefore the
+     * position of the channel is not changed.
+     */
+    public static MerkleTree hash(Hash hash, FileChannel channel, int chunkSize)
+    throws IOException {
+        Check.notNull(channel, "Null channel");
+        try {
+            return new MerkleTree(hash, channel.size(), chunkSize, (digest, offset, length) -> {
+                final ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, 65536));
+                while (length > 0) {
+                    buffer.clear().limit(Math.min(length, buffer.capacity()));
+                    final int read = channel.read(buffer, offset);
+                    if (read < 0) throw new IOException("Unexpected end of file at " + offset);
+                    buffer.flip();
+                    digest.update(buffer);
+                    offset += read;
+                    length -= read;
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} used by this {@link MerkleTree}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return the length (in bytes) of the input of this {@link MerkleTree}.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Return the size (in bytes) of each chunk of the input; the last one
+     * might be shorter.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Return the number of leaves (chunks) of this {@link MerkleTree}.
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Return the hash of the leaf (chunk) at the specified index.
+     */
+    public byte[] getLeaf(int index) {
+        final int length = hash.getHashLength();
+        final byte[] leaf = new byte[length];
+        System.arraycopy(leaves, checkIndex(index) * length, leaf, 0, length);
+        return leaf;
+    }
+
+    /**
+     * Return the root hash of this {@link MerkleTree}.
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+
+    /**
+     * Return a {@link MerkleProof} for the leaf (chunk) at the specified
+     * index, verifying it against the {@linkplain #getRoot() root}.
+     */
+    public MerkleProof getProof(int index) {
+        checkIndex(index);
+        final byte[][] path = new byte[32 - Integer.numberOfLeadingZeros(leafCount - 1)][];
+        try (MD digest = hash.digest()) {
+            final int size = path(digest, index, 0, leafCount, path, 0);
+            final byte[][] result = new byte[size][];
+            for (int x = 0; x < size; x ++) result[x] = path[size - x - 1];
+            return new MerkleProof(hash, index, leafCount, result);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Check the index of a leaf */
+    private int checkIndex(int index) {
+        if ((index >= 0) && (index < leafCount)) return index;
+        throw new IndexOutOfBoundsException("Invalid leaf " + index + " of " + leafCount);
+    }
+
+    /* The hash of the leaves from "from" (inclusive) to "to" (exclusive) */
+    private byte[] subtree(MD digest, int from, int to) {
+        final int count = to - from;
+        if (count == 1) return getLeaf(from);
+
+        final int split = from + Integer.highestOneBit(count - 1);
+        final byte[] left = subtree(digest, from, split);
+        final byte[] right = subtree(digest, split, to);
+        return node(digest, left, right);
+    }
+
+    /* Collect the audit path (top-down) for a leaf, returning its length */
+    private int path(MD digest, int index, int from, int to, byte[][] path, int depth) {
+        final int count = to - from;
+        if (count == 1) return depth;
+
+        final int split = from + Integer.highestOneBit(count - 1);
+        if (index < split) {
+            path[depth] = subtree(digest, split, to);
+            return path(digest, index, from, split, path, depth + 1);
+        } else {
+            path[depth] = subtree(digest, from, split);
+            return path(digest, index, split, to, path, depth + 1);
+        }
+    }
+
+    /* Compute the hash of a leaf from its chunk data */
+    static void leaf(MD digest, byte[] data, int offset, int length, byte[] output, int position) {
+        digest.update(LEAF).update(data, offset, length).finish(output, position);
+    }
+
+    /* Compute the hash of a node from its children */
+    static byte[] node(MD digest, byte[] left, byte[] right) {
+        return digest.update(NODE).update(left).update(right).finish();
+    }
+
+    /* ====================================================================== */
+
+    /* Where chunks of the input are read from */
+    @FunctionalInterface
+    private interface Source {
+
+        /* Update the digest with "length" bytes of the input at "offset" */
+        void update(MD digest, long offset, int length)
+        throws IOException;
+
+    }
+
+    /* Hash a range of leaves, splitting it in the fork-join pool */
+    private static final class Leaves extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MerkleTree tree;
+        private final Source source;
+        private final int from;
+        private final int to;
+
+        private Leaves(MerkleTree tree, Source source, int from, int to) {
+            this.tree = tree;
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((to - from > 1) && ((long) (to - from) * tree.chunkSize > PARALLEL_THRESHOLD)) {
+                final int middle = (from + to) >>> 1;
+                final Leaves right = new Leaves(tree, source, middle, to);
+                right.fork();
+                new Leaves(tree, source, from, middle).invoke();
+                right.join();
+            } else try (MD digest = tree.hash.digest()) {
+                final int hashLength = tree.hash.getHashLength();
+                for (int x = from; x < to; x ++) {
+                    final long offset = (long) x * tree.chunkSize;
+                    final int length = (int) Math.min(tree.chunkSize, tree.length - offset);
+                    source.update(digest.update(LEAF), offset, length);
+                    digest.finish(tree.leaves, x * hashLength);
+                }
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * The exported internal state of a resumable {@link MD} or {@link HMAC},
+ * including the number of bytes processed and the buffered tail of the
+ * last incomplete block, from which hashing can be continued later.
+ * <p>
+ * This allows checkpointing the hash of append-only data (like logs): the
+ * {@linkplain #getEncoded() encoded} midstate can be persisted alongside
+ * the {@linkplain #getLength() length} of the data hashed so far, and
+ * {@linkplain Hash#resumableDigest(Midstate) resumed} later, hashing only
+ * the data appended since.
+ * <p>
+ * The midstate of an {@link HMAC} only contains the state of its inner
+ * hash, therefore resuming requires the original key. It is nevertheless
+ * derived from the key and the data, and should be protected like them.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class Midstate {
+
+    /* The version of our encoded format */
+    private static final int VERSION = 1;
+
+    /* The hash, whether this is an HMAC state, and the data length */
+    private final Hash hash;
+    private final boolean hmac;
+    private final long length;
+    /* The encoded state of the digest */
+    private final byte[] state;
+
+    /* Create a new midstate */
+    Midstate(Hash hash, boolean hmac, long length, byte[] state) {
+        this.hash = Check.notNull(hash, "Null hash");
+        this.state = Check.notNull(state, "Null state");
+        if (length < 0) throw new IllegalArgumentException("Invalid length " + length);
+        this.hmac = hmac;
+        this.length = length;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} associated with this {@link Midstate}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return whether this is the midstate of an {@link HMAC} (<b>true</b>)
+     * or of an {@link MD} (<b>false</b>).
+     */
+    public boolean isHMAC() {
+        return hmac;
+    }
+
+    /**
+     * Return the number of bytes of data hashed until this midstate.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /* Return the encoded digest state */
+    byte[] getState() {
+        return state.clone();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Encode this {@link Midstate} as a <code>byte[]</code>.
+     *
+     * @see #decode(byte[])
+     */
+    public byte[] getEncoded() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.length + 32);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(VERSION);
+            output.writeUTF(hash.name());
+            output.writeBoolean(hmac);
+            output.writeLong(length);
+            output.writeInt(state.length);
+            output.write(state);
+        } catch (IOException exception) {
+            throw new IllegalStateException("I/O error writing to memory", exception);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a {@link Midstate} {@linkplain #getEncoded() encoded} as a
+     * <code>byte[]</code>.
+     *
+     * @throws IllegalArgumentException If the data could not be decoded.
+     */
+    public static Midstate decode(byte[] encoded)
+    throws IllegalArgumentException {
+        Check.notNull(encoded, "Null encoded midstate");
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(encoded))) {
+            final int version = input.readUnsignedByte();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported midstate version " + version);
+
+            final Hash hash = Hash.valueOf(input.readUTF());
+            final boolean hmac = input.readBoolean();
+            final long length = input.readLong();
+            final int size = input.readInt();
+            if ((size < 0) || (size != input.available()))
+                throw new IllegalArgumentException("Invalid midstate length " + size);
+
+            final byte[] state = new byte[size];
+            input.readFully(state);
+            return new Midstate(hash, hmac, length, state);
+        } catch (IOException exception) {
+            throw new IllegalArgumentException("Invalid midstate", exception);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A pool of {@link javax.crypto.Mac Mac}s or
+ * {@link java.security.MessageDigest MessageDigest}s (or anything else
+ * costly to create) lending instances through {@link #borrow()} and
+ * getting them back through {@link #release(Object)}.
+ * <p>
+ * The pooling strategy is selected with the
+ * <code>{@value #POOLING_PROPERTY}</code> system property:
+ * <dl>
+ *   <dt><code>threadlocal</code> (the default)</dt>
+ *   <dd>Each thread keeps its own instance in a {@link ThreadLocal}, and
+ *       {@link #release(Object) releasing} does nothing.</dd>
+ *   <dt><code>shared</code></dt>
+ *   <dd>Instances are kept in a bounded, lock-free array shared by all
+ *       threads, striped by thread identifier. This suits large numbers
+ *       of short-lived (for example virtual) threads, which would otherwise
+ *       create a new instance each, but requires borrowed instances to be
+ *       {@linkplain Function#close() closed} to be reused.</dd>
+ * </dl>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of instances pooled.
+ */
+abstract class Pool<T> {
+
+    /** The system property selecting the pooling strategy. */
+    static final String POOLING_PROPERTY = "org.usrz.libs.crypto.hash.pooling";
+
+    /* Whether we use the "shared" pool or not */
+    private static final boolean SHARED = "shared".equals(System.getProperty(POOLING_PROPERTY, "threadlocal"));
+
+    /* The factory creating new instances */
+    private final Supplier<T> factory;
+
+    /* Create a new pool */
+    private Pool(Supplier<T> factory) {
+        this.factory = Check.notNull(factory, "Null factory");
+    }
+
+    /**
+     * Create a new {@link Pool} using the strategy selected by the
+     * <code>{@value #POOLING_PROPERTY}</code> system property.
+     */
+    static <T> Pool<T> create(Supplier<T> factory) {
+        return SHARED ? shared(factory) : threadLocal(factory);
+    }
+
+    /**
+     * Create a new {@link Pool} keeping one instance per thread.
+     */
+    static <T> Pool<T> threadLocal(Supplier<T> factory) {
+        return new Local<>(factory);
+    }
+
+    /**
+     * Create a new bounded, lock-free {@link Pool} shared by all threads.
+     */
+    static <T> Pool<T> shared(Supplier<T> factory) {
+        return new Shared<>(factory);
+    }
+
+    /**
+     * Borrow an instance from this pool, creating a new one if needed.
+     */
+    abstract T borrow();
+
+    /**
+     * Return a previously {@linkplain #borrow() borrowed} instance.
+     */
+    abstract void release(T instance);
+
+    /* ====================================================================== */
+
+    /* A pool keeping one instance per thread */
+    private static final class Local<T> extends Pool<T> {
+
+        private final ThreadLocal<T> pool;
+
+        private Local(Supplier<T> factory) {
+            super(factory);
+            pool = ThreadLocal.withInitial(factory);
+        }
+
+        @Override
+        T borrow() {
+            return pool.get();
+        }
+
+        @Override
+        void release(T instance) {
+            /* Nothing to do, stays with its thread */
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A bounded, lock-free pool shared across all threads */
+    private static final class Shared<T> extends Pool<T> {
+
+        /* The number of slots: a power of two, four to eight per CPU */
+        private static final int SLOTS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8 - 1);
+
+        private final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(SLOTS);
+
+        private Shared(Supplier<T> factory) {
+            super(factory);
+        }
+
+        /* Where each thread starts looking in our slots */
+        private static int stripe() {
+            final long id = Thread.currentThread().getId();
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+
+        @Override
+        T borrow() {
+            final int stripe = stripe();
+            for (int x = 0; x < SLOTS; x ++) {
+                final int index = (stripe + x) & (SLOTS - 1);
+                final T instance = slots.get(index);
+                if ((instance != null) && slots.compareAndSet(index, instance, null)) return instance;
+            }
+            return super.factory.get();
+        }
+
+        @Override
+        void release(T instance) {
+            final int stripe = stripe();
+            for (int x = 0; x < SLOTS; x ++) {
+                final int index = (stripe + x) & (SLOTS - 1);
+                if ((slots.get(index) == null) && slots.compareAndSet(index, null, instance)) return;
+            }
+            /* Pool full, leave this instance to the garbage collector */
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.security.MessageDigest;
+
+import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.crypto.digests.EncodableDigest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.util.Memoable;
+
+/**
+ * A {@link MessageDigest} whose internal state (including the number of
+ * bytes processed and the buffered tail of the last incomplete block) can
+ * be exported and restored, backed by BouncyCastle's encodable digests.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class ResumableDigest extends MessageDigest implements Cloneable {
+
+    /* Restore a BouncyCastle digest from its encoded state */
+    @FunctionalInterface
+    private interface Restorer {
+        ExtendedDigest restore(byte[] state);
+    }
+
+    /* The BouncyCastle digest, and how to restore it */
+    private ExtendedDigest digest;
+    private final Restorer restorer;
+    /* The number of bytes processed so far */
+    private long length;
+
+    /* Create a new instance */
+    private ResumableDigest(String algorithm, ExtendedDigest digest, Restorer restorer) {
+        super(algorithm);
+        this.digest = digest;
+        this.restorer = restorer;
+    }
+
+    /**
+     * Create a new {@link ResumableDigest} for the specified {@link Hash}.
+     *
+     * @throws UnsupportedOperationException If the {@link Hash} is not
+     *                                       one of the SHA-1/SHA-2 family.
+     */
+    static ResumableDigest create(Hash hash) {
+        switch (hash) {
+            case SHA1:   return new ResumableDigest("SHA1",    new SHA1Digest(),   SHA1Digest::new);
+            case SHA256: return new ResumableDigest("SHA-256", new SHA256Digest(), SHA256Digest::new);
+            case SHA384: return new ResumableDigest("SHA-384", new SHA384Digest(), SHA384Digest::new);
+            case SHA512: return new ResumableDigest("SHA-512", new SHA512Digest(), SHA512Digest::new);
+            default: throw new UnsupportedOperationException("Hash " + hash + " does not support midstates");
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the length of the blocks processed by this digest.
+     */
+    int getBlockLength() {
+        return digest.getByteLength();
+    }
+
+    /**
+     * Return the number of bytes processed since the last reset.
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Return the encoded internal state of this digest.
+     */
+    byte[] getState() {
+        return ((EncodableDigest) digest).getEncodedState();
+    }
+
+    /**
+     * Restore the internal state of this digest.
+     */
+    void setState(byte[] state, long length) {
+        try {
+            digest = restorer.restore(state);
+            this.length = length;
+        } catch (RuntimeException exception) {
+            throw new IllegalArgumentException("Invalid " + getAlgorithm() + " state", exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected int engineGetDigestLength() {
+        return digest.getDigestSize();
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        digest.update(input);
+        length ++;
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        digest.update(input, offset, length);
+        this.length += length;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        final byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        length = 0;
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        digest.reset();
+        length = 0;
+    }
+
+    @Override
+    public Object clone()
+    throws CloneNotSupportedException {
+        final ResumableDigest clone = (ResumableDigest) super.clone();
+        clone.digest = (ExtendedDigest) ((Memoable) digest).copy();
+        return clone;
+    }
+
+}
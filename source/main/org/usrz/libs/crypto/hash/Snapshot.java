@@ -0,0 +1,69 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * An immutable snapshot of the state of a {@link Function}, for example
+ * after being fed a constant prefix shared by many messages.
+ * <p>
+ * Every {@linkplain #fork() fork} starts from the state captured here,
+ * without having to process the shared prefix again:
+ * <pre>
+ * Snapshot&lt;HMAC&gt; primed = key.hmac().update(header).snapshot();
+ * ...
+ * byte[] signature = primed.fork().update(payload).finish();
+ * </pre>
+ * <p>
+ * Instances of this class can be safely shared amongst multiple threads.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <F> The concrete type of {@link Function} captured.
+ */
+public final class Snapshot<F extends Function<F>> {
+
+    /* Our private copy of the state, never updated */
+    private final F prototype;
+
+    /**
+     * Create a new {@link Snapshot} of the specified (already forked)
+     * {@link Function}.
+     *
+     * @see Function#snapshot()
+     */
+    Snapshot(F prototype) {
+        this.prototype = Check.notNull(prototype, "Null prototype");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} associated with this instance.
+     */
+    public Hash getHash() {
+        return prototype.getHash();
+    }
+
+    /**
+     * Return a new {@link Function} whose state is an independent copy of
+     * the state captured by this {@link Snapshot}.
+     */
+    public F fork() {
+        return prototype.fork();
+    }
+
+}
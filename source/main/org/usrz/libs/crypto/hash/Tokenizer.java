@@ -0,0 +1,351 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A <em>tokenizer</em> pseudonymizing identifiers (email addresses, phone
+ * numbers, ...) with a keyed {@linkplain HMAC hash-based message
+ * authentication code}.
+ * <p>
+ * Tokens are the (optionally truncated) HMAC of the <em>UTF-8</em>
+ * encoding of each identifier, written either as raw bytes or
+ * {@linkplain Encoding encoded} as characters in caller-supplied buffers.
+ * <p>
+ * The key is absorbed once in an {@link HMACKey}, whose pooled,
+ * pre-initialized {@link Mac}s are simply reset for each token, rather
+ * than being initialized with the key every time.
+ * <p>
+ * Instances of this class are thread safe and should be long-lived and
+ * shared; they can be used concurrently (for example over
+ * {@linkplain Stream#parallel() parallel streams}).
+ * <p>
+ * Identifiers are tokenized as given: any normalization (like lowercasing
+ * email addresses) must be done by the caller.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class Tokenizer {
+
+    /**
+     * The encodings available for tokens written as characters.
+     */
+    public enum Encoding {
+
+        /** Lower case hexadecimal, two characters per byte. */
+        HEX,
+
+        /** URL-safe Base 64 (RFC 4648, section 5) without padding. */
+        BASE64;
+
+        /**
+         * Return the number of characters needed to encode the specified
+         * number of bytes in this {@link Encoding}.
+         */
+        public int getEncodedLength(int length) {
+            return this == HEX ? length * 2 : (length * 4 + 2) / 3;
+        }
+    };
+
+    /* Characters for our encodings */
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /* Our hash, the length of our tokens and their encoding */
+    private final Hash hash;
+    private final int length;
+    private final Encoding encoding;
+
+    /* Our pre-initialized key */
+    private final HMACKey key;
+
+    /* Per-thread work buffers */
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[hash.getHashLength()];
+        }
+    };
+
+    /**
+     * Create a new {@link Tokenizer} producing full-length, hex-encoded
+     * tokens with the specified {@link Hash} and key.
+     * <p>
+     * If the specified key is empty or <b>null</b> tokens will be computed
+     * with an empty key.
+     */
+    public Tokenizer(Hash hash, byte[] key) {
+        this(hash, key, Check.notNull(hash, "Null hash").getHashLength(), Encoding.HEX);
+    }
+
+    /**
+     * Create a new {@link Tokenizer} producing tokens truncated to the
+     * specified number of bytes with the specified {@link Hash} and key,
+     * and encoded as specified when written as characters.
+     * <p>
+     * If the specified key is empty or <b>null</b> tokens will be computed
+     * with an empty key.
+     */
+    public Tokenizer(Hash hash, byte[] key, int length, Encoding encoding) {
+        this.hash = Check.notNull(hash, "Null hash");
+        this.encoding = Check.notNull(encoding, "Null encoding");
+        if ((length < 1) || (length > hash.getHashLength()))
+            throw new IllegalArgumentException("Invalid token length " + length);
+        this.length = length;
+        this.key = hash.hmacKey(key);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link Hash} used by this {@link Tokenizer}.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Return the {@link Encoding} of tokens written as characters.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Return the length (in bytes) of the tokens produced by this instance.
+     */
+    public int getTokenLength() {
+        return length;
+    }
+
+    /**
+     * Return the length (in characters) of the {@linkplain #getEncoding()
+     * encoded} tokens produced by this instance.
+     */
+    public int getEncodedLength() {
+        return encoding.getEncodedLength(length);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Tokenize the specified identifier, returning its encoded token as a
+     * new {@link String}.
+     */
+    public String tokenize(CharSequence input) {
+        final char[] token = new char[getEncodedLength()];
+        tokenize(input, token, 0);
+        return new String(token);
+    }
+
+    /**
+     * Tokenize the specified identifier, writing its token (as raw bytes)
+     * in the given <code>byte[]</code> at the specified offset.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public void tokenize(CharSequence input, byte[] output, int offset) {
+        Check.notNull(output, "Null output");
+        if ((offset < 0) || (output.length - offset < length))
+            throw new IllegalArgumentException("Buffer too short");
+
+        final byte[] buffer = buffers.get();
+        try {
+            System.arraycopy(hmac(input, buffer), 0, output, offset, length);
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * Tokenize the specified identifier, writing its {@linkplain
+     * #getEncoding() encoded} token in the given <code>char[]</code> at the
+     * specified offset, and returning the number of characters written.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public int tokenize(CharSequence input, char[] output, int offset) {
+        Check.notNull(output, "Null output");
+        final int encodedLength = getEncodedLength();
+        if ((offset < 0) || (output.length - offset < encodedLength))
+            throw new IllegalArgumentException("Buffer too short");
+
+        final byte[] buffer = buffers.get();
+        try {
+            final byte[] token = hmac(input, buffer);
+            if (encoding == Encoding.HEX) {
+                encodeHex(token, length, output, offset);
+            } else {
+                encodeBase64(token, length, output, offset);
+            }
+            return encodedLength;
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * Tokenize all the identifiers in the specified {@link Stream}, returning
+     * a {@link Stream} of their encoded tokens, in the same order.
+     * <p>
+     * If the specified {@link Stream} is {@linkplain Stream#parallel()
+     * parallel}, so will be tokenization.
+     */
+    public Stream<String> tokenize(Stream<? extends CharSequence> inputs) {
+        return Check.notNull(inputs, "Null inputs").map(this::tokenize);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Tokenize all the specified identifiers, writing their tokens (as raw
+     * bytes) one after the other in the specified output array starting at
+     * the given offset.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public void tokenizeAll(List<? extends CharSequence> inputs, byte[] output, int offset) {
+        Check.notNull(output, "Null output");
+        checkBatch(inputs, output.length, offset, length);
+        for (CharSequence input: inputs) {
+            tokenize(input, output, offset);
+            offset += length;
+        }
+    }
+
+    /**
+     * Tokenize all the specified identifiers, writing their {@linkplain
+     * #getEncoding() encoded} tokens one after the other in the specified
+     * output array starting at the given offset.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public void tokenizeAll(List<? extends CharSequence> inputs, char[] output, int offset) {
+        Check.notNull(output, "Null output");
+        final int encodedLength = getEncodedLength();
+        checkBatch(inputs, output.length, offset, encodedLength);
+        for (CharSequence input: inputs) {
+            offset += tokenize(input, output, offset);
+        }
+    }
+
+    /**
+     * Tokenize all the specified identifiers in parallel, writing their
+     * tokens (as raw bytes) one after the other in the specified output
+     * array starting at the given offset.
+     * <p>
+     * Large batches are split across the {@linkplain ForkJoinPool#commonPool()
+     * common fork-join pool}, while small ones are simply
+     * {@linkplain #tokenizeAll(List, byte[], int) tokenized} in the calling
+     * thread.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public void parallelTokenizeAll(List<? extends CharSequence> inputs, byte[] output, int offset) {
+        Check.notNull(output, "Null output");
+        checkBatch(inputs, output.length, offset, length);
+        parallel(inputs, offset, length, (input, position) -> tokenize(input, output, position));
+    }
+
+    /**
+     * Tokenize all the specified identifiers in parallel, writing their
+     * {@linkplain #getEncoding() encoded} tokens one after the other in the
+     * specified output array starting at the given offset.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     * @see #parallelTokenizeAll(List, byte[], int)
+     */
+    public void parallelTokenizeAll(List<? extends CharSequence> inputs, char[] output, int offset) {
+        Check.notNull(output, "Null output");
+        final int encodedLength = getEncodedLength();
+        checkBatch(inputs, output.length, offset, encodedLength);
+        parallel(inputs, offset, encodedLength, (input, position) -> tokenize(input, output, position));
+    }
+
+    /* ====================================================================== */
+
+    /* Check the arguments of our batch methods */
+    private static void checkBatch(List<? extends CharSequence> inputs, int outputLength, int offset, int stride) {
+        Check.notNull(inputs, "Null inputs");
+        if ((offset < 0) || ((long) inputs.size() * stride > outputLength - offset))
+            throw new IllegalArgumentException("Buffer too short");
+    }
+
+    /* Tokenize a batch, possibly in parallel */
+    private static void parallel(List<? extends CharSequence> inputs, int offset, int stride, Sink sink) {
+        final CharSequence[] array = inputs.toArray(new CharSequence[inputs.size()]);
+        Batch.process(array.length, offset, stride, (from, to, position) -> {
+            for (int x = from, p = position; x < to; x ++, p += stride) {
+                sink.tokenize(array[x], p);
+            }
+        });
+    }
+
+    /* Compute the full HMAC of an identifier in the specified buffer */
+    private byte[] hmac(CharSequence input, byte[] buffer) {
+        Check.notNull(input, "Null input");
+        try (HMAC hmac = key.hmac()) {
+            hmac.update(input, UTF8).finish(buffer, 0);
+        }
+        return buffer;
+    }
+
+    /* Hex-encode the first bytes of a token */
+    private static void encodeHex(byte[] token, int length, char[] output, int offset) {
+        for (int x = 0; x < length; x ++) {
+            output[offset ++] = HEX_CHARS[(token[x] >> 4) & 0x0F];
+            output[offset ++] = HEX_CHARS[token[x] & 0x0F];
+        }
+    }
+
+    /* Base64-encode (URL safe, no padding) the first bytes of a token */
+    private static void encodeBase64(byte[] token, int length, char[] output, int offset) {
+        int x = 0;
+        for (; x + 2 < length; x += 3) {
+            final int bits = ((token[x] & 0xFF) << 16) | ((token[x + 1] & 0xFF) << 8) | (token[x + 2] & 0xFF);
+            output[offset ++] = BASE64_CHARS[(bits >> 18) & 0x3F];
+            output[offset ++] = BASE64_CHARS[(bits >> 12) & 0x3F];
+            output[offset ++] = BASE64_CHARS[(bits >>  6) & 0x3F];
+            output[offset ++] = BASE64_CHARS[ bits        & 0x3F];
+        }
+
+        final int remaining = length - x;
+        if (remaining > 0) {
+            final int bits = ((token[x] & 0xFF) << 16) | (remaining > 1 ? (token[x + 1] & 0xFF) << 8 : 0);
+            output[offset ++] = BASE64_CHARS[(bits >> 18) & 0x3F];
+            output[offset ++] = BASE64_CHARS[(bits >> 12) & 0x3F];
+            if (remaining > 1) output[offset] = BASE64_CHARS[(bits >> 6) & 0x3F];
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Where tokens of a batch are written */
+    private interface Sink {
+        void tokenize(CharSequence input, int position);
+    }
+
+}
@@ -15,16 +15,15 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.json;
 
-import static org.usrz.libs.crypto.utils.CryptoUtils.safeEncode;
 import static org.usrz.libs.utils.Check.notNull;
 
-import java.util.Arrays;
-
 import org.usrz.libs.configurations.Password;
 import org.usrz.libs.crypto.kdf.KDF;
 import org.usrz.libs.crypto.kdf.KDFSpec;
+import org.usrz.libs.crypto.utils.BreachedPasswords;
 import org.usrz.libs.crypto.utils.ClosingDestroyable;
 import org.usrz.libs.crypto.utils.CryptoUtils;
+import org.usrz.libs.crypto.utils.SecretBuffer;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -49,17 +48,31 @@ public class HashedPassword implements ClosingDestroyable {
 
     @JsonIgnore
     public HashedPassword(KDF kdf, Password password) {
-        byte[] bytes = null;
-        try {
-            bytes = safeEncode(password.get(), false);
+        try (SecretBuffer buffer = SecretBuffer.encode(password.get())) {
             spec = kdf.getKDFSpec();
             salt = CryptoUtils.randomBytes(spec.getDerivedKeyLength());
-            hash = kdf.deriveKey(bytes, salt);
-        } finally {
-            CryptoUtils.destroyArray(bytes);
+            hash = kdf.deriveKey(buffer.array(), salt);
         }
     }
 
+    /**
+     * Create a new {@link HashedPassword}, rejecting passwords found in
+     * the specified {@link BreachedPasswords} index.
+     *
+     * @throws IllegalArgumentException If the password was breached.
+     */
+    @JsonIgnore
+    public HashedPassword(KDF kdf, Password password, BreachedPasswords breached) {
+        this(kdf, checkBreached(password, breached));
+    }
+
+    /* Check that a password was not breached */
+    private static Password checkBreached(Password password, BreachedPasswords breached) {
+        if (notNull(breached, "Null breached passwords index").contains(password.get()))
+            throw new IllegalArgumentException("Password found in breached passwords");
+        return password;
+    }
+
     /* ====================================================================== */
 
     @JsonProperty("spec")
@@ -89,16 +102,9 @@ public class HashedPassword implements ClosingDestroyable {
         if (!kdf.getKDFSpec().equals(getKDFSpec()))
             throw new IllegalArgumentException("KDF spec mismatch");
 
-        /* Hash the password */
-        byte[] bytes = null;
-        byte[] check = null;
-        try {
-            bytes = safeEncode(password.get(), false);
-            check = kdf.deriveKey(bytes, getSalt());
-            return Arrays.equals(check, getHash());
-        } finally {
-            CryptoUtils.destroyArray(bytes);
-            CryptoUtils.destroyArray(check);
+        /* Hash the password and compare (in constant time) */
+        try (SecretBuffer buffer = SecretBuffer.encode(password.get())) {
+            return kdf.verifyKey(buffer.array(), getSalt(), getHash());
         }
     }
 
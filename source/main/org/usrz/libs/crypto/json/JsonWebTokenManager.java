@@ -19,11 +19,18 @@ import static org.usrz.libs.utils.Charsets.UTF8;
 import static org.usrz.libs.utils.codecs.Base64Codec.Alphabet.URL_SAFE;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.usrz.libs.crypto.hash.HMAC;
+import org.usrz.libs.crypto.hash.HMACKey;
 import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.crypto.hash.Snapshot;
 import org.usrz.libs.utils.Check;
 import org.usrz.libs.utils.codecs.Base64Codec;
 
@@ -36,6 +43,11 @@ public class JsonWebTokenManager {
     private final Hash hash;
     private final ObjectMapper mapper;
     private final String header;
+    private final byte[] headerBytes;
+
+    /* Snapshots of the HMACs of our signing keys fed with our header, keyed
+     * weakly by key identity (snapshots do not refer back to their keys) */
+    private final Map<HMACKey, Snapshot<HMAC>> primed = Collections.synchronizedMap(new WeakHashMap<>());
 
     public JsonWebTokenManager(Hash hash, ObjectMapper mapper) {
         codec = new Base64Codec(URL_SAFE, false);
@@ -53,23 +65,58 @@ public class JsonWebTokenManager {
             final String string = mapper.writeValueAsString(header);
             final String encoded = codec.encode(string.getBytes(UTF8));
             this.header = encoded + ".";
+            headerBytes = this.header.getBytes(UTF8);
         } catch (JsonProcessingException exception) {
             throw new IllegalStateException("Unable to encode JWT header", exception);
         }
     }
 
     public String create(Object object, byte[] key) {
+        return create(object, () -> hash.hmac(key).update(headerBytes));
+    }
+
+    public String create(Object object, HMACKey key) {
+        Check.notNull(key, "Null key");
+        if (key.getHash() != hash)
+            throw new IllegalArgumentException("Key hash " + key.getHash() + " does not match " + hash);
+
+        /* Fork the HMAC already fed with our header, skipping its processing */
+        Snapshot<HMAC> snapshot = primed.get(key);
+        if (snapshot == null) {
+            try (HMAC hmac = key.hmac()) {
+                snapshot = hmac.update(headerBytes).snapshot();
+            }
+            primed.put(key, snapshot);
+        }
+        return create(object, snapshot::fork);
+    }
+
+    /* Create a token signed by an HMAC already fed with our header */
+    private String create(Object object, Supplier<HMAC> hmac) {
         try {
-            final String payload = mapper.writeValueAsString(object);
-            final String encoded = header + codec.encode(payload.getBytes(UTF8));
-            final byte[] signature = hash.hmac(key).update(encoded.getBytes(UTF8)).finish();
-            return encoded + "." + codec.encode(signature);
+            final String payload = codec.encode(mapper.writeValueAsString(object).getBytes(UTF8));
+            try (HMAC signer = hmac.get()) {
+                final byte[] signature = signer.update(payload.getBytes(UTF8)).finish();
+                return header + payload + "." + codec.encode(signature);
+            }
         } catch (JsonProcessingException exception) {
             throw new IllegalStateException("Unable to encode token payload", exception);
         }
     }
 
     public <T> T parse(String token, byte[] key, Class<T> type) {
+        return parse(token, type, (hash) -> hash.hmac(key));
+    }
+
+    public <T> T parse(String token, HMACKey key, Class<T> type) {
+        Check.notNull(key, "Null key");
+        return parse(token, type, (hash) -> {
+            if (key.getHash() == hash) return key.hmac();
+            throw new IllegalArgumentException("Key hash " + key.getHash() + " does not match algorithm for token \"" + token + "\"");
+        });
+    }
+
+    private <T> T parse(String token, Class<T> type, Function<Hash, HMAC> hmac) {
         final StringTokenizer tokenizer = new StringTokenizer(token, ".");
 
         /* Basic parsing of the token */
@@ -110,8 +157,11 @@ public class JsonWebTokenManager {
         }
 
         /* Signature validation and de-serialization */
-        final byte[] verified = hash.hmac(key).update(signedPart).finish();
-        if (Arrays.equals(signature, verified)) try {
+        final boolean verified;
+        try (HMAC verifier = hmac.apply(hash)) {
+            verified = verifier.update(signedPart).verify(signature);
+        }
+        if (verified) try {
             return mapper.readValue(payload, type);
         } catch (IOException exception) {
             throw new IllegalArgumentException("Unable to parse payload contents for token \"" + token + "\"");
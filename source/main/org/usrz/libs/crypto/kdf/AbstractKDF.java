@@ -15,6 +15,9 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.kdf;
 
+import java.util.Arrays;
+
+import org.usrz.libs.crypto.utils.CryptoUtils;
 import org.usrz.libs.utils.Check;
 
 /**
@@ -24,6 +27,14 @@ import org.usrz.libs.utils.Check;
  */
 public abstract class AbstractKDF implements KDF {
 
+    /* Per-thread buffers where keys are derived when verifying (package-private for tests) */
+    static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64];
+        }
+    };
+
     /** The derived key length to return. */
     protected final int derivedKeyLength;
     /** The {@link KDFSpec} associated with this instance. */
@@ -76,6 +87,27 @@ public abstract class AbstractKDF implements KDF {
 
     }
 
+    @Override
+    public final boolean verifyKey(byte[] password, byte[] salt, byte[] expected, int offset) {
+
+        /* Check for null parameters */
+        if (password == null) throw new NullPointerException("Null password");
+        if (salt == null) throw new NullPointerException("Null salt");
+        if (expected == null) throw new NullPointerException("Null expected key");
+
+        /* Derive in our (reused) buffer, and compare in constant time */
+        byte[] buffer = buffers.get();
+        if (buffer.length < derivedKeyLength) buffers.set(buffer = new byte[derivedKeyLength]);
+        try {
+            computeKey(password, salt, buffer, 0);
+            if ((offset < 0) || (expected.length - offset < derivedKeyLength)) return false;
+            return CryptoUtils.isEqual(buffer, 0, expected, offset, derivedKeyLength);
+        } finally {
+            /* Some functions (like OpenSSL's) fill the whole buffer: wipe it all */
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
     /**
      * Method to be implemented by concrete classes to actually compute the
      * derived key after parameters have been checked.
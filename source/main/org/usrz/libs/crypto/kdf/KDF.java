@@ -20,6 +20,7 @@ import static org.usrz.libs.crypto.hash.Hash.SHA1;
 import static org.usrz.libs.crypto.hash.Hash.SHA256;
 
 import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.crypto.utils.CryptoUtils;
 import org.usrz.libs.utils.Check;
 
 /**
@@ -102,4 +103,40 @@ public interface KDF {
     public void deriveKey(byte[] password, byte[] salt, byte[] output, int offset)
     throws NullPointerException, IllegalArgumentException;
 
+    /**
+     * Derive a key from the specified password and <i>salt</i> and compare
+     * it, in constant time, with the specified <code>byte[]</code>, which
+     * must be exactly as long as the derived key.
+     *
+     * @throws NullPointerException If password, <i>salt</i> or expected key
+     *                              were <b>null</b>.
+     */
+    public default boolean verifyKey(byte[] password, byte[] salt, byte[] expected)
+    throws NullPointerException {
+        if (expected == null) throw new NullPointerException("Null expected key");
+        final boolean length = expected.length == getKDFSpec().getDerivedKeyLength();
+        return verifyKey(password, salt, expected, 0) & length;
+    }
+
+    /**
+     * Derive a key from the specified password and <i>salt</i> and compare
+     * it, in constant time, with the bytes of the specified
+     * <code>byte[]</code> starting at the given offset, returning
+     * <b>false</b> if not enough bytes are available.
+     *
+     * @throws NullPointerException If password, <i>salt</i> or expected key
+     *                              were <b>null</b>.
+     */
+    public default boolean verifyKey(byte[] password, byte[] salt, byte[] expected, int offset)
+    throws NullPointerException {
+        if (expected == null) throw new NullPointerException("Null expected key");
+        final byte[] key = deriveKey(password, salt);
+        try {
+            if ((offset < 0) || (expected.length - offset < key.length)) return false;
+            return CryptoUtils.isEqual(key, 0, expected, offset, key.length);
+        } finally {
+            CryptoUtils.zeroArray(key);
+        }
+    }
+
 }
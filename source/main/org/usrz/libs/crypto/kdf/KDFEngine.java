@@ -0,0 +1,32 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.kdf;
+
+/**
+ * An enumeration of the engines capable of computing a {@link KDF}.
+ *
+ * @see KDFEngineRegistry
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public enum KDFEngine {
+
+    /** The pure-Java implementation, always available. */
+    JAVA,
+
+    /** The native (JNI) implementation, available on some platforms only. */
+    NATIVE;
+
+}
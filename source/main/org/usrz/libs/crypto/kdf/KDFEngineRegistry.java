@@ -0,0 +1,201 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.kdf;
+
+import static org.usrz.libs.crypto.kdf.KDFEngine.JAVA;
+import static org.usrz.libs.crypto.kdf.KDFEngine.NATIVE;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.crypto.utils.CryptoUtils;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.Check;
+
+/**
+ * A registry selecting the fastest {@link KDFEngine} for a {@link KDFSpec}.
+ * <p>
+ * Calling into the native library has a fixed cost (arrays are copied and
+ * buffers allocated on every call) which, for computationally cheap specs,
+ * can easily outweigh the speed of the native code itself.
+ * <p>
+ * The first time a {@link KDFSpec} of a given <em>parameter class</em> (its
+ * {@linkplain KDF.Function function}, {@linkplain Hash hash} and the order
+ * of magnitude of its cost) is seen, this registry will time both engines,
+ * verify they produce the same key, and remember the fastest one.
+ * <p>
+ * Specs too expensive to time are always routed to the native engine (when
+ * available), as at that point the cost of the call is irrelevant.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class KDFEngineRegistry {
+
+    private static final Log log = new Log(KDFEngineRegistry.class);
+
+    /* Specs whose cost exceeds this will not be benchmarked */
+    private static final long BENCHMARK_LIMIT = 1L << 17;
+    /* The number of timed rounds for each engine */
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    /* Our selections, keyed by parameter class */
+    private static final Map<String, KDFEngine> selections = new ConcurrentHashMap<>();
+
+    private KDFEngineRegistry() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the {@link KDFEngine} selected for the specified {@link KDFSpec},
+     * benchmarking the available engines if this is the first time a spec of
+     * the same parameter class is seen.
+     */
+    public static KDFEngine getEngine(KDFSpec spec) {
+        Check.notNull(spec, "Null spec");
+
+        /* No native support, no choice, no need to remember */
+        if (!isNativeAvailable(spec)) return JAVA;
+
+        /* Too expensive to measure, call overhead is irrelevant */
+        if (getCost(spec) > BENCHMARK_LIMIT) return NATIVE;
+
+        final String parameterClass = getParameterClass(spec);
+        final KDFEngine selected = selections.get(parameterClass);
+        if (selected != null) return selected;
+
+        /*
+         * Benchmark outside of the map: "computeIfAbsent" would hold a lock
+         * (possibly shared with other parameter classes) while timing KDFs.
+         * Concurrent callers might both benchmark the same parameter class,
+         * but all of them will return the first selection stored.
+         */
+        final KDFEngine engine = select(parameterClass, spec);
+        final KDFEngine previous = selections.putIfAbsent(parameterClass, engine);
+        return previous != null ? previous : engine;
+    }
+
+    /**
+     * Return an unmodifiable snapshot of all the selections made so far,
+     * keyed by a human readable description of their parameter class.
+     */
+    public static Map<String, KDFEngine> getSelections() {
+        return Collections.unmodifiableMap(new TreeMap<>(selections));
+    }
+
+    /**
+     * Forget all the selections made so far.
+     */
+    public static void reset() {
+        selections.clear();
+    }
+
+    /* ====================================================================== */
+
+    /* Create a KDF for the given spec running on the given engine */
+    static KDF newInstance(KDFSpec spec, KDFEngine engine) {
+        switch (spec.getFunction()) {
+            case OPENSSL: return new OpenSSLKDF((OpenSSLKDFSpec) spec);
+            case PBKDF2:  return new PBKDF2((PBKDF2Spec) spec, engine);
+            case SCRYPT:  return new SCrypt((SCryptSpec) spec, engine);
+        }
+        throw new UnsupportedOperationException("Invalid KDF function " + spec.getFunction());
+    }
+
+    /* Check if there is a native engine for the given spec */
+    static boolean isNativeAvailable(KDFSpec spec) {
+        switch (spec.getFunction()) {
+            case SCRYPT: return SCryptNativeHelper.isAvailable()
+                             && spec.getHash() == Hash.SHA256;
+            case PBKDF2: return SCryptNativeHelper.isPBKDF2Available()
+                             && spec.getHash() == Hash.SHA256;
+            default: return false;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A rough estimate of the cost of the KDF */
+    private static long getCost(KDFSpec spec) {
+        switch (spec.getFunction()) {
+            case SCRYPT:
+                final SCryptSpec scrypt = (SCryptSpec) spec;
+                return (long) scrypt.getIterations()
+                            * scrypt.getBlockSize()
+                            * scrypt.getParallelization();
+            case PBKDF2:
+                return ((PBKDF2Spec) spec).getIterations();
+            default:
+                return 1;
+        }
+    }
+
+    /* Describe the parameter class of a spec: function, hash and cost */
+    private static String getParameterClass(KDFSpec spec) {
+        final long cost = getCost(spec);
+        final int magnitude = 63 - Long.numberOfLeadingZeros(cost);
+        return spec.getFunction() + "[" + spec.getHash() + ",cost=2^" + magnitude + "]";
+    }
+
+    /* ====================================================================== */
+
+    /* Benchmark both engines and select the fastest */
+    private static KDFEngine select(String parameterClass, KDFSpec spec) {
+        try {
+            final KDF javaKDF = newInstance(spec, JAVA);
+            final KDF nativeKDF = newInstance(spec, NATIVE);
+
+            final byte[] password = CryptoUtils.randomBytes(16);
+            final byte[] salt = CryptoUtils.randomBytes(16);
+
+            /* Warm up, and check that we get the same results */
+            final byte[] javaKey = javaKDF.deriveKey(password, salt);
+            final byte[] nativeKey = nativeKDF.deriveKey(password, salt);
+            if (!Arrays.equals(javaKey, nativeKey)) {
+                log.error("Native and Java engines disagree for %s, selecting %s", parameterClass, JAVA);
+                return JAVA;
+            }
+
+            final long javaTime = time(javaKDF, password, salt);
+            final long nativeTime = time(nativeKDF, password, salt);
+            final KDFEngine engine = nativeTime <= javaTime ? NATIVE : JAVA;
+
+            log.info("Selected %s engine for %s (native %d ns, java %d ns)", engine, parameterClass, nativeTime, javaTime);
+            return engine;
+
+        } catch (RuntimeException exception) {
+            log.error(exception, "Unable to benchmark engines for %s, selecting %s", parameterClass, JAVA);
+            return JAVA;
+        }
+    }
+
+    /* Return the fastest of a few runs of the KDF, in nanoseconds */
+    private static long time(KDF kdf, byte[] password, byte[] salt) {
+        final byte[] output = new byte[kdf.getKDFSpec().getDerivedKeyLength()];
+        long fastest = Long.MAX_VALUE;
+        for (int x = 0; x < BENCHMARK_ROUNDS; x ++) {
+            final long start = System.nanoTime();
+            kdf.deriveKey(password, salt, output, 0);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+}
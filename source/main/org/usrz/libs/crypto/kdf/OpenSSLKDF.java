@@ -53,27 +53,28 @@ public class OpenSSLKDF extends AbstractKDF {
 
     @Override
     protected void computeKey(byte[] password, byte[] salt, byte[] output, int offset) {
-        final MD digest = hash.digest();
-        final int length = digest.getHashLength();
+        try (MD digest = hash.digest()) {
+            final int length = digest.getHashLength();
 
-        final byte[] buffer = new  byte[length];
-        while (true) {
+            final byte[] buffer = new  byte[length];
+            while (true) {
 
-            /* Add the key and salt */
-            digest.update(password);
-            digest.update(salt, 0, salt.length > 8? 8: salt.length);
+                /* Add the key and salt */
+                digest.update(password);
+                digest.update(salt, 0, salt.length > 8? 8: salt.length);
 
-            /* Calculate the digest and copy it in the result buffer */
-            digest.finish(buffer, 0);
-            final int x = output.length - offset;
-            final int needed = x > length ? length : x;
-            System.arraycopy(buffer, 0, output, offset, needed);
+                /* Calculate the digest and copy it in the result buffer */
+                digest.finish(buffer, 0);
+                final int x = output.length - offset;
+                final int needed = x > length ? length : x;
+                System.arraycopy(buffer, 0, output, offset, needed);
 
-            /* Need more data? */
-            if ((offset += length) >= output.length) break;
+                /* Need more data? */
+                if ((offset += length) >= output.length) break;
 
-            /* Prepare for the next iteration */
-            digest.update(buffer);
+                /* Prepare for the next iteration */
+                digest.update(buffer);
+            }
         }
     }
 
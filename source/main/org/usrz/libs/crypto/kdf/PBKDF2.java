@@ -33,6 +33,8 @@ public class PBKDF2 extends AbstractKDF {
     private final Hash hash;
     /* The number of iterations to use. */
     private final int iterations;
+    /* Whether to use the native implementation or the Java one */
+    private final boolean useNative;
 
     /* ====================================================================== */
 
@@ -64,14 +66,39 @@ public class PBKDF2 extends AbstractKDF {
 
     /**
      * Create a new {@link PBKDF2} from the specified {@link PBKDF2Spec}.
+     * <p>
+     * The {@linkplain KDFEngine engine} computing keys will be the one
+     * {@linkplain KDFEngineRegistry#getEngine(KDFSpec) selected} by the
+     * {@link KDFEngineRegistry}: the native one is available only for
+     * {@linkplain Hash#SHA256 SHA256}.
      */
     public PBKDF2(PBKDF2Spec kdfSpec) {
+        this(kdfSpec, KDFEngineRegistry.getEngine(kdfSpec));
+    }
+
+    /**
+     * Create a new {@link PBKDF2} from the specified {@link PBKDF2Spec}
+     * computing keys with the specified {@link KDFEngine} (if available).
+     */
+    PBKDF2(PBKDF2Spec kdfSpec, KDFEngine engine) {
         super(kdfSpec);
 
         hash = kdfSpec.getHash();
         iterations = kdfSpec.getIterations();
 
         if (iterations < 1) throw new IllegalArgumentException("Iterations must be greater than zero");
+
+        /* Check whether we want (and have) the native helper available */
+        useNative = (engine == KDFEngine.NATIVE) && KDFEngineRegistry.isNativeAvailable(kdfSpec);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return a flag indicating whether native (JNI) processing is enabled.
+     */
+    boolean isNative() {
+        return useNative;
     }
 
     /* ====================================================================== */
@@ -79,36 +106,43 @@ public class PBKDF2 extends AbstractKDF {
     @Override
     public void computeKey(byte[] password, byte[] salt, byte[] output, int offset) {
 
+        /* Native PBKDF2 (only for SHA256) if we have it */
+        if (useNative && SCryptNativeHelper.isPBKDF2Verified()) {
+            SCryptNativeHelper.computePBKDF2(password, salt, output, offset, derivedKeyLength, iterations);
+            return;
+        }
+
         /* Get a hold on our HMAC instance */
-        final HMAC hmac = hash.hmac(password);
-
-        /* Initial calculations */
-        final int hmacLength = hmac.getHashLength();
-        final int rounds = (int) Math.ceil((double) derivedKeyLength / hmacLength);
-        final int r = derivedKeyLength - (rounds - 1) * hmacLength;
-
-        /* Prepare some buffers */
-        final byte[] intbuf = new byte[4]; // integer into a byte[]
-        final byte[] u = new byte[hmacLength];
-        final byte[] t = new byte[hmacLength];
-
-        /* Do our rounds */
-        for (int round = 1; round <= rounds; round ++) {
-            /* Update our hmac with the salt and round number */
-            intbuf[0] = (byte) (round >> 24 & 0xff);
-            intbuf[1] = (byte) (round >> 16 & 0xff);
-            intbuf[2] = (byte) (round >>  8 & 0xff);
-            intbuf[3] = (byte) (round       & 0xff);
-            hmac.update(salt).update(intbuf).finish(u, 0);
-
-            /* Save our digest and repeat N iterations */
-            arraycopy(u, 0, t, 0, hmacLength);
-            for (int iteration = 1; iteration < iterations; iteration++) {
-                hmac.update(u).finish(u, 0);
-                for (int pos = 0; pos < hmacLength; pos++) t[pos] ^= u[pos];
+        try (HMAC hmac = hash.hmac(password)) {
+
+            /* Initial calculations */
+            final int hmacLength = hmac.getHashLength();
+            final int rounds = (int) Math.ceil((double) derivedKeyLength / hmacLength);
+            final int r = derivedKeyLength - (rounds - 1) * hmacLength;
+
+            /* Prepare some buffers */
+            final byte[] intbuf = new byte[4]; // integer into a byte[]
+            final byte[] u = new byte[hmacLength];
+            final byte[] t = new byte[hmacLength];
+
+            /* Do our rounds */
+            for (int round = 1; round <= rounds; round ++) {
+                /* Update our hmac with the salt and round number */
+                intbuf[0] = (byte) (round >> 24 & 0xff);
+                intbuf[1] = (byte) (round >> 16 & 0xff);
+                intbuf[2] = (byte) (round >>  8 & 0xff);
+                intbuf[3] = (byte) (round       & 0xff);
+                hmac.update(salt).update(intbuf).finish(u, 0);
+
+                /* Save our digest and repeat N iterations */
+                arraycopy(u, 0, t, 0, hmacLength);
+                for (int iteration = 1; iteration < iterations; iteration++) {
+                    hmac.update(u).finish(u, 0);
+                    for (int pos = 0; pos < hmacLength; pos++) t[pos] ^= u[pos];
+                }
+
+                arraycopy(t, 0, output, offset + ((round - 1) * hmacLength), (round == rounds ? r : hmacLength));
             }
-
-            arraycopy(t, 0, output, offset + ((round - 1) * hmacLength), (round == rounds ? r : hmacLength));
         }
     }
 
@@ -18,7 +18,11 @@ package org.usrz.libs.crypto.kdf;
 import static java.lang.Integer.MAX_VALUE;
 import static java.lang.System.arraycopy;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.utils.Check;
 
 /**
  * The implementation of <i>Colin Percival</i>'s SCrypt key derivation function.
@@ -47,6 +51,8 @@ public class SCrypt extends AbstractKDF {
     private final PBKDF2 kdf2;
     /* Whether to use the native implementation or the Java one */
     private final boolean useNative;
+    /* The number of threads the native implementation can use */
+    private final int threads;
 
     /**
      * Create a {@link SCrypt} with its specified initialization parameters.
@@ -68,9 +74,47 @@ public class SCrypt extends AbstractKDF {
 
     /**
      * Create a new {@link SCrypt} from the specified {@link SCryptSpec}.
+     * <p>
+     * The {@linkplain KDFEngine engine} computing keys will be the one
+     * {@linkplain KDFEngineRegistry#getEngine(KDFSpec) selected} by the
+     * {@link KDFEngineRegistry}.
      */
     public SCrypt(SCryptSpec kdfSpec) {
-        super(kdfSpec);
+        this(kdfSpec, KDFEngineRegistry.getEngine(validate(kdfSpec, 1)), 1);
+    }
+
+    /**
+     * Create a new {@link SCrypt} from the specified {@link SCryptSpec}
+     * whose native implementation will compute the {@code p} independent
+     * lanes of the function on up to the specified number of threads.
+     * <p>
+     * Each thread allocates its own {@code 128 * r * N} bytes of memory, and
+     * a single key derivation will use several cores: this is useful when
+     * the latency of each derivation matters more than the overall throughput.
+     * The pure Java implementation always computes lanes sequentially.
+     *
+     * @throws IllegalArgumentException If the number of threads was less
+     *                                  than one.
+     */
+    public SCrypt(SCryptSpec kdfSpec, int threads) {
+        this(kdfSpec, KDFEngineRegistry.getEngine(validate(kdfSpec, threads)), threads);
+    }
+
+    /**
+     * Create a new {@link SCrypt} from the specified {@link SCryptSpec}
+     * computing keys with the specified {@link KDFEngine} (if available).
+     */
+    SCrypt(SCryptSpec kdfSpec, KDFEngine engine) {
+        this(kdfSpec, engine, 1);
+    }
+
+    /**
+     * Create a new {@link SCrypt} from the specified {@link SCryptSpec}
+     * computing keys with the specified {@link KDFEngine} (if available)
+     * on up to the specified number of (native) threads.
+     */
+    SCrypt(SCryptSpec kdfSpec, KDFEngine engine, int threads) {
+        super(validate(kdfSpec, threads));
 
         /* Store our parameters */
         iterations = kdfSpec.getIterations();
@@ -78,24 +122,36 @@ public class SCrypt extends AbstractKDF {
         parallelization = kdfSpec.getParallelization();
         blockSizeTimes128 = blockSize * 128;
 
-        /* Validate parameters */
+        /* No point in having more threads than lanes */
+        this.threads = Math.min(threads, parallelization);
+
+        /* Check whether we want (and have) the native helper available */
+        useNative = (engine == KDFEngine.NATIVE) && KDFEngineRegistry.isNativeAvailable(kdfSpec);
+
+        /* Build our PKCS2[SHA256] (or whatever else) instances, those will be
+         * used also should the native library fail its (lazy) self-test */
+        final Hash hash = kdfSpec.getHash();
+        kdf1 = new PBKDF2(new PBKDF2Spec(hash, parallelization * blockSizeTimes128, 1), KDFEngine.JAVA); // initial pwd/salt
+        kdf2 = new PBKDF2(new PBKDF2Spec(hash, derivedKeyLength, 1), KDFEngine.JAVA); // build final key
+
+    }
+
+    /* Validate parameters before any engine gets selected for them */
+    private static SCryptSpec validate(SCryptSpec kdfSpec, int threads) {
+        Check.notNull(kdfSpec, "Null spec");
+        final int iterations = kdfSpec.getIterations();
+        final int blockSize = kdfSpec.getBlockSize();
+        final int parallelization = kdfSpec.getParallelization();
+
         if (iterations < 2 || (iterations & (iterations - 1)) != 0)
             throw new IllegalArgumentException("Iterations (CPU/Memory cost) must be a power of 2 greater than 1");
         if (iterations > MAX_VALUE / 128 / blockSize)
             throw new IllegalArgumentException("Iterations (CPU/Memory cost) is too large for given block size");
         if (blockSize > MAX_VALUE / 128 / parallelization)
             throw new IllegalArgumentException("Block size too large for given parallelization");
-
-        /* Check whether we have the native helper available */
-        if (useNative = SCryptNativeHelper.isAvailable()) {
-            kdf1 = kdf2 = null;
-        } else {
-            /* Build our PKCS2[SHA256] (or whatever else) instances */
-            final Hash hash = kdfSpec.getHash();
-            kdf1 = new PBKDF2(hash, 1, parallelization * blockSizeTimes128); // initial pwd/salt
-            kdf2 = new PBKDF2(hash, 1, derivedKeyLength); // build final key
-        }
-
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads must be greater than zero");
+        return kdfSpec;
     }
 
     /* ====================================================================== */
@@ -103,10 +159,10 @@ public class SCrypt extends AbstractKDF {
     @Override
     protected void computeKey(byte[] password, byte[] salt, byte[] output, int offset) {
 
-        if (useNative) {
+        if (useNative && SCryptNativeHelper.isVerified()) {
 
             /* Just invoke the native helper */
-            SCryptNativeHelper.scrypt(password, salt, output, offset, derivedKeyLength, iterations, blockSize, parallelization);
+            SCryptNativeHelper.compute(password, salt, output, offset, derivedKeyLength, iterations, blockSize, parallelization, threads);
 
         } else {
 
@@ -121,6 +177,56 @@ public class SCrypt extends AbstractKDF {
         }
     }
 
+    /**
+     * Derive a key from the remaining bytes of the specified password and
+     * <i>salt</i> {@link ByteBuffer}s, and write it in the output buffer.
+     * <p>
+     * When the native library is invoked through the <em>Foreign Function
+     * and Memory</em> API, <em>direct</em> buffers are handed to it as they
+     * are, without copying any data on or off the Java heap.
+     *
+     * @throws NullPointerException If password, <i>salt</i> or output buffer
+     *                              were <b>null</b>.
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public void deriveKey(ByteBuffer password, ByteBuffer salt, ByteBuffer output)
+    throws NullPointerException, IllegalArgumentException {
+
+        /* Check for null parameters */
+        if (password == null) throw new NullPointerException("Null password");
+        if (salt == null) throw new NullPointerException("Null salt");
+        if (output == null) throw new NullPointerException("Null output");
+
+        /* Check the space we have in our output */
+        if (output.remaining() < derivedKeyLength)
+            throw new IllegalArgumentException("Buffer too short");
+
+        if (useNative && SCryptNativeHelper.isVerified()) {
+
+            /* Limit the output to our derived key length */
+            final ByteBuffer buffer = output.duplicate();
+            buffer.limit(buffer.position() + derivedKeyLength);
+            SCryptNativeHelper.compute(password, salt, buffer, iterations, blockSize, parallelization, threads);
+            output.position(buffer.position());
+
+        } else {
+
+            /* Copy data in arrays, and go the normal way */
+            final byte[] passwordBytes = new byte[password.remaining()];
+            final byte[] saltBytes = new byte[salt.remaining()];
+            final byte[] outputBytes = new byte[derivedKeyLength];
+            try {
+                password.get(passwordBytes);
+                salt.get(saltBytes);
+                computeKey(passwordBytes, saltBytes, outputBytes, 0);
+                output.put(outputBytes);
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+                Arrays.fill(outputBytes, (byte) 0);
+            }
+        }
+    }
+
     /**
      * Return a flag indicating whether native (JNI) processing is enabled.
      */
@@ -128,6 +234,13 @@ public class SCrypt extends AbstractKDF {
         return useNative;
     }
 
+    /**
+     * Return the number of threads the native implementation can use.
+     */
+    int getThreads() {
+        return threads;
+    }
+
     /**
      * Evaluate (roughly) how much memory will be used to compute the key.
      */
@@ -0,0 +1,286 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.kdf;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A binding invoking the native {@code crypto_scrypt} function through the
+ * <em>Foreign Function and Memory</em> API ({@code java.lang.foreign}).
+ * <p>
+ * Unlike our JNI binding, which copies password and salt, allocates the
+ * output buffer and copies the result back on every call, this binding
+ * passes memory segments straight to {@code crypto_scrypt}: direct
+ * {@link ByteBuffer}s are never copied, and on JDKs supporting
+ * <em>critical</em> downcalls heap arrays are passed without copies for
+ * short-running computations.
+ * <p>
+ * As this library targets Java 8, the whole API is accessed reflectively
+ * and all the per-call work is done through pre-built {@link MethodHandle}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class SCryptForeignBinding {
+
+    private static final Log log = new Log(SCryptForeignBinding.class);
+
+    /* Computations cheaper than this (N * r * p) can pin heap arrays */
+    private static final long CRITICAL_LIMIT = 1L << 17;
+
+    /* (password, passwordLength, salt, saltLength, N, r, p, output, outputLength) */
+    private static final MethodType SCRYPT_TYPE = methodType(int.class,
+            Object.class, long.class, Object.class, long.class,
+            long.class, int.class, int.class, Object.class, long.class);
+    /* (password, passwordLength, salt, saltLength, N, r, p, output, outputLength, threads) */
+    private static final MethodType SCRYPT_THREADS_TYPE = SCRYPT_TYPE.appendParameterTypes(int.class);
+
+    /* The crypto_scrypt(...) downcall handles, critical might be null */
+    private final MethodHandle scrypt;
+    private final MethodHandle scryptCritical;
+    /* The crypto_scrypt_threads(...) downcall handle, might be null */
+    private final MethodHandle scryptThreads;
+
+    /* MemorySegment.ofArray(...) and ofBuffer(...) */
+    private final MethodHandle ofArray;
+    private final MethodHandle ofBuffer;
+    /* MemorySegment.asSlice(...), copyFrom(...) and fill(...) */
+    private final MethodHandle asSlice;
+    private final MethodHandle copyFrom;
+    private final MethodHandle fill;
+    /* Arena.ofConfined(), allocate(...) and close() */
+    private final MethodHandle ofConfined;
+    private final MethodHandle allocate;
+    private final MethodHandle close;
+
+    /* ====================================================================== */
+
+    private SCryptForeignBinding()
+    throws ReflectiveOperationException {
+        final Lookup lookup = MethodHandles.lookup();
+
+        final Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+        final Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+        final Class<?> symbolLookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+        final Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+        final Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+        final Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+        final Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+        final Class<?> allocatorClass = Class.forName("java.lang.foreign.SegmentAllocator");
+        final Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+
+        /* Look for "crypto_scrypt" in the libraries loaded by our class loader */
+        final Object symbol;
+        final Optional<?> threadsSymbol;
+        try {
+            final Object symbols = lookup.findStatic(symbolLookupClass, "loaderLookup", methodType(symbolLookupClass)).invoke();
+            final java.lang.reflect.Method find = symbolLookupClass.getMethod("find", String.class);
+            final Optional<?> optional = (Optional<?>) find.invoke(symbols, "crypto_scrypt");
+            symbol = optional.orElseThrow(() -> new UnsatisfiedLinkError("Symbol \"crypto_scrypt\" not found"));
+            threadsSymbol = (Optional<?>) find.invoke(symbols, "crypto_scrypt_threads");
+        } catch (ReflectiveOperationException | RuntimeException | Error exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException("Unable to lookup native symbols", throwable);
+        }
+
+        /* int crypto_scrypt(uint8_t *, size_t, uint8_t *, size_t, uint64_t, uint32_t, uint32_t, uint8_t *, size_t) */
+        final Object INT = valueLayoutClass.getField("JAVA_INT").get(null);
+        final Object LONG = valueLayoutClass.getField("JAVA_LONG").get(null);
+        final Object ADDRESS = valueLayoutClass.getField("ADDRESS").get(null);
+        final Object arguments = Array.newInstance(layoutClass, 9);
+        final Object[] layouts = { ADDRESS, LONG, ADDRESS, LONG, LONG, INT, INT, ADDRESS, LONG };
+        for (int x = 0; x < layouts.length; x ++) Array.set(arguments, x, layouts[x]);
+        final java.lang.reflect.Method of = descriptorClass.getMethod("of", layoutClass, arguments.getClass());
+        final Object descriptor = of.invoke(null, INT, arguments);
+
+        /* Create our downcall handles */
+        final Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+        final Class<?> optionsClass = Array.newInstance(optionClass, 0).getClass();
+        final java.lang.reflect.Method downcall = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass, optionsClass);
+
+        scrypt = ((MethodHandle) downcall.invoke(linker, symbol, descriptor, Array.newInstance(optionClass, 0))).asType(SCRYPT_TYPE);
+
+        MethodHandle critical = null;
+        try {
+            final Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, optionClass.getMethod("critical", boolean.class).invoke(null, true));
+            critical = ((MethodHandle) downcall.invoke(linker, symbol, descriptor, options)).asType(SCRYPT_TYPE);
+        } catch (NoSuchMethodException exception) {
+            log.debug("Critical downcalls not supported, heap arrays will be copied");
+        }
+        scryptCritical = critical;
+
+        /* int crypto_scrypt_threads(..., uint32_t), not in older libraries */
+        if (threadsSymbol.isPresent()) {
+            final Object threadsArguments = Array.newInstance(layoutClass, 10);
+            for (int x = 0; x < layouts.length; x ++) Array.set(threadsArguments, x, layouts[x]);
+            Array.set(threadsArguments, layouts.length, INT);
+            final Object threadsDescriptor = of.invoke(null, INT, threadsArguments);
+            scryptThreads = ((MethodHandle) downcall.invoke(linker, threadsSymbol.get(), threadsDescriptor, Array.newInstance(optionClass, 0))).asType(SCRYPT_THREADS_TYPE);
+        } else {
+            log.debug("Symbol \"crypto_scrypt_threads\" not found, lanes will be computed sequentially");
+            scryptThreads = null;
+        }
+
+        /* Memory segments and arenas */
+        ofArray = lookup.findStatic(segmentClass, "ofArray", methodType(segmentClass, byte[].class))
+                        .asType(methodType(Object.class, byte[].class));
+        ofBuffer = lookup.findStatic(segmentClass, "ofBuffer", methodType(segmentClass, Buffer.class))
+                         .asType(methodType(Object.class, ByteBuffer.class));
+        asSlice = lookup.findVirtual(segmentClass, "asSlice", methodType(segmentClass, long.class, long.class))
+                        .asType(methodType(Object.class, Object.class, long.class, long.class));
+        copyFrom = lookup.findVirtual(segmentClass, "copyFrom", methodType(segmentClass, segmentClass))
+                         .asType(methodType(void.class, Object.class, Object.class));
+        fill = lookup.findVirtual(segmentClass, "fill", methodType(segmentClass, byte.class))
+                     .asType(methodType(void.class, Object.class, byte.class));
+        ofConfined = lookup.findStatic(arenaClass, "ofConfined", methodType(arenaClass))
+                           .asType(methodType(Object.class));
+        allocate = lookup.findVirtual(allocatorClass, "allocate", methodType(segmentClass, long.class))
+                         .asType(methodType(Object.class, Object.class, long.class));
+        close = lookup.findVirtual(arenaClass, "close", methodType(void.class))
+                      .asType(methodType(void.class, Object.class));
+    }
+
+    /**
+     * Create a new {@link SCryptForeignBinding}, returning <b>null</b> if
+     * the <em>Foreign Function and Memory</em> API is not available or the
+     * native library was not loaded.
+     */
+    static SCryptForeignBinding create() {
+        try {
+            final SCryptForeignBinding binding = new SCryptForeignBinding();
+            log.debug("Foreign SCrypt binding created (critical downcalls %s, threads %s)",
+                      binding.scryptCritical == null ? "unsupported" : "supported",
+                      binding.scryptThreads == null ? "unsupported" : "supported");
+            return binding;
+        } catch (Throwable throwable) {
+            log.debug(throwable, "Unable to create foreign SCrypt binding");
+            return null;
+        }
+    }
+
+    /**
+     * Check whether native access (needed by restricted methods like the
+     * ones creating our downcall handles) was granted to the module of this
+     * class, for example with {@code --enable-native-access}.
+     */
+    static boolean isNativeAccessEnabled() {
+        try {
+            final Object module = Class.class.getMethod("getModule").invoke(SCryptForeignBinding.class);
+            return (Boolean) module.getClass().getMethod("isNativeAccessEnabled").invoke(module);
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            log.debug(exception, "Unable to check whether native access is enabled");
+            return false;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Compute a key, writing it into the specified <code>byte[]</code>, and
+     * computing the {@code p} lanes on up to the specified number of threads.
+     */
+    void scrypt(byte[] password, byte[] salt, byte[] output, int offset, int length, int N, int r, int p, int threads) {
+        try {
+            final Object outputSegment = asSlice.invokeExact(ofArray.invokeExact(output), (long) offset, (long) length);
+            final boolean threaded = (threads > 1) && (p > 1) && (scryptThreads != null);
+
+            /* Short computations: pin our arrays and pass them straight */
+            if ((! threaded) && (scryptCritical != null) && ((long) N * r * p <= CRITICAL_LIMIT)) {
+                check((int) scryptCritical.invokeExact(ofArray.invokeExact(password), (long) password.length,
+                                                       ofArray.invokeExact(salt), (long) salt.length,
+                                                       (long) N, r, p, outputSegment, (long) length));
+                return;
+            }
+
+            /* Long computations: the cost of copying data off-heap is irrelevant */
+            final Object arena = ofConfined.invokeExact();
+            Object buffer = null;
+            try {
+                buffer = allocate.invokeExact(arena, (long) Math.max(1, password.length + salt.length + length));
+                final Object passwordSegment = asSlice.invokeExact(buffer, 0L, (long) password.length);
+                final Object saltSegment = asSlice.invokeExact(buffer, (long) password.length, (long) salt.length);
+                final Object resultSegment = asSlice.invokeExact(buffer, (long) (password.length + salt.length), (long) length);
+
+                copyFrom.invokeExact(passwordSegment, ofArray.invokeExact(password));
+                copyFrom.invokeExact(saltSegment, ofArray.invokeExact(salt));
+
+                check(threaded ? (int) scryptThreads.invokeExact(passwordSegment, (long) password.length,
+                                                                 saltSegment, (long) salt.length,
+                                                                 (long) N, r, p, resultSegment, (long) length, threads)
+                               : (int) scrypt.invokeExact(passwordSegment, (long) password.length,
+                                                          saltSegment, (long) salt.length,
+                                                          (long) N, r, p, resultSegment, (long) length));
+
+                copyFrom.invokeExact(outputSegment, resultSegment);
+            } finally {
+                /* Wipe our copy of the password before releasing it */
+                if (buffer != null) fill.invokeExact(buffer, (byte) 0);
+                close.invokeExact(arena);
+            }
+        } catch (RuntimeException | Error exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException("Exception invoking native SCrypt", throwable);
+        }
+    }
+
+    /**
+     * Compute a key reading password and salt from the remaining bytes of
+     * the specified <em>direct</em> {@link ByteBuffer}s, and write it in the
+     * remaining bytes of the output buffer, without copying any data.
+     */
+    void scrypt(ByteBuffer password, ByteBuffer salt, ByteBuffer output, int N, int r, int p, int threads) {
+        try {
+            final Object passwordSegment = ofBuffer.invokeExact(password);
+            final Object saltSegment = ofBuffer.invokeExact(salt);
+            final Object outputSegment = ofBuffer.invokeExact(output);
+
+            if ((threads > 1) && (p > 1) && (scryptThreads != null)) {
+                check((int) scryptThreads.invokeExact(passwordSegment, (long) password.remaining(),
+                                                      saltSegment, (long) salt.remaining(),
+                                                      (long) N, r, p,
+                                                      outputSegment, (long) output.remaining(), threads));
+            } else {
+                check((int) scrypt.invokeExact(passwordSegment, (long) password.remaining(),
+                                               saltSegment, (long) salt.remaining(),
+                                               (long) N, r, p,
+                                               outputSegment, (long) output.remaining()));
+            }
+        } catch (RuntimeException | Error exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException("Exception invoking native SCrypt", throwable);
+        }
+    }
+
+    /* Check the result of "crypto_scrypt" */
+    private static void check(int result) {
+        if (result != 0) throw new IllegalStateException("Error in native SCrypt");
+    }
+
+}
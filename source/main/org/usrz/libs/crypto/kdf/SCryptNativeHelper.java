@@ -15,36 +15,98 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.kdf;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.usrz.libs.utils.Charsets.UTF8;
 import static org.usrz.libs.utils.codecs.HexCodec.HEX;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.usrz.libs.crypto.hash.Hash;
 import org.usrz.libs.logging.Log;
 
 final class SCryptNativeHelper {
 
     private static final Log log = new Log(SCryptNativeHelper.class);
 
+    /**
+     * The system property specifying where to load the native library from:
+     * {@code bundled} (the default) for the library shipped in this JAR, or
+     * {@code system} to load {@code scrypt_jni} from {@code java.library.path}.
+     */
+    static final String LIBRARY_PROPERTY = "org.usrz.libs.crypto.kdf.library";
+    /**
+     * The system property specifying the directory where the bundled native
+     * library is extracted to and cached across JVM invocations.
+     */
+    static final String CACHE_PROPERTY = "org.usrz.libs.crypto.kdf.cache";
+    /**
+     * The system property specifying how to invoke the native library:
+     * {@code jni}, {@code ffm} (the <em>Foreign Function and Memory</em> API)
+     * or {@code auto} (the default).
+     * <p>
+     * With {@code auto} the FFM binding is only used on Java 22 and later
+     * when native access was already granted to this library (for example
+     * with {@code --enable-native-access=ALL-UNNAMED}), as otherwise the JVM
+     * would warn about restricted methods: JNI is used in all other cases.
+     * With {@code ffm} the FFM binding is always used when available,
+     * possibly with such warnings.
+     */
+    static final String BINDING_PROPERTY = "org.usrz.libs.crypto.kdf.binding";
+
+    private static final String SYSTEM_LIBRARY = "scrypt_jni";
+
     private static final int TEST_N = 1024;
     private static final int TEST_R = 8;
     private static final int TEST_P = 16;
+    private static final int TEST_THREADS = 2;
     private static final int TEST_DK_LEN = 64;
     private static final byte[] TEST_PASSWORD = "password".getBytes(UTF8);
     private static final byte[] TEST_SALT = "NaCl".getBytes(UTF8);
     private static final byte[] TEST_HASH = HEX.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
 
-    private static boolean nativeSupport = false;
+    private static final int TEST_PBKDF2_C = 4096;
+    private static final int TEST_PBKDF2_DK_LEN = 32;
+    private static final byte[] TEST_PBKDF2_SALT = "salt".getBytes(UTF8);
+    private static final byte[] TEST_PBKDF2_HASH = HEX.decode("c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a");
+
+    /* The JNI interface version adding threads, PBKDF2 and kernel names */
+    private static final int VERSION_2 = 2;
+
+    private static volatile boolean nativeSupport = false;
+    private static volatile boolean pbkdf2Support = false;
+    private static volatile int version = 0;
+    private static volatile SCryptForeignBinding binding = null;
+    private static final FutureTask<Boolean> verification = new FutureTask<>(SCryptNativeHelper::verify);
+    private static final FutureTask<Boolean> pbkdf2Verification = new FutureTask<>(SCryptNativeHelper::verifyPBKDF2);
 
     /* ====================================================================== */
 
     private static final boolean load() {
         try {
+            /* Should we load from "java.library.path"? */
+            if ("system".equals(System.getProperty(LIBRARY_PROPERTY, "bundled"))) try {
+                log.debug("Loading SCrypt library \"%s\" from system library path", SYSTEM_LIBRARY);
+                System.loadLibrary(SYSTEM_LIBRARY);
+                return true;
+            } catch (UnsatisfiedLinkError error) {
+                log.warn(error, "Unable to load SCrypt library \"%s\" from system library path, using bundled library", SYSTEM_LIBRARY);
+            }
+
             final String system, architecture, extension;
             switch (System.getProperty("os.name", "unknown").toLowerCase().replace(' ', '_')) {
                 case "mac_os_x": system = "macos"; extension="dylib"; break;
@@ -72,55 +134,363 @@ final class SCryptNativeHelper {
                 return false;
             }
 
-            final File file = File.createTempFile(prefix + "-", suffix);
-            file.setExecutable(true);
-            file.deleteOnExit();
+            final File file = extract(resource, prefix, suffix);
 
-            log.debug("Copying SCrypt library from %s to %s", resource, file);
+            log.debug("Loading SCrypt library from %s", file.getCanonicalPath());
+
+            final Runtime runtime = Runtime.getRuntime();
+            runtime.load(file.getCanonicalPath());
+            return true;
 
-            final InputStream input = resource.openStream();
-            final OutputStream output = new FileOutputStream(file);
+        } catch (Throwable throwable) {
+            log.error(throwable, "An error occurrent loading the JNI SCrypt library");
+            return false;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Extract the library, in our cache directory or in a temporary file */
+    private static File extract(URL resource, String prefix, String suffix)
+    throws IOException {
+
+        /* Read our library and compute its digest for our cache */
+        final byte[] contents;
+        try (final InputStream input = resource.openStream()) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
             final byte[] buffer = new byte[4096];
             int read = -1;
             while ((read = input.read(buffer)) >= 0) {
                 if (read > 0) output.write(buffer, 0, read);
             }
-            output.close();
-            input.close();
+            contents = output.toByteArray();
+        }
 
-            log.debug("Loading SCrypt library from %s", file.getCanonicalPath());
+        /* Try to use our cache directory first */
+        final Path directory = getCacheDirectory();
+        if (directory != null) try {
+            final String digest = HEX.encode(Hash.SHA256.digest().update(contents).finish());
+            final Path cached = directory.resolve(prefix + "-" + digest + suffix);
 
-            final Runtime runtime = Runtime.getRuntime();
-            runtime.load(file.getCanonicalPath());
+            /* Reuse only if the contents match exactly what we have */
+            if (Files.isRegularFile(cached) && Arrays.equals(contents, Files.readAllBytes(cached))) {
+                log.debug("Using cached SCrypt library %s", cached);
+                return cached.toFile();
+            }
+
+            /* Write a temporary file and atomically move it in place */
+            final Path temporary = Files.createTempFile(directory, prefix + "-", suffix);
+            try {
+                Files.write(temporary, contents);
+                temporary.toFile().setExecutable(true);
+                Files.move(temporary, cached, ATOMIC_MOVE, REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
 
+            log.debug("Cached SCrypt library from %s to %s", resource, cached);
+            return cached.toFile();
+
+        } catch (IOException exception) {
+            log.warn(exception, "Unable to cache SCrypt library in %s", directory);
+        }
+
+        /* No cache, no party, just copy the library in a temporary file */
+        final File file = File.createTempFile(prefix + "-", suffix);
+        file.setExecutable(true);
+        file.deleteOnExit();
+
+        log.debug("Copying SCrypt library from %s to %s", resource, file);
+
+        try (final OutputStream output = Files.newOutputStream(file.toPath())) {
+            output.write(contents);
+        }
+        return file;
+    }
+
+    /* Return our cache directory, only if it exists and is private to us */
+    private static Path getCacheDirectory() {
+        final String name = System.getProperty(CACHE_PROPERTY);
+        final Path directory = name != null ? Paths.get(name) :
+                Paths.get(System.getProperty("java.io.tmpdir"),
+                          "usrz-crypto-" + System.getProperty("user.name", "unknown"));
+
+        try {
+            final Path parent = directory.toAbsolutePath().getParent();
+            final PosixFileAttributeView view = Files.getFileAttributeView(parent, PosixFileAttributeView.class);
+            if (view == null) {
+                Files.createDirectories(directory);
+            } else {
+                if (!Files.isDirectory(directory))
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+
+                /* Do not load libraries from a directory someone else owns */
+                final String owner = Files.getOwner(directory).getName();
+                if (!owner.equals(System.getProperty("user.name"))) {
+                    log.warn("SCrypt library cache %s is owned by \"%s\", not caching", directory, owner);
+                    return null;
+                }
+            }
+            return directory;
+        } catch (IOException | RuntimeException exception) {
+            log.warn(exception, "Unable to create SCrypt library cache %s", directory);
+            return null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Verify the native library (lanes on two threads) against our test vector */
+    private static boolean verify() {
+        try {
             log.debug("Testing SCrypt native implementation");
 
             byte[] result = new byte[TEST_DK_LEN];
-            scrypt(TEST_PASSWORD, TEST_SALT, result, 0, TEST_DK_LEN, TEST_N, TEST_R, TEST_P);
+            compute(TEST_PASSWORD, TEST_SALT, result, 0, TEST_DK_LEN, TEST_N, TEST_R, TEST_P, TEST_THREADS);
             if (Arrays.equals(result, TEST_HASH)) {
-                log.info("SCrypt native library loaded and tested");
+                log.info("SCrypt native library loaded and tested (%s binding, %s kernel)", getBinding(), getKernel());
                 return true;
             } else {
                 log.error("The SCrypt native library did not produce the expected results, disabling");
-                return false;
             }
         } catch (Throwable throwable) {
-            log.error(throwable, "An error occurrent loading the JNI SCrypt library");
-            return false;
+            /* Try again with JNI if the foreign binding failed */
+            if (binding != null) {
+                log.warn(throwable, "An error occurrent testing the foreign SCrypt binding, reverting to JNI");
+                binding = null;
+                return verify();
+            }
+            log.error(throwable, "An error occurrent testing the JNI SCrypt library");
         }
+        nativeSupport = false;
+        return false;
+    }
+
+    /* Verify the native PBKDF2 against our test vector */
+    private static boolean verifyPBKDF2() {
+        try {
+            log.debug("Testing PBKDF2 native implementation");
+
+            byte[] result = new byte[TEST_PBKDF2_DK_LEN];
+            pbkdf2(TEST_PASSWORD, TEST_PBKDF2_SALT, result, 0, TEST_PBKDF2_DK_LEN, TEST_PBKDF2_C);
+            if (Arrays.equals(result, TEST_PBKDF2_HASH)) {
+                log.info("PBKDF2 native library loaded and tested (%s SHA256)", getSHA256Transform());
+                return true;
+            } else {
+                log.error("The PBKDF2 native library did not produce the expected results, disabling");
+            }
+        } catch (Throwable throwable) {
+            log.error(throwable, "An error occurrent testing the JNI PBKDF2 library");
+        }
+        pbkdf2Support = false;
+        return false;
+    }
+
+    /* Create our foreign binding, if we can and we should */
+    private static SCryptForeignBinding bind() {
+        final String property = System.getProperty(BINDING_PROPERTY, "auto");
+        if ("jni".equals(property)) return null;
+        if ("auto".equals(property)) {
+            final String version = System.getProperty("java.specification.version", "1.8");
+            if (version.startsWith("1.") || Integer.parseInt(version.replaceAll("\\..*", "")) < 22) return null;
+
+            /* Never make the JVM warn about restricted methods on our behalf */
+            if (! SCryptForeignBinding.isNativeAccessEnabled()) {
+                log.debug("Native access not enabled, using JNI (enable it with --enable-native-access)");
+                return null;
+            }
+        }
+        return SCryptForeignBinding.create();
     }
 
     static {
-        nativeSupport = load();
+        if (nativeSupport = load()) {
+            version = probe();
+            binding = bind();
+
+            /* Older libraries do not export PBKDF2 nor threads at all */
+            log.debug("SCrypt native library JNI interface version %d", version);
+            if (! (pbkdf2Support = version >= VERSION_2))
+                log.info("The SCrypt native library does not export PBKDF2 and threads, disabling them");
+
+            /* Verify the library in the background, without delaying startup */
+            final Thread thread = new Thread(() -> {
+                verification.run();
+                pbkdf2Verification.run();
+            }, "SCrypt native self-test");
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
+
     /* ====================================================================== */
 
-    static native void scrypt(byte[] password, byte[] salt, byte[] out, int offset, int length, int N, int r, int p);
+    /* Our JNI entry point returning the version of the library interface */
+    private static native int version();
+
+    /*
+     * Return the version of the JNI interface of the native library, once
+     * after loading it: the first libraries did not register "version" (nor
+     * any of the entry points added later on), and are version 1.
+     */
+    private static int probe() {
+        try {
+            return version();
+        } catch (UnsatisfiedLinkError error) {
+            return 1;
+        }
+    }
+
+    /* Our JNI entry points, registered by JNI_OnLoad in the native library */
+    private static native void scrypt(byte[] password, byte[] salt, byte[] out, int offset, int length, int N, int r, int p);
+    private static native void scryptThreads(byte[] password, byte[] salt, byte[] out, int offset, int length, int N, int r, int p, int threads);
+
+    /**
+     * Compute a SCrypt key with the native library, using either our foreign
+     * or JNI binding, computing the {@code p} lanes on up to the specified
+     * number of threads.
+     */
+    static void compute(byte[] password, byte[] salt, byte[] out, int offset, int length, int N, int r, int p, int threads) {
+        final SCryptForeignBinding binding = SCryptNativeHelper.binding;
+        if (binding != null) {
+            binding.scrypt(password, salt, out, offset, length, N, r, p, threads);
+        } else if ((threads > 1) && (p > 1) && (version >= VERSION_2)) {
+            scryptThreads(password, salt, out, offset, length, N, r, p, threads);
+        } else {
+            scrypt(password, salt, out, offset, length, N, r, p);
+        }
+    }
+
+    /**
+     * Compute a SCrypt key with the native library, reading password and
+     * salt from the remaining bytes of the specified {@link ByteBuffer}s, and
+     * filling the remaining bytes of the output buffer.
+     * <p>
+     * When our foreign binding is in use, and all buffers are <em>direct</em>,
+     * no data will be copied. All buffer positions are moved to their limits.
+     */
+    static void compute(ByteBuffer password, ByteBuffer salt, ByteBuffer out, int N, int r, int p, int threads) {
+        final SCryptForeignBinding binding = SCryptNativeHelper.binding;
+        if ((binding != null) && password.isDirect() && salt.isDirect() && out.isDirect()) {
+            binding.scrypt(password, salt, out, N, r, p, threads);
+            password.position(password.limit());
+            salt.position(salt.limit());
+            out.position(out.limit());
+        } else {
+            final byte[] passwordBytes = new byte[password.remaining()];
+            final byte[] saltBytes = new byte[salt.remaining()];
+            final byte[] outBytes = new byte[out.remaining()];
+            try {
+                password.get(passwordBytes);
+                salt.get(saltBytes);
+                compute(passwordBytes, saltBytes, outBytes, 0, outBytes.length, N, r, p, threads);
+                out.put(outBytes);
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+                Arrays.fill(outBytes, (byte) 0);
+            }
+        }
+    }
+
+    /* Our JNI entry point for PBKDF2 with HMAC-SHA256 */
+    private static native void pbkdf2(byte[] password, byte[] salt, byte[] out, int offset, int length, int iterations);
+
+    /**
+     * Compute a PBKDF2 key using the HMAC-SHA256 function with the native
+     * library.
+     */
+    static void computePBKDF2(byte[] password, byte[] salt, byte[] out, int offset, int length, int iterations) {
+        pbkdf2(password, salt, out, offset, length, iterations);
+    }
+
+    /* Our JNI entry point returning the name of the SMix kernel in use */
+    private static native String kernel();
+
+    /**
+     * Return the name of the widest SMix kernel the native library selected
+     * for this CPU: {@code avx512} (four lanes computed at once),
+     * {@code avx2} (two lanes) or {@code sse2}; or <b>null</b> if the
+     * native library is not available.
+     */
+    static String getKernel() {
+        if (! nativeSupport) return null;
+        /* Older libraries were only ever compiled with SSE2 */
+        return version >= VERSION_2 ? kernel() : "sse2";
+    }
+
+    /* Our JNI entry point returning the name of the SHA256 transform in use */
+    private static native String sha256Transform();
+
+    /**
+     * Return the name of the SHA256 block compression function the native
+     * library selected for this CPU, used by PBKDF2 (and by SCrypt's own
+     * PBKDF2 stages): {@code sha-ni} for the Intel SHA extensions or
+     * {@code portable}; or <b>null</b> if the native library is not available.
+     */
+    static String getSHA256Transform() {
+        if (! nativeSupport) return null;
+        /* Older libraries only had the portable implementation */
+        return version >= VERSION_2 ? sha256Transform() : "portable";
+    }
+
+    /**
+     * Return the name of the binding used to invoke the native library,
+     * either {@code FFM} or {@code JNI}, or <b>null</b> if not available.
+     */
+    static String getBinding() {
+        return ! nativeSupport ? null : binding != null ? "FFM" : "JNI";
+    }
 
+    /**
+     * Check whether the native library was loaded, and has not (yet) failed
+     * its self-test; this method never blocks.
+     */
     static boolean isAvailable() {
         return nativeSupport;
     }
 
+    /**
+     * Check whether the native library was loaded and passed its self-test,
+     * waiting for the self-test to complete if required.
+     */
+    static boolean isVerified() {
+        return nativeSupport && await(verification) && nativeSupport;
+    }
+
+    /**
+     * Check whether the native library exports PBKDF2 and has not (yet)
+     * failed its self-test; this method never blocks.
+     */
+    static boolean isPBKDF2Available() {
+        return nativeSupport && pbkdf2Support;
+    }
+
+    /**
+     * Check whether the native library exports PBKDF2 and passed its
+     * self-test, waiting for the self-test to complete if required.
+     */
+    static boolean isPBKDF2Verified() {
+        return isPBKDF2Available() && await(pbkdf2Verification) && pbkdf2Support;
+    }
+
+    /* Wait for a verification task to complete, running it if necessary */
+    private static boolean await(FutureTask<Boolean> task) {
+        if (!task.isDone()) task.run(); // no-op if running
+
+        boolean interrupted = false;
+        try {
+            while (true) try {
+                return task.get();
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        } catch (ExecutionException exception) {
+            return false;
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
     static void enable() {
         nativeSupport = true;
     }
@@ -0,0 +1,326 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.crypto.hash.MD;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.Check;
+
+/**
+ * A memory-mapped index of the {@linkplain Hash#SHA1 SHA-1} hashes of
+ * passwords found in breach corpora, checking whether a password was
+ * breached in a few microseconds, without keeping the corpus on the heap.
+ * <p>
+ * Indexes are {@linkplain #build(Path, Path) built} from sorted lists of
+ * hex-encoded SHA-1 hashes (one per line, optionally followed by a colon
+ * and an occurrence count, as distributed by <em>Have I Been Pwned</em>).
+ * Hashes are partitioned by their first 16 bits (as in the
+ * <em>k-anonymity</em> range model), and each partition is stored as a
+ * sorted run of the remaining 18 bytes of its hashes, looked up by binary
+ * search.
+ * <p>
+ * Instances of this class are thread safe. The index file is mapped when
+ * opened and unmapped when the instance is garbage collected.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class BreachedPasswords {
+
+    /* Magic number ("BPWI") and version of our index files */
+    private static final int MAGIC = 0x42505749;
+    private static final int VERSION = 1;
+
+    /* Hashes are partitioned by their first two bytes */
+    private static final int PREFIX_LENGTH = 2;
+    private static final int PARTITIONS = 1 << (PREFIX_LENGTH * 8);
+    /* The length of a hash, and of what we store of it */
+    private static final int HASH_LENGTH = 20;
+    private static final int RECORD_LENGTH = HASH_LENGTH - PREFIX_LENGTH;
+
+    /* Header (magic, version, count), partition table and records offsets */
+    private static final int HEADER_LENGTH = 16;
+    private static final int TABLE_LENGTH = (PARTITIONS + 1) * 8;
+    private static final long RECORDS_OFFSET = HEADER_LENGTH + TABLE_LENGTH;
+
+    /* The number of records in each mapped window (under 1 GiB) */
+    private static final long WINDOW_RECORDS = (1 << 30) / RECORD_LENGTH;
+
+    /* Per-thread buffers for hashing passwords */
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HASH_LENGTH];
+        }
+    };
+
+    /* Our log */
+    private static final Log log = new Log(BreachedPasswords.class);
+
+    /* The first record of each partition (plus the total count) */
+    private final LongBuffer table;
+    /* Our records, mapped in windows */
+    private final ByteBuffer[] windows;
+    /* The number of hashes in our index */
+    private final long count;
+
+    /**
+     * Open and map the specified index file, previously
+     * {@linkplain #build(Path, Path) built}.
+     *
+     * @throws IOException If the index could not be read or was invalid.
+     */
+    public BreachedPasswords(Path index)
+    throws IOException {
+        Check.notNull(index, "Null index");
+
+        /* Mappings stay valid after their channel is closed */
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < RECORDS_OFFSET) throw new IOException("Invalid index " + index);
+
+            final MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, RECORDS_OFFSET);
+            if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION))
+                throw new IOException("Invalid index " + index);
+            count = header.getLong(8);
+            if ((count < 0) || (size != RECORDS_OFFSET + count * RECORD_LENGTH))
+                throw new IOException("Invalid index size " + size + " for " + count + " hashes in " + index);
+
+            header.position(HEADER_LENGTH);
+            table = header.slice().asLongBuffer();
+            if (table.get(PARTITIONS) != count) throw new IOException("Invalid index table in " + index);
+
+            windows = new ByteBuffer[(int) ((count + WINDOW_RECORDS - 1) / WINDOW_RECORDS)];
+            for (int x = 0; x < windows.length; x ++) {
+                final long first = x * WINDOW_RECORDS;
+                final long records = Math.min(WINDOW_RECORDS, count - first);
+                windows[x] = channel.map(MapMode.READ_ONLY, RECORDS_OFFSET + first * RECORD_LENGTH, records * RECORD_LENGTH);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the number of hashes in this index.
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Check whether the specified password (encoded in <em>UTF-8</em>) was
+     * found in the breach corpora indexed by this instance.
+     */
+    public boolean contains(char[] password) {
+        Check.notNull(password, "Null password");
+        final byte[] hash = buffers.get();
+        try {
+            try (MD digest = Hash.SHA1.digest()) {
+                digest.update(password, UTF8).finish(hash, 0);
+            }
+            return containsHash(hash, 0);
+        } finally {
+            Arrays.fill(hash, (byte) 0);
+        }
+    }
+
+    /**
+     * Check whether the specified password (encoded in <em>UTF-8</em>) was
+     * found in the breach corpora indexed by this instance.
+     */
+    public boolean contains(CharSequence password) {
+        Check.notNull(password, "Null password");
+        final byte[] hash = buffers.get();
+        try {
+            try (MD digest = Hash.SHA1.digest()) {
+                digest.update(password, UTF8).finish(hash, 0);
+            }
+            return containsHash(hash, 0);
+        } finally {
+            Arrays.fill(hash, (byte) 0);
+        }
+    }
+
+    /**
+     * Check whether the specified SHA-1 hash (20 bytes starting at the given
+     * offset) is present in this index.
+     *
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public boolean containsHash(byte[] hash, int offset) {
+        Check.notNull(hash, "Null hash");
+        if ((offset < 0) || (hash.length - offset < HASH_LENGTH))
+            throw new IllegalArgumentException("Buffer too short");
+
+        /* The records in the partition of this hash */
+        final int partition = ((hash[offset] & 0xFF) << 8) | (hash[offset + 1] & 0xFF);
+        long low = table.get(partition);
+        long high = table.get(partition + 1) - 1;
+
+        /* The rest of the hash, as three (big endian) numbers */
+        final long key1 = getLong(hash, offset + 2);
+        final long key2 = getLong(hash, offset + 10);
+        final int key3 = ((hash[offset + 18] & 0xFF) << 8) | (hash[offset + 19] & 0xFF);
+
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final ByteBuffer window = windows[(int) (middle / WINDOW_RECORDS)];
+            final int position = (int) (middle % WINDOW_RECORDS) * RECORD_LENGTH;
+
+            int result = Long.compareUnsigned(window.getLong(position), key1);
+            if (result == 0) result = Long.compareUnsigned(window.getLong(position + 8), key2);
+            if (result == 0) result = Integer.compare(window.getShort(position + 16) & 0xFFFF, key3);
+
+            if (result < 0) low = middle + 1;
+            else if (result > 0) high = middle - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    /* Read a big endian long from an array */
+    private static long getLong(byte[] array, int offset) {
+        long result = 0;
+        for (int x = offset; x < offset + 8; x ++) result = (result << 8) | (array[x] & 0xFF);
+        return result;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Build an index from the specified corpus file.
+     *
+     * @see #build(Reader, Path)
+     */
+    public static long build(Path corpus, Path index)
+    throws IOException {
+        Check.notNull(corpus, "Null corpus");
+        try (Reader reader = Files.newBufferedReader(corpus, US_ASCII)) {
+            return build(reader, index);
+        }
+    }
+
+    /**
+     * Build an index from the specified corpus, returning the number of
+     * hashes indexed.
+     * <p>
+     * The corpus must contain hex-encoded SHA-1 hashes, one per line, sorted
+     * in ascending order, optionally followed by a colon and anything else
+     * (like an occurrence count). Empty lines and duplicate hashes are
+     * ignored.
+     *
+     * @throws IOException If an I/O error occurred, or if the corpus was
+     *                     invalid or not sorted.
+     */
+    public static long build(Reader corpus, Path index)
+    throws IOException {
+        Check.notNull(corpus, "Null corpus");
+        Check.notNull(index, "Null index");
+
+        final BufferedReader reader = corpus instanceof BufferedReader ?
+                                      (BufferedReader) corpus :
+                                      new BufferedReader(corpus);
+
+        final long[] partitions = new long[PARTITIONS];
+        final byte[] previous = new byte[HASH_LENGTH];
+        final byte[] hash = new byte[HASH_LENGTH];
+        long count = 0;
+        long number = 0;
+
+        /* Write our records after an empty header and table */
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index), 65536))) {
+            output.write(new byte[(int) RECORDS_OFFSET]);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                number ++;
+                final int colon = line.indexOf(':');
+                final String hex = (colon < 0 ? line : line.substring(0, colon)).trim();
+                if (hex.isEmpty()) continue;
+
+                if (! decode(hex, hash)) throw new IOException("Invalid hash at line " + number);
+                if (count > 0) {
+                    final int result = compare(hash, previous);
+                    if (result < 0) throw new IOException("Corpus not sorted at line " + number);
+                    if (result == 0) continue;
+                }
+
+                output.write(hash, PREFIX_LENGTH, RECORD_LENGTH);
+                partitions[((hash[0] & 0xFF) << 8) | (hash[1] & 0xFF)] ++;
+                System.arraycopy(hash, 0, previous, 0, HASH_LENGTH);
+                count ++;
+            }
+        }
+
+        /* Write our header and table */
+        final ByteBuffer header = ByteBuffer.allocate((int) RECORDS_OFFSET);
+        header.putInt(MAGIC).putInt(VERSION).putLong(count);
+        long first = 0;
+        for (long records: partitions) {
+            header.putLong(first);
+            first += records;
+        }
+        header.putLong(count).flip();
+
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+
+        log.info("Indexed %d breached password hashes in %s", count, index);
+        return count;
+    }
+
+    /* Decode a hex-encoded SHA-1 hash */
+    private static boolean decode(String hex, byte[] hash) {
+        if (hex.length() != HASH_LENGTH * 2) return false;
+        for (int x = 0; x < HASH_LENGTH; x ++) {
+            final int high = Character.digit(hex.charAt(x * 2), 16);
+            final int low = Character.digit(hex.charAt(x * 2 + 1), 16);
+            if ((high < 0) || (low < 0)) return false;
+            hash[x] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    /* Compare two hashes as unsigned numbers */
+    private static int compare(byte[] hash1, byte[] hash2) {
+        for (int x = 0; x < HASH_LENGTH; x ++) {
+            final int result = Integer.compare(hash1[x] & 0xFF, hash2[x] & 0xFF);
+            if (result != 0) return result;
+        }
+        return 0;
+    }
+
+}
@@ -44,7 +44,22 @@ import org.usrz.libs.utils.Check;
 
 public class CryptoUtils {
 
-    private static final SecureRandom random = new SecureRandom();
+    /* A shared HMAC_DRBG seeded by the system, only used to (re)seed our
+     * per-thread generators: new (or short-lived) threads never wait on the
+     * system's entropy source, paying only for a few HMAC computations */
+    private static final HMACDRBG entropy = new HMACDRBG(Hash.SHA256, new SecureRandom(), null);
+    /* One HMAC_DRBG per thread, so that we never contend on a single lock */
+    private static final ThreadLocal<HMACDRBG> random = new ThreadLocal<HMACDRBG>() {
+        @Override
+        protected HMACDRBG initialValue() {
+            final Thread thread = Thread.currentThread();
+            final byte[] personalization = ByteBuffer.allocate(16)
+                                                     .putLong(thread.getId())
+                                                     .putLong(System.nanoTime())
+                                                     .array();
+            return new HMACDRBG(Hash.SHA256, entropy, personalization);
+        }
+    };
 
     private  CryptoUtils() {
         throw new IllegalStateException("Do not construct");
@@ -57,7 +72,7 @@ public class CryptoUtils {
     }
 
     public static byte[] randomBytes(byte[] bytes) {
-        random.nextBytes(bytes);
+        random.get().nextBytes(bytes);
         return bytes;
     }
 
@@ -65,92 +80,189 @@ public class CryptoUtils {
 
     public static void destroyArray(char[] array) {
         if (array == null) return;
-        for (int x = 0; x < array.length; x ++)
-            array[x] = (char) random.nextInt();
+
+        /* Overwrite with random data in chunks, two bytes per character */
+        final HMACDRBG drbg = random.get();
+        final byte[] bytes = new byte[Math.min(array.length, 256) * 2];
+        for (int x = 0; x < array.length; x += bytes.length / 2) {
+            drbg.nextBytes(bytes);
+            for (int y = 0, z = x; (y < bytes.length) && (z < array.length); y += 2, z ++)
+                array[z] = (char) ((bytes[y] << 8) | (bytes[y + 1] & 0xFF));
+        }
+
+        Arrays.fill(bytes, (byte) 0);
         Arrays.fill(array, '\0');
     }
 
     public static void destroyArray(byte[] array) {
         if (array == null) return;
-        random.nextBytes(array);
+        random.get().nextBytes(array);
         Arrays.fill(array, (byte) 0);
     }
 
     /* ====================================================================== */
 
-    public static byte[] safeEncode(char[] chars, boolean destroy) {
-        return safeEncode(chars, destroy, UTF8);
+    /**
+     * Overwrite the specified <code>char[]</code> with zeroes, without
+     * wasting time on random data first.
+     */
+    public static void zeroArray(char[] array) {
+        if (array != null) Arrays.fill(array, '\0');
     }
 
-    public static byte[] safeEncode(char[] chars, boolean destroy, Charset charset) {
+    /**
+     * Overwrite the specified <code>byte[]</code> with zeroes, without
+     * wasting time on random data first.
+     */
+    public static void zeroArray(byte[] array) {
+        if (array != null) Arrays.fill(array, (byte) 0);
+    }
 
-        /* Allocate our temporary byte buffer */
+    /* ====================================================================== */
+
+    /**
+     * Compare the specified number of bytes of two <code>byte[]</code>s
+     * starting at the given offsets, in constant time (in other words the
+     * time taken depends on the length only, and not on where the two
+     * arrays differ).
+     *
+     * @throws IllegalArgumentException If either array is not long enough.
+     */
+    public static boolean isEqual(byte[] array1, int offset1, byte[] array2, int offset2, int length) {
+        Check.notNull(array1, "Null array");
+        Check.notNull(array2, "Null array");
+        if ((offset1 < 0) || (offset2 < 0) || (length < 0) ||
+            (array1.length - offset1 < length) || (array2.length - offset2 < length))
+            throw new IllegalArgumentException("Buffer too short");
+
+        int result = 0;
+        for (int x = 0; x < length; x ++) result |= array1[offset1 + x] ^ array2[offset2 + x];
+        return result == 0;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Encode the specified characters with the given {@link Charset} writing
+     * the resulting bytes in the specified buffer at the specified offset.
+     *
+     * @return The number of bytes written in the output buffer.
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public static int encode(char[] chars, int offset, int length, Charset charset, byte[] output, int outputOffset) {
+        Check.notNull(chars, "Null characters");
+        Check.notNull(output, "Null output buffer");
+
+        /* Wrap chars and bytes array in NIO buffers */
+        final CharBuffer charBuffer = CharBuffer.wrap(chars, offset, length);
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(output, outputOffset, output.length - outputOffset);
+
+        /* Convert! */
         final CharsetEncoder encoder = charset.newEncoder();
-        final int maxBytes = (int) Math.ceil(encoder.maxBytesPerChar());
-        final byte[] bytes = new byte[chars.length * maxBytes];
+        CoderResult result = encoder.encode(charBuffer, byteBuffer, true);
+        if (result.isUnderflow()) result = encoder.flush(byteBuffer);
+
+        if (result.isError()) {
+            throw new IllegalArgumentException("Error encoding " + charset.name() + ": " + result);
+        } else if (result.isOverflow()) {
+            throw new IllegalArgumentException("Buffer too short");
+        } else if (charBuffer.remaining() > 0) {
+            throw new IllegalStateException("Byte buffer underflow encoding " + charset.name());
+        }
 
-        try {
-            /* Wrap chars and bytes array in NIO buffers */
-            final CharBuffer charBuffer = CharBuffer.wrap(chars) ;
-            final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-
-            /* Convert! */
-            final CoderResult result = encoder.encode(charBuffer, byteBuffer, true);
-
-            if (result.isError()) {
-                throw new IllegalArgumentException("Error encoding UTF-8: " + result);
-            } else if (result.isOverflow()) {
-                throw new IllegalStateException("Char buffer overflow encoding UTF-8");
-            } else if (result.isUnderflow() && (charBuffer.remaining() > 0)) {
-                throw new IllegalStateException("Byte buffer underflow encoding UTF-8");
-            }
+        return byteBuffer.position() - outputOffset;
+    }
+
+    /**
+     * Decode the specified bytes with the given {@link Charset} writing
+     * the resulting characters in the specified buffer at the specified offset.
+     *
+     * @return The number of characters written in the output buffer.
+     * @throws IllegalArgumentException If the buffer was not big enough.
+     */
+    public static int decode(byte[] bytes, int offset, int length, Charset charset, char[] output, int outputOffset) {
+        Check.notNull(bytes, "Null bytes");
+        Check.notNull(output, "Null output buffer");
+
+        /* Wrap bytes and chars array in NIO buffers */
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, length);
+        final CharBuffer charBuffer = CharBuffer.wrap(output, outputOffset, output.length - outputOffset);
+
+        /* Convert! */
+        final CharsetDecoder decoder = charset.newDecoder();
+        CoderResult result = decoder.decode(byteBuffer, charBuffer, true);
+        if (result.isUnderflow()) result = decoder.flush(charBuffer);
+
+        if (result.isError()) {
+            throw new IllegalArgumentException("Error decoding " + charset.name() + ": " + result);
+        } else if (result.isOverflow()) {
+            throw new IllegalArgumentException("Buffer too short");
+        } else if (byteBuffer.remaining() > 0) {
+            throw new IllegalStateException("Byte buffer underflow decoding " + charset.name());
+        }
 
-            /* Copy */
-            final byte[] array = new byte[byteBuffer.position()];
-            System.arraycopy(bytes, 0, array, 0, array.length);
-            return array;
+        return charBuffer.position() - outputOffset;
+    }
+
+    /* ====================================================================== */
 
+    /**
+     * Encode the specified characters in <em>UTF-8</em>.
+     *
+     * @see #safeEncode(char[], boolean, Charset)
+     */
+    public static byte[] safeEncode(char[] chars, boolean destroy) {
+        return safeEncode(chars, destroy, UTF8);
+    }
+
+    /**
+     * Encode the specified characters with the given {@link Charset},
+     * returning the resulting bytes in a new <code>byte[]</code>.
+     * <p>
+     * If <code>destroy</code> is <b>true</b> the specified characters are
+     * {@linkplain #destroyArray(char[]) destroyed} (overwritten with random
+     * data, then zeroed) afterwards. Temporary buffers used while encoding
+     * never leave this class and are simply zeroed.
+     */
+    public static byte[] safeEncode(char[] chars, boolean destroy, Charset charset) {
+        try (SecretBuffer buffer = SecretBuffer.encode(chars, charset)) {
+            return buffer.array().clone();
         } finally {
             if (destroy) destroyArray(chars);
-            destroyArray(bytes);
         }
     }
 
+    /**
+     * Decode the specified bytes as <em>UTF-8</em>.
+     *
+     * @see #safeDecode(byte[], boolean, Charset)
+     */
     public static char[] safeDecode(byte[] bytes, boolean destroy) {
         return safeDecode(bytes, destroy, UTF8);
     }
 
+    /**
+     * Decode the specified bytes with the given {@link Charset}, returning
+     * the resulting characters in a new <code>char[]</code>.
+     * <p>
+     * If <code>destroy</code> is <b>true</b> the specified bytes are
+     * {@linkplain #destroyArray(byte[]) destroyed} (overwritten with random
+     * data, then zeroed) afterwards. Temporary buffers used while decoding
+     * never leave this class and are simply zeroed.
+     */
     public static char[] safeDecode(byte[] bytes, boolean destroy, Charset charset) {
 
         /* Allocate our temporary character buffer */
-        final CharsetDecoder decoder = UTF8.newDecoder();
-        final int maxChars = (int) Math.ceil(decoder.maxCharsPerByte());
+        final int maxChars = (int) Math.ceil(charset.newDecoder().maxCharsPerByte());
         final char[] chars = new char[bytes.length * maxChars];
 
         try {
-            /* Wrap bytes and chars array in NIO buffers */
-            final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-            final CharBuffer charBuffer = CharBuffer.wrap(chars) ;
-
-            /* Convert! */
-            final CoderResult result = decoder.decode(byteBuffer, charBuffer, true);
-
-            if (result.isError()) {
-                throw new IllegalArgumentException("Error decoding UTF-8: " + result);
-            } else if (result.isOverflow()) {
-                throw new IllegalStateException("Char buffer overflow decoding UTF-8");
-            } else if (result.isUnderflow() && (byteBuffer.remaining() > 0)) {
-                throw new IllegalStateException("Byte buffer underflow decoding UTF-8");
-            }
-
-            /* Copy */
-            final char[] array = new char[charBuffer.position()];
-            System.arraycopy(chars, 0, array, 0, array.length);
-            return array;
-
+            /* Decode and copy */
+            final int length = decode(bytes, 0, bytes.length, charset, chars, 0);
+            return Arrays.copyOf(chars, length);
         } finally {
             if (destroy) destroyArray(bytes);
-            destroyArray(chars);
+            zeroArray(chars);
         }
     }
 
@@ -0,0 +1,289 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.utils.Check;
+
+/**
+ * An implementation of the <em>HMAC_DRBG</em> deterministic random bit
+ * generator, as specified by NIST SP 800-90A.
+ * <p>
+ * Instances created with an entropy source (normally the system's own
+ * {@link SecureRandom}) will reseed themselves from it every
+ * {@value #RESEED_INTERVAL} requests, or when their seed gets older than
+ * ten minutes, whichever comes first.
+ * <p>
+ * Instances can also be created with a <em>parent</em> {@link HMACDRBG}
+ * as their entropy source: a single parent seeded by the system can then
+ * cheaply instantiate and reseed many children (for example one per
+ * thread), which never read from the system's entropy source themselves.
+ * <p>
+ * The {@link Mac} computing HMACs is obtained from the
+ * {@link Hash} (as in {@link Hash#newMac(byte[])}), and follows its
+ * provider selection.
+ * <p>
+ * Instances of this class are <b>not</b> thread safe: the whole point of
+ * having them is to give each thread its own generator, never contending
+ * on the lock of a shared {@link SecureRandom}.
+ *
+ * @see <a href="http://csrc.nist.gov/publications/nistpubs/800-90A/SP800-90A.pdf">NIST SP 800-90A</a>
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class HMACDRBG {
+
+    /** The maximum number of bytes generated by a single request. */
+    public static final int MAX_REQUEST_LENGTH = 1 << 16;
+    /** The number of requests after which we reseed from our entropy source. */
+    public static final long RESEED_INTERVAL = 1L << 20;
+    /* The number of nanoseconds after which we reseed from our entropy source. */
+    private static final long RESEED_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /* Our Mac, always initialized with our current key */
+    private final Mac mac;
+    /* Where to get entropy from when reseeding, might be null */
+    private final EntropySource entropySource;
+    /* Our key "K" and value "V" */
+    private final byte[] key;
+    private final byte[] value;
+    /* The number of requests since the last reseed */
+    private long reseedCounter;
+    /* The time (in nanoseconds) of the last reseed */
+    private long reseedTime;
+
+    /* ====================================================================== */
+
+    /**
+     * Create a new {@link HMACDRBG} instantiated with entropy and nonce
+     * read from the specified entropy source, which will also be used to
+     * periodically reseed this instance.
+     *
+     * @param hash The {@link Hash} whose HMAC will be used by this instance.
+     * @param entropySource The {@link SecureRandom} providing entropy.
+     * @param personalization An optional (might be <b>null</b>)
+     *                        personalization string.
+     */
+    public HMACDRBG(Hash hash, SecureRandom entropySource, byte[] personalization) {
+        this(hash, Check.notNull(entropySource, "Null entropy source")::nextBytes, null, null, personalization);
+    }
+
+    /**
+     * Create a new {@link HMACDRBG} instantiated with entropy and nonce
+     * generated by the specified parent {@link HMACDRBG}, which will also be
+     * used to periodically reseed this instance.
+     * <p>
+     * The parent is locked (<code>synchronized</code> on) only while
+     * generating bytes for this instance, and can therefore be safely shared
+     * by many children.
+     *
+     * @param hash The {@link Hash} whose HMAC will be used by this instance.
+     * @param parent The {@link HMACDRBG} providing entropy.
+     * @param personalization An optional (might be <b>null</b>)
+     *                        personalization string.
+     */
+    public HMACDRBG(Hash hash, HMACDRBG parent, byte[] personalization) {
+        this(hash, parent(Check.notNull(parent, "Null parent")), null, null, personalization);
+    }
+
+    /**
+     * Create a new {@link HMACDRBG} instantiated with the specified entropy
+     * input, nonce and personalization string.
+     * <p>
+     * Instances created by this constructor are never reseeded automatically,
+     * and will produce the exact same sequence of bytes when instantiated
+     * (and {@linkplain #reseed(byte[], byte[]) reseeded}) with the same data.
+     *
+     * @param hash The {@link Hash} whose HMAC will be used by this instance.
+     * @param entropy The entropy input, at least as long as the hash.
+     * @param nonce An optional (might be <b>null</b>) nonce.
+     * @param personalization An optional (might be <b>null</b>)
+     *                        personalization string.
+     */
+    public HMACDRBG(Hash hash, byte[] entropy, byte[] nonce, byte[] personalization) {
+        this(hash, null, Check.notNull(entropy, "Null entropy"), nonce, personalization);
+    }
+
+    /* Create and instantiate this instance */
+    private HMACDRBG(Hash hash, EntropySource entropySource, byte[] entropy, byte[] nonce, byte[] personalization) {
+        Check.notNull(hash, "Null hash");
+
+        this.entropySource = entropySource;
+        key = new byte[hash.getHashLength()];
+        value = new byte[hash.getHashLength()];
+
+        /* Get our entropy and nonce (half the strength) if we need to */
+        final boolean generated = entropy == null;
+        if (generated) {
+            entropy = new byte[key.length];
+            nonce = new byte[key.length / 2];
+            entropySource.nextBytes(entropy);
+            entropySource.nextBytes(nonce);
+        } else if (entropy.length < key.length) {
+            throw new IllegalArgumentException("Entropy input must be at least " + key.length + " bytes");
+        }
+
+        /* K = 0x00 0x00 ... 0x00, V = 0x01 0x01 ... 0x01 (our own Mac, not pooled) */
+        Arrays.fill(value, (byte) 0x01);
+        mac = hash.newMac(key);
+
+        /* Instantiate with entropy || nonce || personalization */
+        update(entropy, nonce, personalization);
+        reseedCounter = 1;
+        reseedTime = System.nanoTime();
+
+        /* Wipe what we generated */
+        if (generated) {
+            Arrays.fill(entropy, (byte) 0);
+            Arrays.fill(nonce, (byte) 0);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Reseed this instance with the specified entropy input and optional
+     * (might be <b>null</b>) additional input.
+     */
+    public void reseed(byte[] entropy, byte[] additional) {
+        Check.notNull(entropy, "Null entropy");
+        if (entropy.length < key.length)
+            throw new IllegalArgumentException("Entropy input must be at least " + key.length + " bytes");
+
+        update(entropy, additional);
+        reseedCounter = 1;
+        reseedTime = System.nanoTime();
+    }
+
+    /**
+     * Fill the specified <code>byte[]</code> with random bytes.
+     */
+    public void nextBytes(byte[] bytes) {
+        nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Fill part of the specified <code>byte[]</code> with random bytes,
+     * splitting the request in chunks of at most
+     * {@value #MAX_REQUEST_LENGTH} bytes.
+     */
+    public void nextBytes(byte[] bytes, int offset, int length) {
+        Check.notNull(bytes, "Null bytes");
+        if ((offset < 0) || (length < 0) || (offset + length > bytes.length) || (offset + length < 0))
+            throw new IndexOutOfBoundsException("Invalid offset " + offset + " and length " + length);
+
+        while (length > 0) {
+            final int chunk = Math.min(length, MAX_REQUEST_LENGTH);
+            generate(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Generate up to MAX_REQUEST_LENGTH bytes */
+    private void generate(byte[] bytes, int offset, int length) {
+
+        /* Reseed if we have to */
+        if ((entropySource != null) && ((reseedCounter > RESEED_INTERVAL) ||
+                                        (System.nanoTime() - reseedTime > RESEED_NANOS))) {
+            final byte[] entropy = new byte[key.length];
+            try {
+                entropySource.nextBytes(entropy);
+                reseed(entropy, null);
+            } finally {
+                Arrays.fill(entropy, (byte) 0);
+            }
+        }
+
+        /* while (len (temp) < requested_number_of_bits) do: V = HMAC (K, V) */
+        try {
+            while (length > 0) {
+                mac.update(value);
+                mac.doFinal(value, 0);
+                final int chunk = Math.min(length, value.length);
+                System.arraycopy(value, 0, bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        } catch (ShortBufferException exception) {
+            throw new IllegalStateException("Exception generating random bytes", exception);
+        }
+
+        /* Update with no additional input */
+        update();
+        reseedCounter ++;
+    }
+
+    /* The HMAC_DRBG update function */
+    private void update(byte[]... provided) {
+        boolean empty = true;
+        for (byte[] data: provided) if ((data != null) && (data.length > 0)) empty = false;
+
+        update((byte) 0x00, provided);
+        if (!empty) update((byte) 0x01, provided);
+    }
+
+    /* K = HMAC (K, V || separator || provided); V = HMAC (K, V) */
+    private void update(byte separator, byte[][] provided) {
+        try {
+            mac.update(value);
+            mac.update(separator);
+            for (byte[] data: provided) if (data != null) mac.update(data);
+            mac.doFinal(key, 0);
+            rekey();
+            mac.update(value);
+            mac.doFinal(value, 0);
+        } catch (ShortBufferException exception) {
+            throw new IllegalStateException("Exception updating random generator", exception);
+        }
+    }
+
+    /* Draw entropy from a parent, locking it as it is not thread safe */
+    private static EntropySource parent(HMACDRBG parent) {
+        return (bytes) -> {
+            synchronized (parent) {
+                parent.nextBytes(bytes);
+            }
+        };
+    }
+
+    /* Initialize our Mac with our current key */
+    private void rekey() {
+        try {
+            mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+        } catch (InvalidKeyException exception) {
+            throw new IllegalStateException("Exception updating random generator", exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Where entropy comes from when (re)seeding */
+    private interface EntropySource {
+        void nextBytes(byte[] bytes);
+    }
+
+}
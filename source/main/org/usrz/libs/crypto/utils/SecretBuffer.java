@@ -0,0 +1,153 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.usrz.libs.utils.Check;
+
+/**
+ * A {@link SecretBuffer} wraps a <code>byte[]</code> of an exact length
+ * holding secret data (such as an encoded password), zeroing it and
+ * returning it to a shared pool when {@linkplain #close() closed}.
+ * <p>
+ * Arrays up to {@value #MAX_POOLED_LENGTH} bytes are pooled by length, so
+ * that the array returned by {@link #array()} can be passed as-is to APIs
+ * (like {@link org.usrz.libs.crypto.kdf.KDF KDF}s) which do not accept an
+ * offset and length. The pool is bounded and lock-free: when it is empty a
+ * new array is allocated, and when it is full closed arrays are simply
+ * left to the garbage collector (after being zeroed).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class SecretBuffer implements ClosingDestroyable {
+
+    /** The maximum length of the arrays kept in our pool. */
+    public static final int MAX_POOLED_LENGTH = 1024;
+    /* How many arrays of each length we pool */
+    private static final int SLOTS = 4;
+    /* Our pool of arrays, SLOTS for each length */
+    private static final AtomicReferenceArray<byte[]> pool =
+            new AtomicReferenceArray<>((MAX_POOLED_LENGTH + 1) * SLOTS);
+
+    /* Atomically clear our array, so that it is never pooled twice */
+    private static final AtomicReferenceFieldUpdater<SecretBuffer, byte[]> closer =
+            AtomicReferenceFieldUpdater.newUpdater(SecretBuffer.class, byte[].class, "array");
+
+    /* The wrapped array, null when destroyed */
+    private volatile byte[] array;
+
+    /* ====================================================================== */
+
+    private SecretBuffer(byte[] array) {
+        this.array = array;
+    }
+
+    /**
+     * Return a new {@link SecretBuffer} wrapping a zeroed <code>byte[]</code>
+     * of exactly the specified length.
+     */
+    public static SecretBuffer allocate(int length) {
+        if (length < 0) throw new IllegalArgumentException("Negative length " + length);
+        if (length <= MAX_POOLED_LENGTH) {
+            final int base = length * SLOTS;
+            for (int x = 0; x < SLOTS; x ++) {
+                final byte[] array = pool.getAndSet(base + x, null);
+                if (array != null) return new SecretBuffer(array);
+            }
+        }
+        return new SecretBuffer(new byte[length]);
+    }
+
+    /**
+     * Return a new {@link SecretBuffer} containing the specified characters
+     * encoded in <em>UTF-8</em>.
+     */
+    public static SecretBuffer encode(char[] chars) {
+        return encode(chars, UTF8);
+    }
+
+    /**
+     * Return a new {@link SecretBuffer} containing the specified characters
+     * encoded with the specified {@link Charset}.
+     */
+    public static SecretBuffer encode(char[] chars, Charset charset) {
+        Check.notNull(chars, "Null characters");
+        Check.notNull(charset, "Null charset");
+
+        /* Encode in a worst-case sized scratch buffer, then copy */
+        final int maxBytes = (int) Math.ceil(charset.newEncoder().maxBytesPerChar());
+        try (SecretBuffer scratch = allocate(chars.length * maxBytes)) {
+            final int length = CryptoUtils.encode(chars, 0, chars.length, charset, scratch.array, 0);
+            final SecretBuffer buffer = allocate(length);
+            System.arraycopy(scratch.array, 0, buffer.array, 0, length);
+            return buffer;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the <code>byte[]</code> wrapped by this {@link SecretBuffer}.
+     *
+     * @throws IllegalStateException If this instance was destroyed.
+     */
+    public byte[] array() {
+        final byte[] array = this.array;
+        if (array == null) throw new IllegalStateException("Destroyed");
+        return array;
+    }
+
+    /**
+     * Return the length of the <code>byte[]</code> wrapped by this instance.
+     *
+     * @throws IllegalStateException If this instance was destroyed.
+     */
+    public int length() {
+        return array().length;
+    }
+
+    /**
+     * Zero the wrapped <code>byte[]</code> and return it to the pool.
+     * <p>
+     * Closing is idempotent and thread safe: only the first call (even
+     * when racing with others) zeroes and pools the array.
+     */
+    @Override
+    public void close() {
+        final byte[] array = closer.getAndSet(this, null);
+        if (array == null) return;
+
+        Arrays.fill(array, (byte) 0);
+        if (array.length <= MAX_POOLED_LENGTH) {
+            final int base = array.length * SLOTS;
+            for (int x = 0; x < SLOTS; x ++) {
+                if (pool.compareAndSet(base + x, null, array)) return;
+            }
+        }
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return array == null;
+    }
+
+}
@@ -59,7 +59,7 @@ public class AESCrypto implements Crypto {
     public void close() {
         if (! destroyed) {
             synchronized (lock) {
-                CryptoUtils.destroyArray(password);
+                CryptoUtils.zeroArray(password);
                 destroyed = true;
             }
         }
@@ -67,9 +67,7 @@ public class AESCrypto implements Crypto {
 
     @Override
     public boolean isDestroyed() {
-        synchronized (lock) {
-            return destroyed;
-        }
+        return destroyed;
     }
 
     @Override
@@ -82,6 +80,22 @@ public class AESCrypto implements Crypto {
         return ! isDestroyed();
     }
 
+    /* Derive a key from a copy of our password, unless destroyed concurrently */
+    private byte[] deriveKey(byte[] salt) {
+        final byte[] copy;
+        synchronized (lock) {
+            if (destroyed) throw new IllegalStateException("Vault destroyed");
+            copy = password.clone();
+        }
+
+        /* Derivation is slow, never hold the lock while at it */
+        try {
+            return kdf.deriveKey(copy, salt);
+        } finally {
+            CryptoUtils.zeroArray(copy);
+        }
+    }
+
     @Override
     public byte[] encrypt(byte[] data)
     throws GeneralSecurityException {
@@ -92,7 +106,7 @@ public class AESCrypto implements Crypto {
 
         /* We use the Initialization Vector from AES as the salt for our KDF */
         final byte[] iv = CryptoUtils.randomBytes(cipher.getBlockSize());
-        final byte[] key = kdf.deriveKey(password, iv);
+        final byte[] key = deriveKey(iv);
         byte[] encrypted = null;
 
         try {
@@ -108,9 +122,8 @@ public class AESCrypto implements Crypto {
 
             return result;
         } finally {
-            CryptoUtils.destroyArray(encrypted);
-            CryptoUtils.destroyArray(key);
-            CryptoUtils.destroyArray(iv);
+            CryptoUtils.zeroArray(encrypted);
+            CryptoUtils.zeroArray(key);
         }
     }
 
@@ -125,7 +138,7 @@ public class AESCrypto implements Crypto {
         /* We use the Initialization Vector from AES as the salt for our KDF */
         final byte[] iv = new byte[cipher.getBlockSize()];
         System.arraycopy(data, 0, iv, 0, iv.length);
-        final byte[] key = kdf.deriveKey(password, iv);
+        final byte[] key = deriveKey(iv);
 
         try {
             final IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
@@ -134,8 +147,7 @@ public class AESCrypto implements Crypto {
             cipher.init(Cipher.DECRYPT_MODE, secretKey, ivParameterSpec, random);
             return cipher.doFinal(data, iv.length, data.length - iv.length);
         } finally {
-            CryptoUtils.destroyArray(key);
-            CryptoUtils.destroyArray(iv);
+            CryptoUtils.zeroArray(key);
         }
     }
 
@@ -21,6 +21,7 @@ import java.security.GeneralSecurityException;
 
 import org.usrz.libs.configurations.Password;
 import org.usrz.libs.crypto.utils.CryptoUtils;
+import org.usrz.libs.crypto.utils.SecretBuffer;
 import org.usrz.libs.utils.Check;
 import org.usrz.libs.utils.codecs.Codec;
 import org.usrz.libs.utils.codecs.ManagedCodec;
@@ -65,11 +66,8 @@ public class Vault implements Crypto {
 
     public String encryptPassword(Password password)
     throws GeneralSecurityException {
-        final byte[] bytes = CryptoUtils.safeEncode(password.get(), false);
-        try {
-            return getCodec().encode(encrypt(bytes));
-        } finally {
-            CryptoUtils.destroyArray(bytes);
+        try (SecretBuffer buffer = SecretBuffer.encode(password.get())) {
+            return getCodec().encode(encrypt(buffer.array()));
         }
     }
 
@@ -77,9 +75,9 @@ public class Vault implements Crypto {
     throws GeneralSecurityException {
         final byte[] bytes = getCodec().decode(string);
         try {
-            return new Password(CryptoUtils.safeDecode(decrypt(bytes), false));
+            return new Password(CryptoUtils.safeDecode(decrypt(bytes), true));
         } finally {
-            CryptoUtils.destroyArray(bytes);
+            CryptoUtils.zeroArray(bytes);
         }
     }
 
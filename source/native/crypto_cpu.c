@@ -0,0 +1,118 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+#include <stdint.h>
+#include <pthread.h>
+
+#include "crypto_cpu.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <cpuid.h>
+
+#ifndef bit_SSSE3
+#define bit_SSSE3   (1 << 9)
+#endif
+#ifndef bit_SSE4_1
+#define bit_SSE4_1  (1 << 19)
+#endif
+#ifndef bit_OSXSAVE
+#define bit_OSXSAVE (1 << 27)
+#endif
+#ifndef bit_AVX
+#define bit_AVX     (1 << 28)
+#endif
+#ifndef bit_AVX2
+#define bit_AVX2    (1 << 5)
+#endif
+#ifndef bit_AVX512F
+#define bit_AVX512F (1 << 16)
+#endif
+#ifndef bit_SHA
+#define bit_SHA     (1 << 29)
+#endif
+
+/* XCR0 bits: the OS saves XMM/YMM, and opmask/ZMM state on context switch */
+#define XCR0_AVX    0x06
+#define XCR0_AVX512 0xe6
+#endif
+
+static pthread_once_t detected = PTHREAD_ONCE_INIT;
+static int avx2 = 0;
+static int avx512f = 0;
+static int sha = 0;
+
+#if defined(__x86_64__) || defined(__i386__)
+static uint64_t
+xgetbv(uint32_t index)
+{
+	uint32_t eax, edx;
+
+	__asm__ __volatile__("xgetbv" : "=a"(eax), "=d"(edx) : "c"(index));
+	return (((uint64_t)(edx) << 32) | eax);
+}
+#endif
+
+/**
+ * detect():
+ * Query CPUID (once) for the features we care about.
+ */
+static void
+detect(void)
+{
+#if defined(__x86_64__) || defined(__i386__)
+	unsigned int eax, ebx, ecx, edx, ecx1;
+	uint64_t xcr0 = 0;
+
+	/* Leaf 1: SSSE3, SSE4.1, AVX, and whether we can query XCR0. */
+	if (!__get_cpuid(1, &eax, &ebx, &ecx1, &edx))
+		return;
+	if ((ecx1 & bit_OSXSAVE) && (ecx1 & bit_AVX))
+		xcr0 = xgetbv(0);
+
+	/* Leaf 7: AVX2, AVX-512F and SHA. */
+	if (__get_cpuid_max(0, NULL) < 7)
+		return;
+	__cpuid_count(7, 0, eax, ebx, ecx, edx);
+	sha = ((ebx & bit_SHA) != 0) &&
+	    ((ecx1 & (bit_SSSE3 | bit_SSE4_1)) == (bit_SSSE3 | bit_SSE4_1));
+	avx2 = ((ebx & bit_AVX2) != 0) && ((xcr0 & XCR0_AVX) == XCR0_AVX);
+	avx512f = avx2 && ((ebx & bit_AVX512F) != 0) &&
+	    ((xcr0 & XCR0_AVX512) == XCR0_AVX512);
+#endif
+}
+
+int
+crypto_cpu_avx2(void)
+{
+
+	pthread_once(&detected, detect);
+	return (avx2);
+}
+
+int
+crypto_cpu_avx512f(void)
+{
+
+	pthread_once(&detected, detect);
+	return (avx512f);
+}
+
+int
+crypto_cpu_sha(void)
+{
+
+	pthread_once(&detected, detect);
+	return (sha);
+}
@@ -0,0 +1,38 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+#ifndef _CRYPTO_CPU_H_
+#define _CRYPTO_CPU_H_
+
+/**
+ * crypto_cpu_avx2():
+ * Return non-zero if the CPU (and the operating system) support AVX2.
+ */
+int crypto_cpu_avx2(void);
+
+/**
+ * crypto_cpu_avx512f():
+ * Return non-zero if the CPU (and the operating system) support AVX-512F.
+ */
+int crypto_cpu_avx512f(void);
+
+/**
+ * crypto_cpu_sha():
+ * Return non-zero if the CPU supports the Intel SHA extensions (and the
+ * SSSE3 and SSE4.1 instructions used alongside them).
+ */
+int crypto_cpu_sha(void);
+
+#endif /* !_CRYPTO_CPU_H_ */
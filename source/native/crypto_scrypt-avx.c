@@ -0,0 +1,521 @@
+/*-
+ * Copyright 2009 Colin Percival
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file was originally written by Colin Percival as part of the Tarsnap
+ * online backup system; the AVX2 and AVX-512 kernels were derived from the
+ * SSE2 implementation in crypto_scrypt-sse.c.
+ */
+#include "scrypt_platform.h"
+
+#include <immintrin.h>
+#include <stdint.h>
+
+#include "sysendian.h"
+
+#include "crypto_scrypt-avx.h"
+
+#define AVX2   __attribute__((target("avx2")))
+#define AVX512 __attribute__((target("avx2,avx512f")))
+
+/*
+ * The kernels below compute w independent lanes at once: the 128 bits rows
+ * of the same salsa20/8 block of each lane are interleaved in a single w *
+ * 128 bits register, using the same (diagonal) word order as the SSE2 code.
+ * As shuffles operate within each 128 bits row, salsa20/8 is unchanged.
+ *
+ * V is never interleaved: each lane has its own region, so every random
+ * read of V_j touches exactly the same memory as the SSE2 code does, but w
+ * of them are outstanding at the same time.
+ */
+
+/* The 32-bit word e of 128 bits row v of lane l, in w interleaved lanes. */
+#define LANE32(X, w, v, l, e) (((uint32_t *)(X))[((v) * (w) + (l)) * 4 + (e)])
+
+static void lanes_load(void *, const uint8_t *, size_t, size_t);
+static void lanes_store(uint8_t *, void *, size_t, size_t);
+static uint64_t lanes_integerify(void *, size_t, size_t, size_t);
+
+/**
+ * lanes_load(X, B, r, w):
+ * Interleave the w consecutive lanes of 128r bytes in B into X.
+ */
+static void
+lanes_load(void * X, const uint8_t * B, size_t r, size_t w)
+{
+	size_t l, k, i;
+
+	for (l = 0; l < w; l++) {
+		for (k = 0; k < 2 * r; k++) {
+			for (i = 0; i < 16; i++) {
+				LANE32(X, w, k * 4 + i / 4, l, i % 4) =
+				    le32dec(&B[l * 128 * r +
+				    (k * 16 + (i * 5 % 16)) * 4]);
+			}
+		}
+	}
+}
+
+/**
+ * lanes_store(B, X, r, w):
+ * De-interleave X into the w consecutive lanes of 128r bytes in B.
+ */
+static void
+lanes_store(uint8_t * B, void * X, size_t r, size_t w)
+{
+	size_t l, k, i;
+
+	for (l = 0; l < w; l++) {
+		for (k = 0; k < 2 * r; k++) {
+			for (i = 0; i < 16; i++) {
+				le32enc(&B[l * 128 * r +
+				    (k * 16 + (i * 5 % 16)) * 4],
+				    LANE32(X, w, k * 4 + i / 4, l, i % 4));
+			}
+		}
+	}
+}
+
+/**
+ * lanes_integerify(X, r, w, l):
+ * Return the result of parsing B_{2r-1} of lane l as a little-endian
+ * integer (words 0 and 13 in our diagonal order are words 0 and 1).
+ */
+static uint64_t
+lanes_integerify(void * X, size_t r, size_t w, size_t l)
+{
+
+	return (((uint64_t)(LANE32(X, w, (2 * r - 1) * 4 + 3, l, 1)) << 32) +
+	    LANE32(X, w, (2 * r - 1) * 4, l, 0));
+}
+
+/* ====================================================================== */
+/* AVX2: two lanes                                                         */
+/* ====================================================================== */
+
+static AVX2 void
+blkcpy_x2(__m256i * D, __m256i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = S[i];
+}
+
+static AVX2 void
+blkxor_x2(__m256i * D, __m256i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = _mm256_xor_si256(D[i], S[i]);
+}
+
+/**
+ * salsa20_8_x2(B):
+ * Apply the salsa20/8 core to the provided (two lanes) block.
+ */
+static AVX2 void
+salsa20_8_x2(__m256i B[4])
+{
+	__m256i X0, X1, X2, X3;
+	__m256i T;
+	size_t i;
+
+	X0 = B[0];
+	X1 = B[1];
+	X2 = B[2];
+	X3 = B[3];
+
+	for (i = 0; i < 8; i += 2) {
+		/* Operate on "columns". */
+		T = _mm256_add_epi32(X0, X3);
+		X1 = _mm256_xor_si256(X1, _mm256_slli_epi32(T, 7));
+		X1 = _mm256_xor_si256(X1, _mm256_srli_epi32(T, 25));
+		T = _mm256_add_epi32(X1, X0);
+		X2 = _mm256_xor_si256(X2, _mm256_slli_epi32(T, 9));
+		X2 = _mm256_xor_si256(X2, _mm256_srli_epi32(T, 23));
+		T = _mm256_add_epi32(X2, X1);
+		X3 = _mm256_xor_si256(X3, _mm256_slli_epi32(T, 13));
+		X3 = _mm256_xor_si256(X3, _mm256_srli_epi32(T, 19));
+		T = _mm256_add_epi32(X3, X2);
+		X0 = _mm256_xor_si256(X0, _mm256_slli_epi32(T, 18));
+		X0 = _mm256_xor_si256(X0, _mm256_srli_epi32(T, 14));
+
+		/* Rearrange data. */
+		X1 = _mm256_shuffle_epi32(X1, 0x93);
+		X2 = _mm256_shuffle_epi32(X2, 0x4E);
+		X3 = _mm256_shuffle_epi32(X3, 0x39);
+
+		/* Operate on "rows". */
+		T = _mm256_add_epi32(X0, X1);
+		X3 = _mm256_xor_si256(X3, _mm256_slli_epi32(T, 7));
+		X3 = _mm256_xor_si256(X3, _mm256_srli_epi32(T, 25));
+		T = _mm256_add_epi32(X3, X0);
+		X2 = _mm256_xor_si256(X2, _mm256_slli_epi32(T, 9));
+		X2 = _mm256_xor_si256(X2, _mm256_srli_epi32(T, 23));
+		T = _mm256_add_epi32(X2, X3);
+		X1 = _mm256_xor_si256(X1, _mm256_slli_epi32(T, 13));
+		X1 = _mm256_xor_si256(X1, _mm256_srli_epi32(T, 19));
+		T = _mm256_add_epi32(X1, X2);
+		X0 = _mm256_xor_si256(X0, _mm256_slli_epi32(T, 18));
+		X0 = _mm256_xor_si256(X0, _mm256_srli_epi32(T, 14));
+
+		/* Rearrange data. */
+		X1 = _mm256_shuffle_epi32(X1, 0x39);
+		X2 = _mm256_shuffle_epi32(X2, 0x4E);
+		X3 = _mm256_shuffle_epi32(X3, 0x93);
+	}
+
+	B[0] = _mm256_add_epi32(B[0], X0);
+	B[1] = _mm256_add_epi32(B[1], X1);
+	B[2] = _mm256_add_epi32(B[2], X2);
+	B[3] = _mm256_add_epi32(B[3], X3);
+}
+
+/**
+ * blockmix_salsa8_x2(Bin, Bout, X, r):
+ * Compute Bout = BlockMix_{salsa20/8, r}(Bin) for two lanes.  The input Bin
+ * must be 2 * 128r bytes in length; the output Bout must also be the same
+ * size.  The temporary space X must be 2 * 64 bytes.
+ */
+static AVX2 void
+blockmix_salsa8_x2(__m256i * Bin, __m256i * Bout, __m256i * X, size_t r)
+{
+	size_t i;
+
+	/* 1: X <-- B_{2r - 1} */
+	blkcpy_x2(X, &Bin[8 * r - 4], 4);
+
+	/* 2: for i = 0 to 2r - 1 do */
+	for (i = 0; i < r; i++) {
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor_x2(X, &Bin[i * 8], 4);
+		salsa20_8_x2(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy_x2(&Bout[i * 4], X, 4);
+
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor_x2(X, &Bin[i * 8 + 4], 4);
+		salsa20_8_x2(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy_x2(&Bout[(r + i) * 4], X, 4);
+	}
+}
+
+/**
+ * lanes_save_x2(V0, V1, X, L):
+ * Store the L rows of each of the two lanes in X into V0 and V1.
+ */
+static AVX2 void
+lanes_save_x2(__m128i * V0, __m128i * V1, __m256i * X, size_t L)
+{
+	size_t k;
+
+	for (k = 0; k < L; k++) {
+		_mm_store_si128(&V0[k], _mm256_castsi256_si128(X[k]));
+		_mm_store_si128(&V1[k], _mm256_extracti128_si256(X[k], 1));
+	}
+}
+
+/**
+ * lanes_xor_x2(X, V0, V1, L):
+ * XOR the L rows of V0 and V1 into each of the two lanes in X.
+ */
+static AVX2 void
+lanes_xor_x2(__m256i * X, __m128i * V0, __m128i * V1, size_t L)
+{
+	__m256i T;
+	size_t k;
+
+	for (k = 0; k < L; k++) {
+		T = _mm256_castsi128_si256(_mm_load_si128(&V0[k]));
+		T = _mm256_inserti128_si256(T, _mm_load_si128(&V1[k]), 1);
+		X[k] = _mm256_xor_si256(X[k], T);
+	}
+}
+
+AVX2 void
+smix_avx2(uint8_t * B, size_t r, uint64_t N, void * V, void * XY)
+{
+	__m256i * X = XY;
+	__m256i * Y = (void *)((uintptr_t)(XY) + 2 * 128 * r);
+	__m256i * Z = (void *)((uintptr_t)(XY) + 2 * 256 * r);
+	__m128i * V0 = V;
+	__m128i * V1 = (void *)((uintptr_t)(V) + 128 * r * N);
+	uint64_t i, j0, j1;
+
+	/* 1: X <-- B */
+	lanes_load(X, B, r, 2);
+
+	/* 2: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 3: V_i <-- X */
+		lanes_save_x2(&V0[i * 8 * r], &V1[i * 8 * r], X, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8_x2(X, Y, Z, r);
+
+		/* 3: V_i <-- X */
+		lanes_save_x2(&V0[(i + 1) * 8 * r], &V1[(i + 1) * 8 * r],
+		    Y, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8_x2(Y, X, Z, r);
+	}
+
+	/* 6: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 7: j <-- Integerify(X) mod N */
+		j0 = lanes_integerify(X, r, 2, 0) & (N - 1);
+		j1 = lanes_integerify(X, r, 2, 1) & (N - 1);
+
+		/* 8: X <-- H(X \xor V_j) */
+		lanes_xor_x2(X, &V0[j0 * 8 * r], &V1[j1 * 8 * r], 8 * r);
+		blockmix_salsa8_x2(X, Y, Z, r);
+
+		/* 7: j <-- Integerify(X) mod N */
+		j0 = lanes_integerify(Y, r, 2, 0) & (N - 1);
+		j1 = lanes_integerify(Y, r, 2, 1) & (N - 1);
+
+		/* 8: X <-- H(X \xor V_j) */
+		lanes_xor_x2(Y, &V0[j0 * 8 * r], &V1[j1 * 8 * r], 8 * r);
+		blockmix_salsa8_x2(Y, X, Z, r);
+	}
+
+	/* 10: B' <-- X */
+	lanes_store(B, X, r, 2);
+}
+
+/* ====================================================================== */
+/* AVX-512: four lanes                                                     */
+/* ====================================================================== */
+
+static AVX512 void
+blkcpy_x4(__m512i * D, __m512i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = S[i];
+}
+
+static AVX512 void
+blkxor_x4(__m512i * D, __m512i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = _mm512_xor_si512(D[i], S[i]);
+}
+
+/**
+ * salsa20_8_x4(B):
+ * Apply the salsa20/8 core to the provided (four lanes) block, using the
+ * AVX-512 rotate instruction rather than two shifts.
+ */
+static AVX512 void
+salsa20_8_x4(__m512i B[4])
+{
+	__m512i X0, X1, X2, X3;
+	__m512i T;
+	size_t i;
+
+	X0 = B[0];
+	X1 = B[1];
+	X2 = B[2];
+	X3 = B[3];
+
+	for (i = 0; i < 8; i += 2) {
+		/* Operate on "columns". */
+		T = _mm512_add_epi32(X0, X3);
+		X1 = _mm512_xor_si512(X1, _mm512_rol_epi32(T, 7));
+		T = _mm512_add_epi32(X1, X0);
+		X2 = _mm512_xor_si512(X2, _mm512_rol_epi32(T, 9));
+		T = _mm512_add_epi32(X2, X1);
+		X3 = _mm512_xor_si512(X3, _mm512_rol_epi32(T, 13));
+		T = _mm512_add_epi32(X3, X2);
+		X0 = _mm512_xor_si512(X0, _mm512_rol_epi32(T, 18));
+
+		/* Rearrange data. */
+		X1 = _mm512_shuffle_epi32(X1, (_MM_PERM_ENUM) 0x93);
+		X2 = _mm512_shuffle_epi32(X2, (_MM_PERM_ENUM) 0x4E);
+		X3 = _mm512_shuffle_epi32(X3, (_MM_PERM_ENUM) 0x39);
+
+		/* Operate on "rows". */
+		T = _mm512_add_epi32(X0, X1);
+		X3 = _mm512_xor_si512(X3, _mm512_rol_epi32(T, 7));
+		T = _mm512_add_epi32(X3, X0);
+		X2 = _mm512_xor_si512(X2, _mm512_rol_epi32(T, 9));
+		T = _mm512_add_epi32(X2, X3);
+		X1 = _mm512_xor_si512(X1, _mm512_rol_epi32(T, 13));
+		T = _mm512_add_epi32(X1, X2);
+		X0 = _mm512_xor_si512(X0, _mm512_rol_epi32(T, 18));
+
+		/* Rearrange data. */
+		X1 = _mm512_shuffle_epi32(X1, (_MM_PERM_ENUM) 0x39);
+		X2 = _mm512_shuffle_epi32(X2, (_MM_PERM_ENUM) 0x4E);
+		X3 = _mm512_shuffle_epi32(X3, (_MM_PERM_ENUM) 0x93);
+	}
+
+	B[0] = _mm512_add_epi32(B[0], X0);
+	B[1] = _mm512_add_epi32(B[1], X1);
+	B[2] = _mm512_add_epi32(B[2], X2);
+	B[3] = _mm512_add_epi32(B[3], X3);
+}
+
+/**
+ * blockmix_salsa8_x4(Bin, Bout, X, r):
+ * Compute Bout = BlockMix_{salsa20/8, r}(Bin) for four lanes.  The input
+ * Bin must be 4 * 128r bytes in length; the output Bout must also be the
+ * same size.  The temporary space X must be 4 * 64 bytes.
+ */
+static AVX512 void
+blockmix_salsa8_x4(__m512i * Bin, __m512i * Bout, __m512i * X, size_t r)
+{
+	size_t i;
+
+	/* 1: X <-- B_{2r - 1} */
+	blkcpy_x4(X, &Bin[8 * r - 4], 4);
+
+	/* 2: for i = 0 to 2r - 1 do */
+	for (i = 0; i < r; i++) {
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor_x4(X, &Bin[i * 8], 4);
+		salsa20_8_x4(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy_x4(&Bout[i * 4], X, 4);
+
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor_x4(X, &Bin[i * 8 + 4], 4);
+		salsa20_8_x4(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy_x4(&Bout[(r + i) * 4], X, 4);
+	}
+}
+
+/**
+ * lanes_save_x4(V, X, L):
+ * Store the L rows of each of the four lanes in X into V[0] ... V[3].
+ */
+static AVX512 void
+lanes_save_x4(__m128i * V[4], __m512i * X, size_t L)
+{
+	size_t k;
+
+	for (k = 0; k < L; k++) {
+		_mm_store_si128(&V[0][k], _mm512_castsi512_si128(X[k]));
+		_mm_store_si128(&V[1][k], _mm512_extracti32x4_epi32(X[k], 1));
+		_mm_store_si128(&V[2][k], _mm512_extracti32x4_epi32(X[k], 2));
+		_mm_store_si128(&V[3][k], _mm512_extracti32x4_epi32(X[k], 3));
+	}
+}
+
+/**
+ * lanes_xor_x4(X, V, L):
+ * XOR the L rows of V[0] ... V[3] into each of the four lanes in X.
+ */
+static AVX512 void
+lanes_xor_x4(__m512i * X, __m128i * V[4], size_t L)
+{
+	__m512i T;
+	size_t k;
+
+	for (k = 0; k < L; k++) {
+		T = _mm512_castsi128_si512(_mm_load_si128(&V[0][k]));
+		T = _mm512_inserti32x4(T, _mm_load_si128(&V[1][k]), 1);
+		T = _mm512_inserti32x4(T, _mm_load_si128(&V[2][k]), 2);
+		T = _mm512_inserti32x4(T, _mm_load_si128(&V[3][k]), 3);
+		X[k] = _mm512_xor_si512(X[k], T);
+	}
+}
+
+AVX512 void
+smix_avx512(uint8_t * B, size_t r, uint64_t N, void * V, void * XY)
+{
+	__m512i * X = XY;
+	__m512i * Y = (void *)((uintptr_t)(XY) + 4 * 128 * r);
+	__m512i * Z = (void *)((uintptr_t)(XY) + 4 * 256 * r);
+	__m128i * Vl[4];
+	__m128i * Vj[4];
+	uint64_t i;
+	size_t l;
+
+	for (l = 0; l < 4; l++)
+		Vl[l] = (void *)((uintptr_t)(V) + l * 128 * r * N);
+
+	/* 1: X <-- B */
+	lanes_load(X, B, r, 4);
+
+	/* 2: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 3: V_i <-- X */
+		for (l = 0; l < 4; l++)
+			Vj[l] = &Vl[l][i * 8 * r];
+		lanes_save_x4(Vj, X, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8_x4(X, Y, Z, r);
+
+		/* 3: V_i <-- X */
+		for (l = 0; l < 4; l++)
+			Vj[l] = &Vl[l][(i + 1) * 8 * r];
+		lanes_save_x4(Vj, Y, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8_x4(Y, X, Z, r);
+	}
+
+	/* 6: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 7: j <-- Integerify(X) mod N */
+		for (l = 0; l < 4; l++)
+			Vj[l] = &Vl[l][(lanes_integerify(X, r, 4, l) &
+			    (N - 1)) * 8 * r];
+
+		/* 8: X <-- H(X \xor V_j) */
+		lanes_xor_x4(X, Vj, 8 * r);
+		blockmix_salsa8_x4(X, Y, Z, r);
+
+		/* 7: j <-- Integerify(X) mod N */
+		for (l = 0; l < 4; l++)
+			Vj[l] = &Vl[l][(lanes_integerify(Y, r, 4, l) &
+			    (N - 1)) * 8 * r];
+
+		/* 8: X <-- H(X \xor V_j) */
+		lanes_xor_x4(Y, Vj, 8 * r);
+		blockmix_salsa8_x4(Y, X, Z, r);
+	}
+
+	/* 10: B' <-- X */
+	lanes_store(B, X, r, 4);
+}
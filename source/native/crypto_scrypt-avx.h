@@ -0,0 +1,48 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+#ifndef _CRYPTO_SCRYPT_AVX_H_
+#define _CRYPTO_SCRYPT_AVX_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * smix_avx2(B, r, N, V, XY):
+ * Compute B_l = SMix_r(B_l, N) for the two consecutive lanes B_0 and B_1 of
+ * 128r bytes each, interleaving them in 256 bits AVX2 registers.  The
+ * temporary storage V must be 2 * 128rN bytes in length (each lane using
+ * its own half); the temporary storage XY must be 2 * (256r + 64) bytes in
+ * length.  The value N must be a power of 2 greater than 1.  The arrays V
+ * and XY must be aligned to a multiple of 64 bytes.
+ *
+ * Only to be called if crypto_cpu_avx2() returns non-zero.
+ */
+void smix_avx2(uint8_t *, size_t, uint64_t, void *, void *);
+
+/**
+ * smix_avx512(B, r, N, V, XY):
+ * Compute B_l = SMix_r(B_l, N) for the four consecutive lanes B_0 ... B_3
+ * of 128r bytes each, interleaving them in 512 bits AVX-512 registers.  The
+ * temporary storage V must be 4 * 128rN bytes in length (each lane using
+ * its own quarter); the temporary storage XY must be 4 * (256r + 64) bytes
+ * in length.  The value N must be a power of 2 greater than 1.  The arrays
+ * V and XY must be aligned to a multiple of 64 bytes.
+ *
+ * Only to be called if crypto_cpu_avx512f() returns non-zero.
+ */
+void smix_avx512(uint8_t *, size_t, uint64_t, void *, void *);
+
+#endif /* !_CRYPTO_SCRYPT_AVX_H_ */
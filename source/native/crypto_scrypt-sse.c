@@ -33,6 +33,7 @@
 
 #include <emmintrin.h>
 #include <errno.h>
+#include <pthread.h>
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
@@ -40,8 +41,17 @@
 #include "sha256.h"
 #include "sysendian.h"
 
+#include "crypto_cpu.h"
+#include "crypto_scrypt-avx.h"
 #include "crypto_scrypt.h"
 
+/*
+ * The AVX2 and AVX-512 kernels compute 2 or 4 lanes at once, each needing
+ * its own 128rN bytes of V: only interleave lanes while the memory used by
+ * a single thread stays below this limit.
+ */
+#define SCRYPT_INTERLEAVE_MEMORY ((uint64_t)(64) << 20)
+
 static void blkcpy(void *, void *, size_t);
 static void blkxor(void *, void *, size_t);
 static void salsa20_8(__m128i *);
@@ -249,6 +259,165 @@ smix(uint8_t * B, size_t r, uint64_t N, void * V, void * XY)
 	}
 }
 
+/**
+ * smix_alloc(r, N, w, V0, V, XY0, XY):
+ * Allocate the temporary storage V (w * 128rN bytes) and XY (w * (256r +
+ * 64) bytes) required to compute w lanes at once, aligned to a multiple of
+ * 64 bytes.  The pointers to be released by smix_free are stored in V0 and
+ * XY0.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+static int
+smix_alloc(size_t r, uint64_t N, uint32_t w, void ** V0, uint32_t ** V,
+    void ** XY0, uint32_t ** XY)
+{
+
+#ifdef HAVE_POSIX_MEMALIGN
+	if ((errno = posix_memalign(XY0, 64, w * (256 * r + 64))) != 0)
+		goto err0;
+	*XY = (uint32_t *)(*XY0);
+#ifndef MAP_ANON
+	if ((errno = posix_memalign(V0, 64, w * 128 * r * N)) != 0)
+		goto err1;
+	*V = (uint32_t *)(*V0);
+#endif
+#else
+	if ((*XY0 = malloc(w * (256 * r + 64) + 63)) == NULL)
+		goto err0;
+	*XY = (uint32_t *)(((uintptr_t)(*XY0) + 63) & ~ (uintptr_t)(63));
+#ifndef MAP_ANON
+	if ((*V0 = malloc(w * 128 * r * N + 63)) == NULL)
+		goto err1;
+	*V = (uint32_t *)(((uintptr_t)(*V0) + 63) & ~ (uintptr_t)(63));
+#endif
+#endif
+#ifdef MAP_ANON
+	if ((*V0 = mmap(NULL, w * 128 * r * N, PROT_READ | PROT_WRITE,
+#ifdef MAP_NOCORE
+	    MAP_ANON | MAP_PRIVATE | MAP_NOCORE,
+#else
+	    MAP_ANON | MAP_PRIVATE,
+#endif
+	    -1, 0)) == MAP_FAILED)
+		goto err1;
+	*V = (uint32_t *)(*V0);
+#endif
+
+	/* Success! */
+	return (0);
+
+err1:
+	free(*XY0);
+err0:
+	/* Failure! */
+	return (-1);
+}
+
+/**
+ * smix_free(r, N, w, V0, XY0):
+ * Release the temporary storage allocated by smix_alloc.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+static int
+smix_free(size_t r, uint64_t N, uint32_t w, void * V0, void * XY0)
+{
+
+	free(XY0);
+#ifdef MAP_ANON
+	if (munmap(V0, w * 128 * r * N))
+		return (-1);
+#else
+	free(V0);
+#endif
+	return (0);
+}
+
+/**
+ * The state shared by all threads computing the p lanes of SMix: each
+ * thread (including the caller) claims the next w unprocessed lanes until
+ * none is left, so that lanes get processed even if not all threads started.
+ */
+struct smix_lanes {
+	uint8_t * B;
+	size_t r;
+	uint64_t N;
+	uint32_t p;
+	uint32_t w;
+	uint32_t next;
+};
+
+/**
+ * smix_kernel_width():
+ * Return the number of lanes computed at once by the widest kernel
+ * supported by this CPU: 4 for AVX-512, 2 for AVX2, or 1 for SSE2.
+ */
+static uint32_t
+smix_kernel_width(void)
+{
+
+	if (crypto_cpu_avx512f())
+		return (4);
+	if (crypto_cpu_avx2())
+		return (2);
+	return (1);
+}
+
+/**
+ * smix_lanes_run(lanes, V, XY):
+ * Compute B_i = SMix_r(B_i, N) for all unclaimed lanes, using the provided
+ * temporary storage V and XY (sized for w lanes), and the widest kernels
+ * available for the lanes claimed.
+ */
+static void
+smix_lanes_run(struct smix_lanes * lanes, uint32_t * V, uint32_t * XY)
+{
+	uint8_t * B;
+	uint32_t i, n, k;
+
+	while ((i = __sync_fetch_and_add(&lanes->next, lanes->w)) < lanes->p) {
+		B = &lanes->B[i * 128 * lanes->r];
+		n = lanes->p - i;
+		if (n > lanes->w)
+			n = lanes->w;
+
+		/* As w never exceeds the kernel width, n >= 4 implies AVX-512. */
+		for (; n > 0; n -= k, B += k * 128 * lanes->r) {
+			if (n >= 4) {
+				smix_avx512(B, lanes->r, lanes->N, V, XY);
+				k = 4;
+			} else if (n >= 2) {
+				smix_avx2(B, lanes->r, lanes->N, V, XY);
+				k = 2;
+			} else {
+				smix(B, lanes->r, lanes->N, V, XY);
+				k = 1;
+			}
+		}
+	}
+}
+
+/**
+ * smix_lanes_thread(lanes):
+ * The body of a worker thread: allocate our own temporary storage and
+ * process lanes, leaving them to other threads if allocation fails.
+ */
+static void *
+smix_lanes_thread(void * arg)
+{
+	struct smix_lanes * lanes = arg;
+	void * V0, * XY0;
+	uint32_t * V;
+	uint32_t * XY;
+
+	if (smix_alloc(lanes->r, lanes->N, lanes->w, &V0, &V, &XY0, &XY))
+		return (NULL);
+	smix_lanes_run(lanes, V, XY);
+	smix_free(lanes->r, lanes->N, lanes->w, V0, XY0);
+	return (NULL);
+}
+
 /**
  * crypto_scrypt(passwd, passwdlen, salt, saltlen, N, r, p, buf, buflen):
  * Compute scrypt(passwd[0 .. passwdlen - 1], salt[0 .. saltlen - 1], N, r,
@@ -263,11 +432,51 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
     const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
     uint8_t * buf, size_t buflen)
 {
+
+	return (crypto_scrypt_threads(passwd, passwdlen, salt, saltlen,
+	    N, r, p, buf, buflen, 1));
+}
+
+/**
+ * crypto_scrypt_kernel():
+ * Return the name of the widest SMix kernel supported by this CPU.
+ */
+const char *
+crypto_scrypt_kernel(void)
+{
+
+	switch (smix_kernel_width()) {
+	case 4:
+		return ("avx512");
+	case 2:
+		return ("avx2");
+	default:
+		return ("sse2");
+	}
+}
+
+/**
+ * crypto_scrypt_threads(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+ *     buflen, threads):
+ * Compute scrypt(passwd[0 .. passwdlen - 1], salt[0 .. saltlen - 1], N, r,
+ * p, buflen) exactly like crypto_scrypt, processing the p lanes of SMix on
+ * up to "threads" threads (the caller included), each one using its own
+ * 128rN bytes of temporary storage for every lane it computes at once.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+int
+crypto_scrypt_threads(const uint8_t * passwd, size_t passwdlen,
+    const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
+    uint8_t * buf, size_t buflen, uint32_t threads)
+{
 	void * B0, * V0, * XY0;
 	uint8_t * B;
 	uint32_t * V;
 	uint32_t * XY;
-	uint32_t i;
+	struct smix_lanes lanes;
+	pthread_t workers[SCRYPT_MAX_THREADS - 1];
+	uint32_t started, i, w;
 
 	/* Sanity-check parameters. */
 #if SIZE_MAX > UINT32_MAX
@@ -292,72 +501,79 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
 		errno = ENOMEM;
 		goto err0;
 	}
+	if (threads < 1) {
+		errno = EINVAL;
+		goto err0;
+	}
 
-	/* Allocate memory. */
+	/* No point in having more threads than lanes. */
+	if (threads > p)
+		threads = p;
+	if (threads > SCRYPT_MAX_THREADS)
+		threads = SCRYPT_MAX_THREADS;
+
+	/*
+	 * Interleave as many lanes as our kernels can, as long as memory
+	 * permits and no thread is left without lanes to compute.
+	 */
+	w = smix_kernel_width();
+	while ((w > 1) && ((w > (p + threads - 1) / threads) ||
+	    ((uint64_t)(w) * 128 * r * N > SCRYPT_INTERLEAVE_MEMORY)))
+		w /= 2;
+
+	/* Allocate memory (our own temporary storage included). */
 #ifdef HAVE_POSIX_MEMALIGN
 	if ((errno = posix_memalign(&B0, 64, 128 * r * p)) != 0)
 		goto err0;
 	B = (uint8_t *)(B0);
-	if ((errno = posix_memalign(&XY0, 64, 256 * r + 64)) != 0)
-		goto err1;
-	XY = (uint32_t *)(XY0);
-#ifndef MAP_ANON
-	if ((errno = posix_memalign(&V0, 64, 128 * r * N)) != 0)
-		goto err2;
-	V = (uint32_t *)(V0);
-#endif
 #else
 	if ((B0 = malloc(128 * r * p + 63)) == NULL)
 		goto err0;
 	B = (uint8_t *)(((uintptr_t)(B0) + 63) & ~ (uintptr_t)(63));
-	if ((XY0 = malloc(256 * r + 64 + 63)) == NULL)
-		goto err1;
-	XY = (uint32_t *)(((uintptr_t)(XY0) + 63) & ~ (uintptr_t)(63));
-#ifndef MAP_ANON
-	if ((V0 = malloc(128 * r * N + 63)) == NULL)
-		goto err2;
-	V = (uint32_t *)(((uintptr_t)(V0) + 63) & ~ (uintptr_t)(63));
-#endif
-#endif
-#ifdef MAP_ANON
-	if ((V0 = mmap(NULL, 128 * r * N, PROT_READ | PROT_WRITE,
-#ifdef MAP_NOCORE
-	    MAP_ANON | MAP_PRIVATE | MAP_NOCORE,
-#else
-	    MAP_ANON | MAP_PRIVATE,
-#endif
-	    -1, 0)) == MAP_FAILED)
-		goto err2;
-	V = (uint32_t *)(V0);
 #endif
+	while (smix_alloc(r, N, w, &V0, &V, &XY0, &XY)) {
+		/* Retry without interleaving lanes before giving up. */
+		if (w == 1)
+			goto err1;
+		w = 1;
+	}
 
 	/* 1: (B_0 ... B_{p-1}) <-- PBKDF2(P, S, 1, p * MFLen) */
 	PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, 1, B, p * 128 * r);
 
 	/* 2: for i = 0 to p - 1 do */
-	for (i = 0; i < p; i++) {
-		/* 3: B_i <-- MF(B_i, N) */
-		smix(&B[i * 128 * r], r, N, V, XY);
+	lanes.B = B;
+	lanes.r = r;
+	lanes.N = N;
+	lanes.p = p;
+	lanes.w = w;
+	lanes.next = 0;
+
+	/* Start our workers, if one fails we simply go on with fewer. */
+	for (started = 0; started < threads - 1; started++) {
+		if (pthread_create(&workers[started], NULL,
+		    smix_lanes_thread, &lanes))
+			break;
 	}
 
+	/* 3: B_i <-- MF(B_i, N) */
+	smix_lanes_run(&lanes, V, XY);
+
+	/* Wait for the lanes being processed by our workers. */
+	for (i = 0; i < started; i++)
+		pthread_join(workers[i], NULL);
+
 	/* 5: DK <-- PBKDF2(P, B, 1, dkLen) */
 	PBKDF2_SHA256(passwd, passwdlen, B, p * 128 * r, 1, buf, buflen);
 
 	/* Free memory. */
-#ifdef MAP_ANON
-	if (munmap(V0, 128 * r * N))
-		goto err2;
-#else
-	free(V0);
-#endif
-	free(XY0);
+	if (smix_free(r, N, w, V0, XY0))
+		goto err1;
 	free(B0);
 
 	/* Success! */
 	return (0);
 
-err2:
-	free(XY0);
 err1:
 	free(B0);
 err0:
@@ -43,4 +43,27 @@
 int crypto_scrypt(const uint8_t *, size_t, const uint8_t *, size_t, uint64_t,
     uint32_t, uint32_t, uint8_t *, size_t);
 
+/* The maximum number of threads used by crypto_scrypt_threads. */
+#define SCRYPT_MAX_THREADS 64
+
+/**
+ * crypto_scrypt_threads(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+ *     buflen, threads):
+ * Compute exactly what crypto_scrypt does, processing the p lanes of SMix
+ * on up to min(threads, p, SCRYPT_MAX_THREADS) threads, each one allocating
+ * its own 128rN bytes of temporary storage.  The parameter threads must be
+ * greater than zero.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+int crypto_scrypt_threads(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t, uint32_t);
+
+/**
+ * crypto_scrypt_kernel():
+ * Return the name of the widest SMix kernel supported by this CPU, one of
+ * "avx512" (four lanes at once), "avx2" (two lanes) or "sse2" (one lane).
+ */
+const char * crypto_scrypt_kernel(void);
+
 #endif /* !_CRYPTO_SCRYPT_H_ */
@@ -2,21 +2,31 @@
 
 #include <errno.h>
 #include <stdlib.h>
+#include <string.h>
 #include <inttypes.h>
 
 #include <jni.h>
 #include "crypto_scrypt.h"
-
-void JNICALL scrypt_jni(JNIEnv *env,
-                        jclass cls,
-                        jbyteArray passwd,
-                        jbyteArray salt,
-                        jbyteArray out,
-                        jint offset,
-                        jint length,
-                        jint N,
-                        jint r,
-                        jint p)
+#include "sha256.h"
+
+/*
+ * The version of the JNI interface exported by this library, checked by
+ * SCryptNativeHelper: version 1 (without a "version" entry point) only
+ * exported "scrypt", version 2 adds "scryptThreads", "pbkdf2", "kernel"
+ * and "sha256Transform". Bump it whenever an entry point is added.
+ */
+#define SCRYPT_JNI_VERSION 2
+
+static void scrypt_common(JNIEnv *env,
+                          jbyteArray passwd,
+                          jbyteArray salt,
+                          jbyteArray out,
+                          jint offset,
+                          jint length,
+                          jint N,
+                          jint r,
+                          jint p,
+                          jint threads)
 {
 
     jint Plen = -1, Slen = -1;
@@ -52,7 +62,7 @@ void JNICALL scrypt_jni(JNIEnv *env,
     }
 
     /* Yay! Go ahead */
-    if (crypto_scrypt((uint8_t *) P, Plen, (uint8_t *) S, Slen, N, r, p, buf, length)) {
+    if (crypto_scrypt_threads((uint8_t *) P, Plen, (uint8_t *) S, Slen, N, r, p, buf, length, threads)) {
         jclass e;
         char *msg;
         switch (errno) {
@@ -84,8 +94,128 @@ void JNICALL scrypt_jni(JNIEnv *env,
     if (buf) free(buf);
 }
 
+void JNICALL scrypt_jni(JNIEnv *env,
+                        jclass cls,
+                        jbyteArray passwd,
+                        jbyteArray salt,
+                        jbyteArray out,
+                        jint offset,
+                        jint length,
+                        jint N,
+                        jint r,
+                        jint p)
+{
+    scrypt_common(env, passwd, salt, out, offset, length, N, r, p, 1);
+}
+
+void JNICALL scrypt_threads_jni(JNIEnv *env,
+                                jclass cls,
+                                jbyteArray passwd,
+                                jbyteArray salt,
+                                jbyteArray out,
+                                jint offset,
+                                jint length,
+                                jint N,
+                                jint r,
+                                jint p,
+                                jint threads)
+{
+    if (threads < 1) {
+      jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+      (*env)->ThrowNew(env, e, "Invalid number of threads passed to native SCrypt");
+      return;
+    }
+    scrypt_common(env, passwd, salt, out, offset, length, N, r, p, threads);
+}
+
+void JNICALL pbkdf2_jni(JNIEnv *env,
+                        jclass cls,
+                        jbyteArray passwd,
+                        jbyteArray salt,
+                        jbyteArray out,
+                        jint offset,
+                        jint length,
+                        jint c)
+{
+
+    jint Plen = -1, Slen = -1;
+    jbyte *P = NULL, *S = NULL;
+    uint8_t *buf = NULL;
+
+    /* Check our parameters */
+    if (passwd == NULL || salt == NULL || out == NULL) {
+      jclass e = (*env)->FindClass(env, "java/lang/NullPointerException");
+      (*env)->ThrowNew(env, e, "Invalid parameter passed to native PBKDF2");
+      goto cleanup;
+    }
+
+    if (length < 1 || c < 1) {
+      jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+      (*env)->ThrowNew(env, e, "Invalid parameters passed to native PBKDF2");
+      goto cleanup;
+    }
+
+    /* Get our buffers and buffer lengths */
+    Plen = (*env)->GetArrayLength(env, passwd);
+    Slen = (*env)->GetArrayLength(env, salt);
+    P = (*env)->GetByteArrayElements(env, passwd, NULL);
+    S = (*env)->GetByteArrayElements(env, salt,   NULL);
+
+    if (P == NULL || S == NULL)  {
+      jclass e = (*env)->FindClass(env, "java/lang/InternalError");
+      (*env)->ThrowNew(env, e, "Unable to get array elements in native PBKDF2");
+      goto cleanup;
+    }
+
+    /* Allocate some memory for our processing */
+    buf = malloc(sizeof(uint8_t) * length);
+
+    if (buf == NULL) {
+      jclass e = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+      (*env)->ThrowNew(env, e, "Memory allocation for PBKDF2 failed");
+      goto cleanup;
+    }
+
+    /* Go ahead, and fill the Java array with the result */
+    PBKDF2_SHA256((uint8_t *) P, Plen, (uint8_t *) S, Slen, c, buf, length);
+    (*env)->SetByteArrayRegion(env, out, offset, length, (jbyte *) buf);
+
+  cleanup:
+
+    /* Cleanup before getting back */
+    if (P) (*env)->ReleaseByteArrayElements(env, passwd, P, JNI_ABORT);
+    if (S) (*env)->ReleaseByteArrayElements(env, salt,   S, JNI_ABORT);
+    if (buf) {
+        memset(buf, 0, length);
+        free(buf);
+    }
+}
+
+jstring JNICALL kernel_jni(JNIEnv *env,
+                           jclass cls)
+{
+    return (*env)->NewStringUTF(env, crypto_scrypt_kernel());
+}
+
+jstring JNICALL sha256_transform_jni(JNIEnv *env,
+                                     jclass cls)
+{
+    return (*env)->NewStringUTF(env, SHA256_Transform_name());
+}
+
+jint JNICALL version_jni(JNIEnv *env,
+                         jclass cls)
+{
+    return SCRYPT_JNI_VERSION;
+}
+
 static const JNINativeMethod methods[] = {
-    { "scrypt", "([B[B[BIIIII)V", (void *) scrypt_jni }
+    { "scrypt", "([B[B[BIIIII)V", (void *) scrypt_jni },
+    { "scryptThreads", "([B[B[BIIIIII)V", (void *) scrypt_threads_jni },
+    { "pbkdf2", "([B[B[BIII)V",   (void *) pbkdf2_jni },
+    { "kernel", "()Ljava/lang/String;", (void *) kernel_jni },
+    { "sha256Transform", "()Ljava/lang/String;", (void *) sha256_transform_jni },
+    { "version", "()I", (void *) version_jni }
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -96,7 +226,7 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
 
     jclass cls = (*env)->FindClass(env, "org/usrz/libs/crypto/kdf/SCryptNativeHelper");
-    int r = (*env)->RegisterNatives(env, cls, methods, 1);
+    int r = (*env)->RegisterNatives(env, cls, methods, sizeof(methods) / sizeof(JNINativeMethod));
 
     return (r == JNI_OK) ? JNI_VERSION_1_6 : -1;
 }
@@ -0,0 +1,111 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+#include <immintrin.h>
+#include <stdint.h>
+
+#include "sha256-shani.h"
+
+#define SHANI __attribute__((target("sha,sse4.1")))
+
+/* The SHA256 round constants, four of them used by every quad-round. */
+static const uint32_t K[64] __attribute__((aligned(16))) = {
+	0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+	0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+	0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+	0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+	0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+	0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+	0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+	0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+	0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+	0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+	0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+	0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+	0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+	0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+	0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+	0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+};
+
+/*
+ * Rounds 4q .. 4q + 3, with the message words W_{4q} ... W_{4q + 3} in Mq.
+ * While hashing, we compute the schedule for the next quad-rounds: Mn is
+ * the message of the next quad-round, Mp the one of the previous one (and
+ * of the quad-round three ahead, as four message registers rotate).
+ */
+#define QROUND(q, Mq, Mn, Mp)						\
+	MSG = _mm_add_epi32(Mq, _mm_load_si128((const __m128i *)&K[(q) * 4]));	\
+	STATE1 = _mm_sha256rnds2_epu32(STATE1, STATE0, MSG);		\
+	if (((q) >= 3) && ((q) <= 14)) {				\
+		Mn = _mm_add_epi32(Mn, _mm_alignr_epi8(Mq, Mp, 4));	\
+		Mn = _mm_sha256msg2_epu32(Mn, Mq);			\
+	}								\
+	MSG = _mm_shuffle_epi32(MSG, 0x0E);				\
+	STATE0 = _mm_sha256rnds2_epu32(STATE0, STATE1, MSG);		\
+	if (((q) >= 1) && ((q) <= 12))					\
+		Mp = _mm_sha256msg1_epu32(Mp, Mq);
+
+SHANI void
+SHA256_Transform_shani(uint32_t * state, const unsigned char block[64])
+{
+	const __m128i MASK = _mm_set_epi64x(0x0c0d0e0f08090a0bULL,
+	    0x0405060700010203ULL);
+	__m128i STATE0, STATE1, ABEF, CDGH;
+	__m128i MSG, M0, M1, M2, M3;
+	__m128i T;
+
+	/* Load the state in the ABEF/CDGH order SHA256RNDS2 works with. */
+	T = _mm_shuffle_epi32(_mm_loadu_si128((const __m128i *)&state[0]), 0xB1);
+	STATE1 = _mm_shuffle_epi32(_mm_loadu_si128((const __m128i *)&state[4]), 0x1B);
+	STATE0 = _mm_alignr_epi8(T, STATE1, 8);
+	STATE1 = _mm_blend_epi16(STATE1, T, 0xF0);
+	ABEF = STATE0;
+	CDGH = STATE1;
+
+	/* Load (big-endian) the message words W_0 ... W_15. */
+	M0 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *)&block[0]), MASK);
+	M1 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *)&block[16]), MASK);
+	M2 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *)&block[32]), MASK);
+	M3 = _mm_shuffle_epi8(_mm_loadu_si128((const __m128i *)&block[48]), MASK);
+
+	/* Mix. */
+	QROUND( 0, M0, M1, M3);
+	QROUND( 1, M1, M2, M0);
+	QROUND( 2, M2, M3, M1);
+	QROUND( 3, M3, M0, M2);
+	QROUND( 4, M0, M1, M3);
+	QROUND( 5, M1, M2, M0);
+	QROUND( 6, M2, M3, M1);
+	QROUND( 7, M3, M0, M2);
+	QROUND( 8, M0, M1, M3);
+	QROUND( 9, M1, M2, M0);
+	QROUND(10, M2, M3, M1);
+	QROUND(11, M3, M0, M2);
+	QROUND(12, M0, M1, M3);
+	QROUND(13, M1, M2, M0);
+	QROUND(14, M2, M3, M1);
+	QROUND(15, M3, M0, M2);
+
+	/* Mix local working variables into global state. */
+	STATE0 = _mm_add_epi32(STATE0, ABEF);
+	STATE1 = _mm_add_epi32(STATE1, CDGH);
+
+	/* Store the state back in its ABCD/EFGH order. */
+	T = _mm_shuffle_epi32(STATE0, 0x1B);
+	STATE1 = _mm_shuffle_epi32(STATE1, 0xB1);
+	_mm_storeu_si128((__m128i *)&state[0], _mm_blend_epi16(T, STATE1, 0xF0));
+	_mm_storeu_si128((__m128i *)&state[4], _mm_alignr_epi8(STATE1, T, 8));
+}
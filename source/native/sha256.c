@@ -32,6 +32,8 @@
 
 #include "sysendian.h"
 
+#include "crypto_cpu.h"
+#include "sha256-shani.h"
 #include "sha256.h"
 
 /*
@@ -90,7 +92,7 @@ be32dec_vect(uint32_t *dst, const unsigned char *src, size_t len)
  * the 512-bit input block to produce a new state.
  */
 static void
-SHA256_Transform(uint32_t * state, const unsigned char block[64])
+SHA256_Transform_portable(uint32_t * state, const unsigned char block[64])
 {
 	uint32_t W[64];
 	uint32_t S[8];
@@ -181,6 +183,34 @@ SHA256_Transform(uint32_t * state, const unsigned char block[64])
 	t0 = t1 = 0;
 }
 
+/*
+ * The SHA256 block compression function in use: the portable one above,
+ * unless the CPU supports the Intel SHA extensions.
+ */
+static void (*SHA256_Transform)(uint32_t *, const unsigned char [64]) =
+    SHA256_Transform_portable;
+
+/* Select the SHA256 block compression function when we are loaded. */
+static void __attribute__((constructor))
+SHA256_Transform_select(void)
+{
+
+	if (crypto_cpu_sha())
+		SHA256_Transform = SHA256_Transform_shani;
+}
+
+/*
+ * SHA256_Transform_name():
+ * Return the name of the SHA256 block compression function in use.
+ */
+const char *
+SHA256_Transform_name(void)
+{
+
+	return ((SHA256_Transform == SHA256_Transform_shani) ?
+	    "sha-ni" : "portable");
+}
+
 static unsigned char PAD[64] = {
 	0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
 	0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
@@ -363,7 +393,7 @@ void
 PBKDF2_SHA256(const uint8_t * passwd, size_t passwdlen, const uint8_t * salt,
     size_t saltlen, uint64_t c, uint8_t * buf, size_t dkLen)
 {
-	HMAC_SHA256_CTX PShctx, hctx;
+	HMAC_SHA256_CTX Phctx, PShctx, hctx;
 	size_t i;
 	uint8_t ivec[4];
 	uint8_t U[32];
@@ -372,8 +402,9 @@ PBKDF2_SHA256(const uint8_t * passwd, size_t passwdlen, const uint8_t * salt,
 	int k;
 	size_t clen;
 
-	/* Compute HMAC state after processing P and S. */
-	HMAC_SHA256_Init(&PShctx, passwd, passwdlen);
+	/* Compute HMAC state after processing P, and after P and S. */
+	HMAC_SHA256_Init(&Phctx, passwd, passwdlen);
+	memcpy(&PShctx, &Phctx, sizeof(HMAC_SHA256_CTX));
 	HMAC_SHA256_Update(&PShctx, salt, saltlen);
 
 	/* Iterate through the blocks. */
@@ -390,8 +421,8 @@ PBKDF2_SHA256(const uint8_t * passwd, size_t passwdlen, const uint8_t * salt,
 		memcpy(T, U, 32);
 
 		for (j = 2; j <= c; j++) {
-			/* Compute U_j. */
-			HMAC_SHA256_Init(&hctx, passwd, passwdlen);
+			/* Compute U_j, without re-keying the HMAC state. */
+			memcpy(&hctx, &Phctx, sizeof(HMAC_SHA256_CTX));
 			HMAC_SHA256_Update(&hctx, U, 32);
 			HMAC_SHA256_Final(U, &hctx);
 
@@ -407,6 +438,7 @@ PBKDF2_SHA256(const uint8_t * passwd, size_t passwdlen, const uint8_t * salt,
 		memcpy(&buf[i * 32], T, clen);
 	}
 
-	/* Clean PShctx, since we never called _Final on it. */
+	/* Clean Phctx and PShctx, since we never called _Final on them. */
+	memset(&Phctx, 0, sizeof(HMAC_SHA256_CTX));
 	memset(&PShctx, 0, sizeof(HMAC_SHA256_CTX));
 }
@@ -51,6 +51,13 @@ void	HMAC_SHA256_Init(HMAC_SHA256_CTX *, const void *, size_t);
 void	HMAC_SHA256_Update(HMAC_SHA256_CTX *, const void *, size_t);
 void	HMAC_SHA256_Final(unsigned char [32], HMAC_SHA256_CTX *);
 
+/**
+ * SHA256_Transform_name():
+ * Return the name of the SHA256 block compression function in use, either
+ * "sha-ni" (Intel SHA extensions) or "portable".
+ */
+const char *	SHA256_Transform_name(void);
+
 /**
  * PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, c, buf, dkLen):
  * Compute PBKDF2(passwd, salt, c, dkLen) using HMAC-SHA256 as the PRF, and
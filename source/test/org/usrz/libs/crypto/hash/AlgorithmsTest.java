@@ -0,0 +1,152 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class AlgorithmsTest extends AbstractTest {
+
+    /* A hash name no real Hash uses, so that our policies affect nothing else */
+    private static final String HASH = "ALGORITHMS_TEST";
+    private static final String PROPERTY = Algorithms.PROVIDER_PROPERTY + "." + HASH;
+    private static final byte[] DATA = "what do ya want for nothing?".getBytes(UTF8);
+    private static final byte[] KEY = "Jefe".getBytes(UTF8);
+
+    /* Run something with our policy property set, restoring it afterwards */
+    private static <T> T withPolicy(String policy, Callable<T> callable)
+    throws Exception {
+        final String previous = System.getProperty(PROPERTY);
+        System.setProperty(PROPERTY, policy);
+        try {
+            return callable.call();
+        } finally {
+            if (previous == null) System.clearProperty(PROPERTY);
+            else System.setProperty(PROPERTY, previous);
+        }
+    }
+
+    /* The names of the installed providers offering a service */
+    private static List<String> providers(String type, String algorithm) {
+        final List<String> names = new ArrayList<>();
+        for (Provider provider: Security.getProviders()) {
+            if (provider.getService(type, algorithm) != null) names.add(provider.getName());
+        }
+        return names;
+    }
+
+    private static MessageDigest digest(String policy)
+    throws Exception {
+        return withPolicy(policy, () -> Algorithms.getMessageDigest(HASH, "SHA-256"));
+    }
+
+    private static Mac mac(String policy)
+    throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final Mac mac = withPolicy(policy, () -> Algorithms.getMac(HASH, "HmacSHA256", "SHA-256", digest));
+        mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        return mac;
+    }
+
+    private static String provider(MessageDigest digest) {
+        return Algorithms.getProviderName(digest.getProvider(), digest);
+    }
+
+    private static String provider(Mac mac) {
+        return Algorithms.getProviderName(mac.getProvider(), mac);
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testDefault()
+    throws Exception {
+        final List<String> providers = providers("MessageDigest", "SHA-256");
+        assertFalse(providers.isEmpty(), "No providers for SHA-256");
+        assertEquals(provider(digest("default")), providers.get(0));
+    }
+
+    @Test
+    public void testPreferred()
+    throws Exception {
+        /* Unknown providers are skipped, the last installed one is preferred */
+        final List<String> providers = providers("MessageDigest", "SHA-256");
+        final String last = providers.get(providers.size() - 1);
+        final MessageDigest digest = digest("NoSuchProvider, " + last);
+        assertEquals(provider(digest), last);
+        assertEquals(digest.digest(DATA), MessageDigest.getInstance("SHA-256").digest(DATA));
+
+        /* Only unknown providers, falling back to the default */
+        assertEquals(provider(digest("NoSuchProvider")), providers.get(0));
+    }
+
+    @Test
+    public void testFixedUnknown()
+    throws Exception {
+        try {
+            digest("fixed:NoSuchProvider");
+            fail("NoSuchAlgorithmException not thrown");
+        } catch (NoSuchAlgorithmException exception) {
+            assertTrue(exception.getMessage().contains("NoSuchProvider"), exception.getMessage());
+        }
+    }
+
+    @Test
+    public void testInternalMac()
+    throws Exception {
+        final Mac mac = mac("fixed:" + Algorithms.INTERNAL);
+        assertEquals(provider(mac), Algorithms.INTERNAL);
+        assertNull(mac.getProvider());
+
+        final Mac expected = Mac.getInstance("HmacSHA256");
+        expected.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        assertEquals(mac.doFinal(DATA), expected.doFinal(DATA));
+    }
+
+    @Test
+    public void testAuto()
+    throws Exception {
+        /* Whatever wins must be a candidate, and compute the right results */
+        final List<String> digests = providers("MessageDigest", "SHA-256");
+        digests.add(Algorithms.BOUNCY_CASTLE);
+        final MessageDigest digest = digest("auto");
+        assertTrue(digests.contains(provider(digest)), provider(digest));
+        assertEquals(digest.digest(DATA), MessageDigest.getInstance("SHA-256").digest(DATA));
+
+        final List<String> macs = providers("Mac", "HmacSHA256");
+        macs.add(Algorithms.INTERNAL);
+        final Mac mac = mac("auto");
+        assertTrue(macs.contains(provider(mac)), provider(mac));
+
+        final Mac expected = Mac.getInstance("HmacSHA256");
+        expected.init(new SecretKeySpec(KEY, "HmacSHA256"));
+        assertEquals(mac.doFinal(DATA), expected.doFinal(DATA));
+    }
+
+}
@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.utils.codecs.HexCodec.HEX;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.bouncycastle.crypto.digests.Blake3Digest;
+import org.bouncycastle.crypto.params.Blake3Parameters;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class BLAKE3Test extends AbstractTest {
+
+    /* Official test vectors use inputs of bytes repeating 0..250 */
+    private static byte[] input(int length) {
+        final byte[] input = new byte[length];
+        for (int x = 0; x < length; x ++) input[x] = (byte) (x % 251);
+        return input;
+    }
+
+    /* BouncyCastle's own implementation, as a reference */
+    private static byte[] expected(byte[] input, byte[] key) {
+        final Blake3Digest digest = new Blake3Digest();
+        if (key != null) digest.init(Blake3Parameters.key(key));
+        digest.update(input, 0, input.length);
+        final byte[] result = new byte[32];
+        digest.doFinal(result, 0);
+        return result;
+    }
+
+    @Test
+    public void testVectors() {
+        assertEquals(new BLAKE3().digest(), HEX.decode("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262"));
+        assertEquals(new BLAKE3().digest(input(1)), HEX.decode("2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213"));
+        assertEquals(new BLAKE3().digest(input(1024)), HEX.decode("42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7"));
+        assertEquals(new BLAKE3().digest(input(1025)), HEX.decode("d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444"));
+    }
+
+    @Test
+    public void testLengths() {
+        final BLAKE3 digest = new BLAKE3();
+        for (int length: new int[] { 0, 1, 63, 64, 65, 1023, 1024, 1025, 2048, 2049, 3072, 3073,
+                                     4096, 4097, 5120, 5121, 6144, 6145, 7168, 7169, 8192, 8193,
+                                     16384, 31744, 102400, 1 << 20, (1 << 20) + 1, 3 << 20 }) {
+            final byte[] input = input(length);
+            assertEquals(digest.digest(input), expected(input, null), "Length " + length);
+        }
+    }
+
+    @Test
+    public void testIncremental() {
+        final byte[] input = input(300 * 1024 + 17);
+        final byte[] expected = expected(input, null);
+
+        /* Feed the input in pieces of odd sizes, including large ones */
+        for (int piece: new int[] { 1, 63, 1000, 1024, 1025, 4000, 65536, 200000 }) {
+            final BLAKE3 digest = new BLAKE3();
+            for (int offset = 0; offset < input.length; offset += piece)
+                digest.update(input, offset, Math.min(piece, input.length - offset));
+            assertEquals(digest.digest(), expected, "Piece " + piece);
+        }
+    }
+
+    @Test
+    public void testKeyed() {
+        final byte[] key = "whats the Elvish word for friend".getBytes();
+        for (int length: new int[] { 0, 1, 1024, 1025, 5000, 1 << 18 }) {
+            final byte[] input = input(length);
+            assertEquals(new BLAKE3(key).digest(input), expected(input, key), "Length " + length);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "^Key must be 32 bytes$")
+    public void testShortKey() {
+        new BLAKE3(new byte[16]);
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        final byte[] input = input(10000);
+        final BLAKE3 digest = new BLAKE3();
+        digest.update(input, 0, 5000);
+
+        final MessageDigest clone = (MessageDigest) digest.clone();
+        clone.update(input, 5000, 5000);
+        digest.update(input, 5000, 5000);
+
+        final byte[] expected = expected(input, null);
+        assertEquals(clone.digest(), expected);
+        assertEquals(digest.digest(), expected);
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        final byte[] input = input(1 << 20);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(input.length);
+        buffer.put(input).flip();
+
+        final BLAKE3 digest = new BLAKE3();
+        digest.update(buffer);
+        assertEquals(digest.digest(), expected(input, null));
+    }
+
+    @Test
+    public void testHash() {
+        final byte[] input = input(5000);
+        assertEquals(Hash.BLAKE3.getHashLength(), 32);
+        assertEquals(Hash.BLAKE3.digest().update(input).finish(), expected(input, null));
+    }
+
+}
@@ -0,0 +1,39 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class BatchTest extends AbstractTest {
+
+    @Test
+    public void testProcess() {
+        for (int size: new int[] { 0, 1, 255, 256, 511, 512, 10007 }) {
+            final AtomicIntegerArray positions = new AtomicIntegerArray(size);
+            Batch.process(size, 7, 3, (from, to, position) -> {
+                for (int x = from, p = position; x < to; x ++, p += 3) {
+                    assertEquals(positions.getAndSet(x, p), 0, "Item " + x + " processed twice");
+                }
+            });
+            for (int x = 0; x < size; x ++) {
+                assertEquals(positions.get(x), 7 + x * 3, "Wrong position for item " + x + " of " + size);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class FileDigesterTest extends AbstractTest {
+
+    private final FileDigester digester = new FileDigester(Hash.SHA256, 3);
+    private Path root;
+
+    private static byte[] random(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private Path write(String path, byte[] data)
+    throws IOException {
+        final Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, data);
+    }
+
+    @BeforeMethod
+    public void createTree()
+    throws IOException {
+        root = Files.createTempDirectory("digester");
+        write("b.txt", "Hello, world!".getBytes());
+        write("a/empty", new byte[0]);
+        write("a/large.bin", random(1024 * 1024 + 17));
+        write("a/z/deep.bin", random(4096));
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void deleteTree()
+    throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path: paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testDigest()
+    throws IOException {
+        for (String path: new String[] { "b.txt", "a/empty", "a/large.bin", "a/z/deep.bin" }) {
+            final byte[] expected = Hash.SHA256.digest().update(Files.readAllBytes(root.resolve(path))).finish();
+            assertEquals(digester.digest(root.resolve(path)), expected, path);
+        }
+    }
+
+    @Test
+    public void testManifest()
+    throws IOException {
+        final Manifest manifest = digester.manifest(root);
+        assertSame(manifest.getHash(), Hash.SHA256);
+
+        final List<Manifest.Entry> entries = manifest.getEntries();
+        assertEquals(entries.stream().map(Manifest.Entry::getPath).collect(Collectors.toList()),
+                     Arrays.asList("a/empty", "a/large.bin", "a/z/deep.bin", "b.txt"));
+
+        for (Manifest.Entry entry: entries) {
+            final Path file = root.resolve(entry.getPath());
+            assertEquals(entry.getSize(), Files.size(file), entry.getPath());
+            assertEquals(entry.getLastModified(), Files.getLastModifiedTime(file).toMillis(), entry.getPath());
+            assertEquals(entry.getDigest(), digester.digest(file), entry.getPath());
+        }
+
+        /* A single file as the root */
+        final Manifest single = digester.manifest(root.resolve("b.txt"));
+        assertEquals(single.getEntries().size(), 1);
+        assertEquals(single.getEntries().get(0).getPath(), "b.txt");
+    }
+
+    @Test
+    public void testWriteRead()
+    throws IOException {
+        final Manifest manifest = digester.manifest(root);
+        final StringWriter writer = new StringWriter();
+        manifest.write(writer);
+        assertTrue(writer.toString().startsWith("# SHA256\n"));
+
+        final Manifest read = Manifest.read(new StringReader(writer.toString()));
+        assertSame(read.getHash(), Hash.SHA256);
+        assertEquals(read.getEntries().size(), manifest.getEntries().size());
+        assertTrue(read.differences(manifest).isEmpty());
+        for (Manifest.Entry entry: manifest.getEntries()) {
+            assertEquals(read.getEntry(entry.getPath()).toString(), entry.toString());
+        }
+    }
+
+    @Test
+    public void testEscapedPaths()
+    throws IOException {
+        write("c/new\nline", "LF".getBytes());
+        write("c/carriage\rreturn", "CR".getBytes());
+        write("c/back\\slash\\n", "BS".getBytes());
+
+        final Manifest manifest = digester.manifest(root);
+        assertNotNull(manifest.getEntry("c/new\nline"));
+        assertNotNull(manifest.getEntry("c/carriage\rreturn"));
+        assertNotNull(manifest.getEntry("c/back\\slash\\n"));
+
+        final StringWriter writer = new StringWriter();
+        manifest.write(writer);
+        assertTrue(writer.toString().contains(" c/new\\nline\n"));
+        assertTrue(writer.toString().contains(" c/carriage\\rreturn\n"));
+        assertTrue(writer.toString().contains(" c/back\\\\slash\\\\n\n"));
+
+        final Manifest read = Manifest.read(new StringReader(writer.toString()));
+        assertEquals(read.getEntries().size(), manifest.getEntries().size());
+        assertTrue(read.differences(manifest).isEmpty());
+        for (Manifest.Entry entry: manifest.getEntries()) {
+            assertEquals(read.getEntry(entry.getPath()).toString(), entry.toString());
+        }
+    }
+
+    @Test(expectedExceptions=IOException.class,
+          expectedExceptionsMessageRegExp="^Invalid manifest entry at line 2")
+    public void testInvalidEscape()
+    throws IOException {
+        final StringWriter writer = new StringWriter();
+        new Manifest(Hash.SHA256, Arrays.asList(new Manifest.Entry("foo", 0, 0, new byte[32]))).write(writer);
+        Manifest.read(new StringReader(writer.toString().replace(" foo\n", " foo\\t\n")));
+    }
+
+    @Test
+    public void testIncremental()
+    throws IOException {
+        final Manifest previous = digester.manifest(root);
+
+        /* Same size and modification time: not digested again */
+        final Path unchanged = root.resolve("b.txt");
+        final FileTime time = Files.getLastModifiedTime(unchanged);
+        Files.write(unchanged, "Jello, world!".getBytes());
+        Files.setLastModifiedTime(unchanged, time);
+
+        /* Changed modification time, same contents: digested again */
+        final Path touched = root.resolve("a/z/deep.bin");
+        Files.setLastModifiedTime(touched, FileTime.fromMillis(time.toMillis() - 60000));
+
+        /* Changed contents, new and removed files */
+        write("a/large.bin", random(1024 * 1024 + 18));
+        write("a/new.txt", "New!".getBytes());
+        Files.delete(root.resolve("a/empty"));
+
+        final Manifest manifest = digester.manifest(root, previous);
+        assertEquals(manifest.getEntry("b.txt").getDigest(), previous.getEntry("b.txt").getDigest());
+        assertEquals(manifest.getEntry("a/z/deep.bin").getLastModified(), time.toMillis() - 60000);
+        assertEquals(manifest.differences(previous), new TreeSet<>(Arrays.asList("a/empty", "a/large.bin", "a/new.txt")));
+        assertEquals(previous.differences(manifest), manifest.differences(previous));
+
+        /* A full manifest does notice the change in "b.txt" */
+        assertTrue(digester.manifest(root).differences(manifest).contains("b.txt"));
+    }
+
+    @Test(expectedExceptions=IOException.class,
+          expectedExceptionsMessageRegExp="^Invalid manifest entry at line 2")
+    public void testInvalidManifest()
+    throws IOException {
+        Manifest.read(new StringReader("# SHA256\nfoo bar\n"));
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Manifest hash SHA1 does not match SHA256")
+    public void testWrongHash()
+    throws IOException {
+        digester.manifest(root, new FileDigester(Hash.SHA1).manifest(root));
+    }
+
+}
@@ -0,0 +1,78 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class HMACKeyTest extends AbstractTest {
+
+    private static final byte[] KEY = "Jefe".getBytes();
+    private static final byte[] DATA = "what do ya want for nothing?".getBytes();
+
+    @Test
+    public void testHMACKey() {
+        for (Hash hash: Hash.values()) {
+            final byte[] expected = hash.hmac(KEY).update(DATA).finish();
+            final HMACKey key = hash.hmacKey(KEY);
+            assertSame(key.getHash(), hash);
+            assertEquals(key.hmac().update(DATA).finish(), expected, hash.name());
+            /* Again, from the pooled instance */
+            assertEquals(key.hmac().update(DATA).finish(), expected, hash.name());
+        }
+    }
+
+    @Test
+    public void testEmptyKey() {
+        assertEquals(Hash.SHA256.hmacKey(null).hmac().finish(), Hash.SHA256.hmac(null).finish());
+        assertEquals(Hash.SHA256.hmacKey(new byte[0]).hmac().update(DATA).finish(),
+                     Hash.SHA256.hmac(null).update(DATA).finish());
+    }
+
+    @Test
+    public void testResetOnRequest() {
+        final HMACKey key = Hash.SHA1.hmacKey(KEY);
+        key.hmac().update("garbage".getBytes());
+        assertEquals(key.hmac().update(DATA).finish(), Hash.SHA1.hmac(KEY).update(DATA).finish());
+    }
+
+    @Test
+    public void testIndependentOfSharedMac() {
+        /* Using the thread's shared Mac must not affect pre-keyed instances */
+        final HMAC hmac = Hash.SHA256.hmacKey(KEY).hmac().update(DATA, 0, 10);
+        Hash.SHA256.hmac("other".getBytes()).update(DATA).finish();
+        hmac.update(DATA, 10, DATA.length - 10);
+        assertEquals(hmac.finish(), Hash.SHA256.hmac(KEY).update(DATA).finish());
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        final HMACKey key = Hash.SHA512.hmacKey(KEY);
+        final byte[] expected = Hash.SHA512.hmac(KEY).update(DATA).finish();
+        final byte[][] results = new byte[4][];
+        final Thread[] threads = new Thread[results.length];
+        for (int x = 0; x < threads.length; x ++) {
+            final int index = x;
+            threads[x] = new Thread(() -> results[index] = key.hmac().update(DATA).finish());
+            threads[x].start();
+        }
+        for (int x = 0; x < threads.length; x ++) {
+            threads[x].join();
+            assertEquals(results[x], expected, "Thread " + x);
+        }
+    }
+
+}
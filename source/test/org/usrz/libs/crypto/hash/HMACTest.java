@@ -17,8 +17,17 @@ package org.usrz.libs.crypto.hash;
 
 import static org.usrz.libs.utils.codecs.HexCodec.HEX;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.digests.Blake3Digest;
+import org.bouncycastle.crypto.digests.SHA3Digest;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.testng.annotations.Test;
 import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.Charsets;
 
 public class HMACTest extends AbstractTest {
 
@@ -136,4 +145,91 @@ public class HMACTest extends AbstractTest {
           Hash.SHA512.hmac(KEY).update(DATA).finish(result, 0);
       }
 
+    /* ====================================================================== */
+
+    @Test
+    public void testCharacters() {
+        final char[] chars = "what do ya want for \u6771\u4EAC?".toCharArray();
+        final byte[] expected = Hash.SHA256.hmac(KEY).update(new String(chars).getBytes(Charsets.UTF8)).finish();
+        assertEquals(Hash.SHA256.hmac(KEY).update(chars, Charsets.UTF8).finish(), expected);
+        assertEquals(Hash.SHA256.hmac(KEY).update(chars, 5, 10, Charsets.UTF8).finish(),
+                     Hash.SHA256.hmac(KEY).update(new String(chars, 5, 10), Charsets.UTF8).finish());
+    }
+
+    @Test
+    public void testByteBuffers() {
+        final byte[] expected = Hash.SHA512.hmac(KEY).update(DATA).finish();
+        final ByteBuffer input = ByteBuffer.allocateDirect(DATA.length).put(DATA);
+        input.flip();
+
+        final ByteBuffer output = ByteBuffer.allocateDirect(64);
+        Hash.SHA512.hmac(KEY).update(input).finish(output);
+        assertFalse(input.hasRemaining(), "Input not consumed");
+        assertFalse(output.hasRemaining(), "Output not written");
+
+        final byte[] result = new byte[64];
+        ((ByteBuffer) output.flip()).get(result);
+        assertEquals(result, expected);
+    }
+
+    /* ====================================================================== */
+
+    private static byte[] expected(Digest digest, byte[] key, byte[] data) {
+        final org.bouncycastle.crypto.macs.HMac mac = new org.bouncycastle.crypto.macs.HMac(digest);
+        mac.init(new KeyParameter(key));
+        mac.update(data, 0, data.length);
+        final byte[] result = new byte[mac.getMacSize()];
+        mac.doFinal(result, 0);
+        return result;
+    }
+
+    @Test
+    public void testNewHashes() {
+        /* Short, block-sized and long keys */
+        for (byte[] key: new byte[][] { KEY, new byte[0], new byte[64], new byte[136], new byte[300] }) {
+            assertEquals(Hash.SHA3_256.hmac(key).update(DATA).finish(), expected(new SHA3Digest(256), key, DATA), "SHA3-256 key " + key.length);
+            assertEquals(Hash.SHA3_512.hmac(key).update(DATA).finish(), expected(new SHA3Digest(512), key, DATA), "SHA3-512 key " + key.length);
+            assertEquals(Hash.BLAKE2B.hmac(key).update(DATA).finish(), expected(new Blake2bDigest(512), key, DATA), "BLAKE2b key " + key.length);
+            assertEquals(Hash.BLAKE3.hmac(key).update(DATA).finish(), expected(new Blake3Digest(), key, DATA), "BLAKE3 key " + key.length);
+        }
+    }
+
+    @Test
+    public void testNewHashesReuse() {
+        final byte[] expected = Hash.BLAKE3.hmac(KEY).update(DATA).finish();
+        final HMAC hmac = Hash.BLAKE3.hmac(KEY).update("garbage".getBytes());
+        hmac.reset();
+        assertEquals(hmac.update(DATA).finish(), expected);
+        assertEquals(hmac.update(DATA).finish(), expected);
+        assertEquals(Hash.BLAKE3.hmacKey(KEY).hmac().update(DATA).finish(), expected);
+    }
+
+    @Test
+    public void testVerify() {
+        final byte[] expected = Hash.SHA256.hmac(KEY).update(DATA).finish();
+        final byte[] wrong = expected.clone();
+        wrong[wrong.length - 1] ^= 1;
+
+        final HMAC hmac = Hash.SHA256.hmac(KEY);
+        assertTrue(hmac.update(DATA).verify(expected));
+        assertFalse(hmac.update(DATA).verify(wrong));
+        assertFalse(hmac.update(DATA).verify(new byte[0]));
+        assertFalse(hmac.update(DATA).verify(Arrays.copyOf(expected, 33)));
+
+        /* Offsets, and the instance is reset after each verification */
+        final byte[] padded = new byte[expected.length + 5];
+        System.arraycopy(expected, 0, padded, 3, expected.length);
+        assertTrue(hmac.update(DATA).verify(padded, 3));
+        assertFalse(hmac.update(DATA).verify(padded, 4));
+        assertFalse(hmac.update(DATA).verify(padded, -1));
+        assertEquals(hmac.update(DATA).finish(), expected);
+    }
+
+    @Test
+    public void testVerifyDigest() {
+        final byte[] expected = Hash.SHA512.digest().update(DATA).finish();
+        assertTrue(Hash.SHA512.digest().update(DATA).verify(expected));
+        assertFalse(Hash.SHA512.digest().update(KEY).verify(expected));
+    }
+
 }
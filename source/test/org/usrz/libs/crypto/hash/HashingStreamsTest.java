@@ -0,0 +1,135 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class HashingStreamsTest extends AbstractTest {
+
+    private static final byte[] KEY = "Jefe".getBytes();
+
+    private final byte[] data = new byte[100000];
+    private final byte[] digest;
+    private final byte[] hmac;
+
+    public HashingStreamsTest() {
+        new Random(100000).nextBytes(data);
+        digest = Hash.SHA256.digest().update(data).finish();
+        hmac = Hash.SHA256.hmac(KEY).update(data).finish();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testInputStream()
+    throws IOException {
+        final MD md = Hash.SHA256.digest();
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (InputStream input = new HashingInputStream(new ByteArrayInputStream(data), md)) {
+            /* Mix single bytes, arrays, and skips */
+            copy.write(input.read());
+            final byte[] buffer = new byte[1000];
+            input.read(buffer, 0, 999);
+            copy.write(buffer, 0, 999);
+            assertEquals(input.skip(5000), 5000L);
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                copy.write(buffer, 0, read);
+            }
+            assertEquals(input.read(), -1);
+            assertFalse(input.markSupported());
+            assertSame(((HashingInputStream) input).getFunction(), md);
+        }
+        assertEquals(copy.size(), data.length - 5000);
+        assertEquals(md.finish(), digest);
+    }
+
+    @Test
+    public void testOutputStream()
+    throws IOException {
+        final HMAC function = Hash.SHA256.hmac(KEY);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (OutputStream output = new HashingOutputStream(copy, function)) {
+            output.write(data[0]);
+            output.write(data, 1, 999);
+            output.write(data, 1000, data.length - 1000);
+        }
+        assertEquals(copy.toByteArray(), data);
+        assertEquals(function.finish(), hmac);
+    }
+
+    @Test
+    public void testReadableChannel()
+    throws IOException {
+        final MD md = Hash.SHA256.digest();
+        final ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+        try (ReadableByteChannel channel = new HashingReadableByteChannel(source, md)) {
+            /* A direct buffer, reading with an offset */
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            int total = 0;
+            while (true) {
+                buffer.clear();
+                buffer.position(7);
+                final int read = channel.read(buffer);
+                if (read < 0) break;
+                total += read;
+            }
+            assertEquals(total, data.length);
+        }
+        assertFalse(source.isOpen());
+        assertEquals(md.finish(), digest);
+    }
+
+    @Test
+    public void testWritableChannel()
+    throws IOException {
+        final HMAC function = Hash.SHA256.hmac(KEY);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        /* A sink accepting at most 1000 bytes per write */
+        final WritableByteChannel sink = Channels.newChannel(copy);
+        final WritableByteChannel partial = new WritableByteChannel() {
+            @Override public boolean isOpen() { return sink.isOpen(); }
+            @Override public void close() throws IOException { sink.close(); }
+            @Override public int write(ByteBuffer buffer) throws IOException {
+                final ByteBuffer slice = buffer.duplicate();
+                slice.limit(Math.min(buffer.limit(), buffer.position() + 1000));
+                final int written = sink.write(slice);
+                buffer.position(buffer.position() + written);
+                return written;
+            }
+        };
+
+        try (WritableByteChannel channel = new HashingWritableByteChannel(partial, function)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        assertEquals(copy.toByteArray(), data);
+        assertEquals(function.finish(), hmac);
+    }
+
+}
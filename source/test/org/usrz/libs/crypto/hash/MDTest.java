@@ -17,8 +17,19 @@ package org.usrz.libs.crypto.hash;
 
 import static org.usrz.libs.utils.codecs.HexCodec.HEX;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.Mac;
+
 import org.testng.annotations.Test;
 import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.Charsets;
 
 public class MDTest extends AbstractTest {
 
@@ -134,4 +145,163 @@ public class MDTest extends AbstractTest {
           final byte[] result = new byte[Hash.SHA512.getHashLength() - 1];
           Hash.SHA512.digest().update(DATA).finish(result, 0);
       }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testCharacters() {
+        final String string = "The quick brown \u6771\u4EAC fox";
+        final byte[] expected = Hash.SHA256.digest().update(string.getBytes(Charsets.UTF8)).finish();
+        assertEquals(Hash.SHA256.digest().update(string, Charsets.UTF8).finish(), expected);
+        assertEquals(Hash.SHA256.digest().update(string.toCharArray(), Charsets.UTF8).finish(), expected);
+    }
+
+    @Test
+    public void testLongCharacters() {
+        /* Longer than the internal encoding buffer */
+        final StringBuilder builder = new StringBuilder();
+        for (int x = 0; x < 1000; x ++) builder.append((char) ('A' + (x % 26))).append('\u00E9').append('\u6771');
+        final String string = builder.toString();
+
+        for (Charset charset: new Charset[] { Charsets.UTF8, Charsets.UTF16LE }) {
+            final byte[] expected = Hash.SHA1.digest().update(string.getBytes(charset)).finish();
+            assertEquals(Hash.SHA1.digest().update(builder, charset).finish(), expected, charset.name());
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Error encoding US-ASCII: .*")
+    public void testUnmappableCharacters() {
+        Hash.SHA1.digest().update("\u6771\u4EAC", Charset.forName("US-ASCII"));
+    }
+
+    @Test
+    public void testByteBuffers() {
+        final byte[] expected = Hash.SHA256.digest().update(DATA).finish();
+        for (ByteBuffer input: new ByteBuffer[] { ByteBuffer.wrap(DATA),
+                                                  ByteBuffer.allocateDirect(DATA.length).put(DATA),
+                                                  ByteBuffer.wrap(DATA).asReadOnlyBuffer() }) {
+            if (input.isDirect()) input.flip();
+            final ByteBuffer heap = (ByteBuffer) ByteBuffer.allocate(40).position(4);
+            final ByteBuffer direct = (ByteBuffer) ByteBuffer.allocateDirect(40).position(4);
+
+            Hash.SHA256.digest().update(input.duplicate()).finish(heap);
+            Hash.SHA256.digest().update(input).finish(direct);
+            assertFalse(input.hasRemaining(), "Input not consumed");
+
+            assertEquals(heap.position(), 36);
+            assertEquals(direct.position(), 36);
+
+            final byte[] result = new byte[32];
+            ((ByteBuffer) heap.position(4)).get(result);
+            assertEquals(result, expected);
+            ((ByteBuffer) direct.position(4)).get(result);
+            assertEquals(result, expected);
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testShortByteBuffer() {
+        Hash.SHA256.digest().update(DATA).finish(ByteBuffer.allocateDirect(31));
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testSHA3() {
+        final byte[] abc = "abc".getBytes();
+        assertEquals(Hash.SHA3_256.digest().update(abc).finish(), HEX.decode("3a985da74fe225b2045c172d6bd390bd855f086e3e9d525b46bfe24511431532"));
+        assertEquals(Hash.SHA3_512.digest().update(abc).finish(), HEX.decode("b751850b1a57168a5693cd924b6b096e08f621827444f70d884f5d0240d2712e10e116e9192af3c91a7ec57647e3934057340b4cf408d5a56592f8274eec53f0"));
+    }
+
+    @Test
+    public void testBLAKE2B() {
+        final byte[] abc = "abc".getBytes();
+        assertEquals(Hash.BLAKE2B.digest().update(abc).finish(), HEX.decode("ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d17d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923"));
+    }
+
+    @Test
+    public void testBLAKE3() {
+        final byte[] abc = "abc".getBytes();
+        assertEquals(Hash.BLAKE3.digest().update(abc).finish(), HEX.decode("6437b3ac38465133ffb63b75273a8db548c558465d79db03fd359c6cd5bd9d85"));
+    }
+
+    /* ====================================================================== */
+
+    private static List<byte[]> messages(int count) {
+        final List<byte[]> messages = new ArrayList<>(count);
+        for (int x = 0; x < count; x ++) messages.add(("Message number " + x).getBytes());
+        return messages;
+    }
+
+    private static void assertBatch(Hash hash, List<byte[]> messages, byte[] output, int offset) {
+        final int length = hash.getHashLength();
+        for (int x = 0; x < messages.size(); x ++) {
+            final int position = offset + x * length;
+            final byte[] result = Arrays.copyOfRange(output, position, position + length);
+            assertEquals(result, hash.digest().update(messages.get(x)).finish(), "Wrong hash for message " + x);
+        }
+    }
+
+    @Test
+    public void testDigestAll() {
+        final List<byte[]> messages = messages(100);
+        for (Hash hash: Hash.values()) {
+            final byte[] output = new byte[messages.size() * hash.getHashLength() + 3];
+            hash.digestAll(messages, output, 3);
+            assertBatch(hash, messages, output, 3);
+        }
+    }
+
+    @Test
+    public void testDigestAllLinkedList() {
+        final List<byte[]> messages = new LinkedList<>(messages(10));
+        final byte[] output = new byte[messages.size() * 32];
+        Hash.SHA256.digestAll(messages, output);
+        assertBatch(Hash.SHA256, messages, output, 0);
+    }
+
+    @Test
+    public void testParallelDigestAll() {
+        final List<byte[]> messages = messages(5000);
+        final byte[] output = new byte[messages.size() * 20 + 7];
+        Hash.SHA1.parallelDigestAll(messages, output, 7);
+        assertBatch(Hash.SHA1, messages, output, 7);
+    }
+
+    @Test
+    public void testParallelDigestAllSmall() {
+        final List<byte[]> messages = messages(10);
+        final byte[] output = new byte[messages.size() * 32];
+        Hash.SHA256.parallelDigestAll(messages, output);
+        assertBatch(Hash.SHA256, messages, output, 0);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testDigestAllShortBuffer() {
+        Hash.SHA256.digestAll(messages(10), new byte[319]);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testParallelDigestAllShortBuffer() {
+        Hash.SHA256.parallelDigestAll(messages(1000), new byte[32000], 1);
+    }
+
+    @Test
+    public void testProviders()
+    throws Exception {
+        /* Without a policy property the first installed providers are selected */
+        assertEquals(Hash.SHA256.getDigestProvider(), MessageDigest.getInstance("SHA-256").getProvider().getName());
+        assertEquals(Hash.SHA256.getMacProvider(), Mac.getInstance("HmacSHA256").getProvider().getName());
+        assertEquals(Hash.BLAKE3.getDigestProvider(), "internal");
+        assertEquals(Hash.BLAKE3.getMacProvider(), "internal");
+        for (Hash hash: Hash.values()) {
+            assertNotNull(hash.getDigestProvider(), hash.name());
+            assertNotNull(hash.getMacProvider(), hash.name());
+        }
+    }
+
 }
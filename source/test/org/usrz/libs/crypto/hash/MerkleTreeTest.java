@@ -0,0 +1,154 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class MerkleTreeTest extends AbstractTest {
+
+    /* A naive RFC 6962 implementation to compare against */
+    private static byte[] mth(Hash hash, byte[] data, int from, int to, int chunkSize) {
+        final int count = (to - from + chunkSize - 1) / chunkSize;
+        if (count <= 1) return hash.digest().update((byte) 0).update(data, from, to - from).finish();
+        int split = 1;
+        while (split * 2 < count) split *= 2;
+        final byte[] left = mth(hash, data, from, from + split * chunkSize, chunkSize);
+        final byte[] right = mth(hash, data, from + split * chunkSize, to, chunkSize);
+        return hash.digest().update((byte) 1).update(left).update(right).finish();
+    }
+
+    private static byte[] random(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testEmpty() {
+        final MerkleTree tree = MerkleTree.hash(Hash.SHA256, new byte[0]);
+        assertEquals(tree.getLeafCount(), 0);
+        assertEquals(tree.getLength(), 0L);
+        assertEquals(tree.getRoot(), Hash.SHA256.digest().finish());
+    }
+
+    @Test
+    public void testSingleChunk() {
+        final byte[] data = "Hello, world!".getBytes();
+        final MerkleTree tree = MerkleTree.hash(Hash.SHA256, data);
+        final byte[] expected = Hash.SHA256.digest().update((byte) 0).update(data).finish();
+        assertEquals(tree.getLeafCount(), 1);
+        assertEquals(tree.getLeaf(0), expected);
+        assertEquals(tree.getRoot(), expected);
+        assertEquals(tree.getProof(0).getPath().length, 0);
+        assertTrue(tree.getProof(0).verify(expected, data));
+    }
+
+    @Test
+    public void testRoots() {
+        for (int chunks = 1; chunks <= 17; chunks ++) {
+            for (int extra: new int[] { 0, 1, 99 }) {
+                final int length = (chunks - 1) * 100 + extra + (extra == 0 ? 100 : 0);
+                final byte[] data = random(length);
+                final MerkleTree tree = MerkleTree.hash(Hash.SHA1, ByteBuffer.wrap(data), 100);
+                assertEquals(tree.getLeafCount(), chunks, "Length " + length);
+                assertEquals(tree.getRoot(), mth(Hash.SHA1, data, 0, length, 100), "Length " + length);
+            }
+        }
+    }
+
+    @Test
+    public void testProofs() {
+        final byte[] data = random(1234);
+        final MerkleTree tree = MerkleTree.hash(Hash.SHA256, ByteBuffer.wrap(data), 100);
+        final byte[] root = tree.getRoot();
+        assertEquals(tree.getLeafCount(), 13);
+
+        for (int index = 0; index < tree.getLeafCount(); index ++) {
+            final int offset = index * 100;
+            final int length = Math.min(100, data.length - offset);
+            final MerkleProof proof = tree.getProof(index);
+            assertEquals(proof.getIndex(), index);
+            assertEquals(proof.getLeafCount(), 13);
+            assertTrue(proof.verify(root, data, offset, length), "Leaf " + index);
+            assertEquals(proof.computeRoot(data, offset, length), root, "Leaf " + index);
+
+            /* Wrong data, wrong index, wrong size */
+            assertFalse(proof.verify(root, data, offset + 1, length - 1), "Leaf " + index);
+            final int other = (index + 1) % 13;
+            assertFalse(new MerkleProof(Hash.SHA256, other, 13, proof.getPath()).verify(root, data, offset, length), "Leaf " + index);
+            assertFalse(new MerkleProof(Hash.SHA256, index, 100, proof.getPath()).verify(root, data, offset, length), "Leaf " + index);
+        }
+    }
+
+    @Test
+    public void testByteBufferAndChannel()
+    throws IOException {
+        final byte[] data = random(5 * 1024 * 1024 + 123);
+        final byte[] expected = MerkleTree.hash(Hash.SHA256, ByteBuffer.wrap(data), 65536).getRoot();
+        assertEquals(expected, mth(Hash.SHA256, data, 0, data.length, 65536));
+
+        /* Direct buffer, with a position which must not move */
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+        direct.position(10);
+        direct.put(data).position(10);
+        assertEquals(MerkleTree.hash(Hash.SHA256, direct, 65536).getRoot(), expected);
+        assertEquals(direct.position(), 10);
+
+        final File file = File.createTempFile("merkle", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MerkleTree tree = MerkleTree.hash(Hash.SHA256, channel, 65536);
+            assertEquals(tree.getRoot(), expected);
+            assertEquals(tree.getLength(), (long) data.length);
+            assertEquals(tree.getChunkSize(), 65536);
+            assertEquals(channel.position(), 0L);
+
+            final int index = 42;
+            final byte[] chunk = Arrays.copyOfRange(data, index * 65536, (index + 1) * 65536);
+            assertTrue(tree.getProof(index).verify(expected, chunk));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions=IndexOutOfBoundsException.class,
+          expectedExceptionsMessageRegExp="^Invalid leaf 3 of 3")
+    public void testInvalidLeaf() {
+        MerkleTree.hash(Hash.SHA256, ByteBuffer.wrap(new byte[30]), 10).getProof(3);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Invalid chunk size 0")
+    public void testInvalidChunkSize() {
+        MerkleTree.hash(Hash.SHA256, ByteBuffer.wrap(new byte[30]), 0);
+    }
+
+}
@@ -0,0 +1,163 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class MidstateTest extends AbstractTest {
+
+    private static final Hash[] HASHES = { Hash.SHA1, Hash.SHA256, Hash.SHA384, Hash.SHA512 };
+    private static final int[] SPLITS = { 0, 1, 55, 63, 64, 65, 111, 127, 128, 129, 500, 1000 };
+
+    private final byte[] data = new byte[1000];
+
+    public MidstateTest() {
+        new Random(1000).nextBytes(data);
+    }
+
+    @Test
+    public void testDigest() {
+        for (Hash hash: HASHES) {
+            final byte[] expected = hash.digest().update(data).finish();
+            assertEquals(hash.resumableDigest().update(data).finish(), expected, hash.name());
+
+            for (int split: SPLITS) {
+                final String message = hash.name() + " split at " + split;
+                final MD digest = hash.resumableDigest().update(data, 0, split);
+                final Midstate midstate = Midstate.decode(digest.exportState().getEncoded());
+                assertSame(midstate.getHash(), hash, message);
+                assertFalse(midstate.isHMAC(), message);
+                assertEquals(midstate.getLength(), (long) split, message);
+
+                /* Resume from the midstate, and continue the original */
+                final MD resumed = hash.resumableDigest(midstate);
+                assertEquals(resumed.update(data, split, data.length - split).finish(), expected, message);
+                assertEquals(digest.update(data, split, data.length - split).finish(), expected, message);
+            }
+        }
+    }
+
+    @Test
+    public void testHMAC() {
+        final byte[][] keys = { null, "Jefe".getBytes(), new byte[200] };
+        for (Hash hash: HASHES) for (byte[] key: keys) {
+            final byte[] expected = hash.hmac(key).update(data).finish();
+            assertEquals(hash.resumableHmac(key).update(data).finish(), expected, hash.name());
+
+            for (int split: SPLITS) {
+                final String message = hash.name() + " split at " + split;
+                final HMAC hmac = hash.resumableHmac(key).update(data, 0, split);
+                final Midstate midstate = Midstate.decode(hmac.exportState().getEncoded());
+                assertSame(midstate.getHash(), hash, message);
+                assertTrue(midstate.isHMAC(), message);
+                assertEquals(midstate.getLength(), (long) split, message);
+
+                final HMAC resumed = hash.resumableHmac(key, midstate);
+                assertEquals(resumed.update(data, split, data.length - split).finish(), expected, message);
+                assertEquals(hmac.update(data, split, data.length - split).finish(), expected, message);
+            }
+        }
+    }
+
+    @Test
+    public void testForkAndReuse() {
+        final byte[] key = "Jefe".getBytes();
+        final byte[] expected = Hash.SHA256.hmac(key).update(data).finish();
+
+        final HMAC hmac = Hash.SHA256.resumableHmac(key).update(data, 0, 100);
+        final Midstate midstate = hmac.fork().update(data, 100, 400).exportState();
+        assertEquals(midstate.getLength(), 500L);
+        assertEquals(Hash.SHA256.resumableHmac(key, midstate).update(data, 500, 500).finish(), expected);
+
+        /* After finishing, the exported state restarts from the key */
+        hmac.update(data, 100, 900).finish();
+        assertEquals(hmac.exportState().getLength(), 0L);
+        assertEquals(hmac.update(data).finish(), expected);
+    }
+
+    @Test
+    public void testForkIndependent()
+    throws Exception {
+        final byte[] key = "Jefe".getBytes();
+        final byte[] expected = Hash.SHA256.hmac(key).update(data).finish();
+
+        /* Forks continue on their own, and stay exportable */
+        final HMAC hmac = Hash.SHA256.resumableHmac(key).update(data, 0, 300);
+        final HMAC fork = hmac.fork();
+        assertEquals(hmac.update(data, 300, 700).finish(), expected);
+        assertEquals(fork.exportState().getLength(), 300L);
+        assertEquals(fork.fork().update(data, 300, 700).finish(), expected);
+        assertEquals(fork.update(data, 300, 700).finish(), expected);
+
+        /* State is never exchanged through the JCA initialization parameters */
+        try {
+            hmac.getMac().init(new SecretKeySpec(key, "HmacSHA256"), new IvParameterSpec(new byte[16]));
+            fail("Exception not thrown");
+        } catch (InvalidAlgorithmParameterException exception) {
+            assertEquals(exception.getMessage(), "HMAC does not use parameters");
+        }
+    }
+
+    @Test
+    public void testUnsupported() {
+        try {
+            Hash.SHA3_256.resumableDigest();
+            fail("Exception not thrown");
+        } catch (UnsupportedOperationException exception) {
+            assertEquals(exception.getMessage(), "Hash SHA3_256 does not support midstates");
+        }
+        try {
+            Hash.SHA256.digest().exportState();
+            fail("Exception not thrown");
+        } catch (UnsupportedOperationException exception) {
+            assertEquals(exception.getMessage(), "Digest state not exportable");
+        }
+        for (Hash hash: new Hash[] { Hash.SHA256, Hash.BLAKE3 }) try {
+            hash.hmac("Jefe".getBytes()).update(data).exportState();
+            fail("Exception not thrown for " + hash);
+        } catch (UnsupportedOperationException exception) {
+            assertEquals(exception.getMessage(), "Mac state not exportable");
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Midstate hash SHA256 does not match SHA512")
+    public void testWrongHash() {
+        Hash.SHA512.resumableDigest(Hash.SHA256.resumableDigest().exportState());
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Midstate is not for a digest")
+    public void testWrongType() {
+        Hash.SHA256.resumableDigest(Hash.SHA256.resumableHmac(null).exportState());
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Invalid midstate.*")
+    public void testInvalidEncoding() {
+        final byte[] encoded = Hash.SHA256.resumableDigest().exportState().getEncoded();
+        Midstate.decode(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+}
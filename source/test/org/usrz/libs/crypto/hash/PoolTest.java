@@ -0,0 +1,141 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class PoolTest extends AbstractTest {
+
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    @Test
+    public void testSharedPool() {
+        final AtomicInteger created = new AtomicInteger();
+        final Pool<Object> pool = Pool.shared(() -> { created.incrementAndGet(); return new Object(); });
+
+        final Object object = pool.borrow();
+        pool.release(object);
+        assertSame(pool.borrow(), object, "Instance not reused");
+        assertNotSame(pool.borrow(), object, "Instance lent twice");
+        assertEquals(created.get(), 2);
+    }
+
+    @Test
+    public void testSharedPoolBounded() {
+        final Pool<Object> pool = Pool.shared(Object::new);
+
+        final List<Object> objects = new ArrayList<>();
+        for (int x = 0; x < 1000; x ++) objects.add(pool.borrow());
+        for (Object object: objects) pool.release(object);
+
+        int reused = 0;
+        for (int x = 0; x < 1000; x ++) if (objects.contains(pool.borrow())) reused ++;
+        assertTrue(reused > 0, "No instances reused");
+        assertTrue(reused < 1000, "Pool not bounded");
+    }
+
+    @Test
+    public void testSharedPoolThreads() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final Pool<Object> pool = Pool.shared(() -> { created.incrementAndGet(); return new Object(); });
+
+        /* Many short-lived threads, each borrowing and returning */
+        for (int x = 0; x < 100; x ++) {
+            final Thread thread = new Thread(() -> pool.release(pool.borrow()));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(created.get(), 1, "Instances not shared across threads");
+    }
+
+    @Test
+    public void testThreadLocalPool() throws Exception {
+        final Pool<Object> pool = Pool.threadLocal(Object::new);
+        final Object object = pool.borrow();
+        assertSame(pool.borrow(), object);
+
+        final Object[] other = new Object[1];
+        final Thread thread = new Thread(() -> other[0] = pool.borrow());
+        thread.start();
+        thread.join();
+        assertNotSame(other[0], object);
+    }
+
+    @Test
+    public void testCloseReturnsToPool() throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final Pool<MessageDigest> pool = Pool.shared(() -> { throw new AssertionError("Pool empty"); });
+
+        final byte[] expected = Hash.SHA256.digest().update(DATA).finish();
+        try (MD md = new MD(Hash.SHA256, digest, pool)) {
+            /* Leave some garbage behind, must be reset when closed */
+            md.update(DATA);
+        }
+
+        final MD md = new MD(Hash.SHA256, pool.borrow(), pool);
+        assertSame(md.getMessageDigest(), digest);
+        assertEquals(md.update(DATA).finish(), expected);
+        md.close();
+        md.close(); // closing twice must not return twice
+
+        pool.borrow();
+        try {
+            pool.borrow();
+            fail("Instance returned twice");
+        } catch (AssertionError error) {
+            assertEquals(error.getMessage(), "Pool empty");
+        }
+    }
+
+    @Test
+    public void testUseAfterClose() throws Exception {
+        final MD md = Hash.SHA256.digest();
+        md.close();
+        assertException(() -> md.update(DATA), IllegalStateException.class, "Digest closed");
+        assertException(() -> md.finish(), IllegalStateException.class, "Digest closed");
+        assertException(() -> md.fork(), IllegalStateException.class, "Digest closed");
+        assertException(() -> md.getMessageDigest(), IllegalStateException.class, "Digest closed");
+
+        final HMAC hmac = Hash.SHA256.hmac("key".getBytes());
+        hmac.close();
+        assertException(() -> hmac.update(DATA), IllegalStateException.class, "Mac closed");
+        assertException(() -> hmac.finish(), IllegalStateException.class, "Mac closed");
+        assertException(() -> hmac.fork(), IllegalStateException.class, "Mac closed");
+        assertException(() -> hmac.getMac(), IllegalStateException.class, "Mac closed");
+
+        /* New instances (borrowing the same pooled ones) are not affected */
+        assertEquals(Hash.SHA256.digest().update(DATA).finish(), MessageDigest.getInstance("SHA-256").digest(DATA));
+        assertEquals(Hash.SHA256.hmac("key".getBytes()).update(DATA).finish(), Hash.SHA256.hmacKey("key".getBytes()).hmac().update(DATA).finish());
+    }
+
+    @Test
+    public void testHashTryWithResources() {
+        final byte[] expected = Hash.SHA1.hmac("key".getBytes()).update(DATA).finish();
+        try (HMAC hmac = Hash.SHA1.hmac("key".getBytes())) {
+            assertEquals(hmac.update(DATA).finish(), expected);
+        }
+        try (HMAC hmac = Hash.SHA1.hmacKey("key".getBytes()).hmac()) {
+            assertEquals(hmac.update(DATA).finish(), expected);
+        }
+    }
+
+}
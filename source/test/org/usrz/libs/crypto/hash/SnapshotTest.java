@@ -0,0 +1,109 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SnapshotTest extends AbstractTest {
+
+    private static final byte[] KEY = "Jefe".getBytes();
+    private static final byte[] PREFIX = "what do ya want ".getBytes();
+    private static final byte[] SUFFIX = "for nothing?".getBytes();
+
+    @Test
+    public void testForkMD() {
+        for (Hash hash: Hash.values()) {
+            final byte[] expected = hash.digest().update(PREFIX).update(SUFFIX).finish();
+            final byte[] prefix = hash.digest().update(PREFIX).finish();
+
+            final MD digest = hash.digest().update(PREFIX);
+            final MD fork = digest.fork();
+            assertNotSame(fork, digest);
+            assertSame(fork.getHash(), hash);
+
+            /* Both continue independently from the same state */
+            assertEquals(fork.update(SUFFIX).finish(), expected, hash.name());
+            assertEquals(digest.finish(), prefix, hash.name());
+        }
+    }
+
+    @Test
+    public void testForkHMAC() {
+        for (Hash hash: Hash.values()) {
+            final byte[] expected = hash.hmac(KEY).update(PREFIX).update(SUFFIX).finish();
+            final byte[] prefix = hash.hmac(KEY).update(PREFIX).finish();
+
+            final HMAC hmac = hash.hmac(KEY).update(PREFIX);
+            final HMAC fork = hmac.fork();
+            assertEquals(fork.update(SUFFIX).finish(), expected, hash.name());
+            assertEquals(hmac.finish(), prefix, hash.name());
+
+            /* A finished fork is reset to the key, not to the prefix */
+            assertEquals(fork.update(PREFIX).update(SUFFIX).finish(), expected, hash.name());
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        for (Hash hash: Hash.values()) {
+            final byte[] expected = hash.hmac(KEY).update(PREFIX).update(SUFFIX).finish();
+
+            final Snapshot<HMAC> snapshot;
+            try (HMAC hmac = hash.hmacKey(KEY).hmac()) {
+                snapshot = hmac.update(PREFIX).snapshot();
+                /* Further updates do not affect the snapshot */
+                hmac.update(SUFFIX).update(SUFFIX);
+            }
+
+            assertSame(snapshot.getHash(), hash);
+            for (int x = 0; x < 3; x ++) {
+                assertEquals(snapshot.fork().update(SUFFIX).finish(), expected, hash.name());
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentSnapshot()
+    throws Exception {
+        final byte[] expected = Hash.SHA256.digest().update(PREFIX).update(SUFFIX).finish();
+        final Snapshot<MD> snapshot = Hash.SHA256.digest().update(PREFIX).snapshot();
+
+        final Callable<Boolean> callable = () -> {
+            for (int x = 0; x < 1000; x ++) {
+                final byte[] result = snapshot.fork().update(SUFFIX).finish();
+                if (! Arrays.equals(result, expected)) return false;
+            }
+            return true;
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<?>[] futures = new Future<?>[4];
+            for (int x = 0; x < futures.length; x ++) futures[x] = executor.submit(callable);
+            for (Future<?> future: futures) assertEquals(future.get(), Boolean.TRUE);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.hash;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.crypto.hash.Tokenizer.Encoding;
+import org.usrz.libs.testing.AbstractTest;
+
+public class TokenizerTest extends AbstractTest {
+
+    private static final byte[] KEY = "tokenization key".getBytes(UTF8);
+
+    private static byte[] expected(String input, int length) {
+        return Arrays.copyOf(Hash.SHA256.hmac(KEY).update(input.getBytes(UTF8)).finish(), length);
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for (byte b: bytes) builder.append(String.format("%02x", b & 0xFF));
+        return builder.toString();
+    }
+
+    private static List<String> inputs(int count) {
+        final List<String> inputs = new ArrayList<>();
+        for (int x = 0; x < count; x ++) inputs.add("user" + x + "@example.com");
+        return inputs;
+    }
+
+    @Test
+    public void testBytes() {
+        final Tokenizer tokenizer = new Tokenizer(Hash.SHA256, KEY, 16, Encoding.HEX);
+        final byte[] output = new byte[20];
+        tokenizer.tokenize("pier@usrz.com", output, 2);
+        assertEquals(Arrays.copyOfRange(output, 2, 18), expected("pier@usrz.com", 16));
+        assertEquals(Arrays.copyOfRange(output, 18, 20), new byte[2]);
+
+        /* Non-ASCII characters are encoded as UTF-8 */
+        tokenizer.tokenize("\u6771\u4EAC +81 3 1234", output, 0);
+        assertEquals(Arrays.copyOf(output, 16), expected("\u6771\u4EAC +81 3 1234", 16));
+    }
+
+    @Test
+    public void testEncodings() {
+        final Tokenizer hex = new Tokenizer(Hash.SHA256, KEY);
+        assertEquals(hex.getTokenLength(), 32);
+        assertEquals(hex.getEncodedLength(), 64);
+        assertEquals(hex.tokenize("pier@usrz.com"), hex(expected("pier@usrz.com", 32)));
+
+        /* All possible trailing lengths for Base 64 */
+        for (int length = 1; length <= 32; length ++) {
+            final Tokenizer base64 = new Tokenizer(Hash.SHA256, KEY, length, Encoding.BASE64);
+            final String token = base64.tokenize("+1 555 0100");
+            assertEquals(token.length(), base64.getEncodedLength());
+            assertEquals(token, Base64.getUrlEncoder().withoutPadding().encodeToString(expected("+1 555 0100", length)));
+        }
+
+        final char[] output = new char[30];
+        final Tokenizer tokenizer = new Tokenizer(Hash.SHA256, KEY, 10, Encoding.HEX);
+        assertEquals(tokenizer.tokenize(new StringBuilder("pier@usrz.com"), output, 5), 20);
+        assertEquals(new String(output, 5, 20), hex(expected("pier@usrz.com", 10)));
+    }
+
+    @Test
+    public void testBatches() {
+        final Tokenizer tokenizer = new Tokenizer(Hash.SHA256, KEY, 12, Encoding.BASE64);
+        final List<String> inputs = inputs(3000);
+
+        final byte[] bytes = new byte[inputs.size() * 12 + 3];
+        final byte[] parallelBytes = new byte[bytes.length];
+        tokenizer.tokenizeAll(inputs, bytes, 3);
+        tokenizer.parallelTokenizeAll(inputs, parallelBytes, 3);
+        assertEquals(parallelBytes, bytes);
+
+        final char[] chars = new char[inputs.size() * 16];
+        final char[] parallelChars = new char[chars.length];
+        tokenizer.tokenizeAll(inputs, chars, 0);
+        tokenizer.parallelTokenizeAll(inputs, parallelChars, 0);
+        assertEquals(parallelChars, chars);
+
+        final List<String> tokens = tokenizer.tokenize(inputs.parallelStream()).collect(Collectors.toList());
+        for (int x = 0; x < inputs.size(); x += 97) {
+            assertEquals(Arrays.copyOfRange(bytes, 3 + x * 12, 15 + x * 12), expected(inputs.get(x), 12));
+            assertEquals(new String(chars, x * 16, 16), tokens.get(x));
+        }
+    }
+
+    @Test
+    public void testKeysAndHashes() {
+        /* Empty, short, block-sized and long keys */
+        for (byte[] key: new byte[][] { null, new byte[0], KEY, new byte[64], new byte[136], new byte[300] }) {
+            for (Hash hash: Hash.values()) {
+                final byte[] output = new byte[hash.getHashLength()];
+                new Tokenizer(hash, key).tokenize("pier@usrz.com", output, 0);
+                assertEquals(output, hash.hmac(key).update("pier@usrz.com".getBytes(UTF8)).finish(), hash + " key " + (key == null ? null : key.length));
+            }
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testShortBuffer() {
+        new Tokenizer(Hash.SHA256, KEY).tokenize("pier@usrz.com", new char[63], 0);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testShortBatchBuffer() {
+        new Tokenizer(Hash.SHA256, KEY, 8, Encoding.HEX).parallelTokenizeAll(inputs(1000), new byte[7999], 0);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Invalid token length 33")
+    public void testInvalidLength() {
+        new Tokenizer(Hash.SHA256, KEY, 33, Encoding.HEX);
+    }
+
+}
@@ -16,16 +16,24 @@
 package org.usrz.libs.crypto.json;
 
 import static com.fasterxml.jackson.databind.SerializationFeature.INDENT_OUTPUT;
+import static org.usrz.libs.utils.Charsets.UTF8;
+import static org.usrz.libs.utils.codecs.HexCodec.HEX;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import org.usrz.libs.configurations.Password;
+import org.usrz.libs.crypto.hash.Hash;
 import org.usrz.libs.crypto.json.HashedPassword;
 import org.usrz.libs.crypto.kdf.BasicKDFManager;
 import org.usrz.libs.crypto.kdf.KDF;
 import org.usrz.libs.crypto.kdf.KDF.Function;
 import org.usrz.libs.crypto.kdf.KDFSpec;
 import org.usrz.libs.crypto.kdf.KDFSpecBuilder;
+import org.usrz.libs.crypto.utils.BreachedPasswords;
 import org.usrz.libs.testing.AbstractTest;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -80,4 +88,22 @@ public class HashedPasswordTest extends AbstractTest {
         assertException(() -> hashed.validate(kdf, password1), IllegalStateException.class, "Destroyed");
         assertException(() -> parsed.validate(kdf, password1), IllegalStateException.class, "Destroyed");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBreachedPassword()
+    throws Exception {
+        final String hash = HEX.encode(Hash.SHA1.digest().update("password".getBytes(UTF8)).finish());
+        final Path index = Files.createTempFile("breached", ".bin");
+        try {
+            BreachedPasswords.build(new StringReader(hash), index);
+            final BreachedPasswords breached = new BreachedPasswords(index);
+
+            final Password password = new Password("IrkWneuEPDciNs6DbibjL4uelUtZYaSqE8KPKxR1epd2zoFsqI5uKChJUDXfGIUO".toCharArray());
+            assertTrue(new HashedPassword(kdf, password, breached).validate(kdf, password));
+            assertException(() -> new HashedPassword(kdf, new Password("password".toCharArray()), breached),
+                            IllegalArgumentException.class, "Password found in breached passwords");
+        } finally {
+            Files.delete(index);
+        }
+    }
+}
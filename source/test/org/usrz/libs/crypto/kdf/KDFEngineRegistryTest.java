@@ -0,0 +1,122 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.kdf;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.testing.AbstractTest;
+
+public class KDFEngineRegistryTest extends AbstractTest {
+
+    @Test
+    public void testJavaOnlyFunctions() {
+        assertEquals(KDFEngineRegistry.getEngine(new PBKDF2Spec(Hash.SHA1, 20, 1000)), KDFEngine.JAVA);
+        assertEquals(KDFEngineRegistry.getEngine(new OpenSSLKDFSpec(Hash.MD5, 16)), KDFEngine.JAVA);
+    }
+
+    @Test
+    public void testNonNativeHash() {
+        final SCryptSpec spec = new SCryptSpec(Hash.SHA512, 64, 16, 1, 1);
+        assertEquals(KDFEngineRegistry.getEngine(spec), KDFEngine.JAVA);
+        assertFalse(new SCrypt(spec).isNative());
+    }
+
+    @Test
+    public void testSelection() {
+        KDFEngineRegistry.reset();
+
+        final SCryptSpec spec = new SCryptSpec(16, 1, 1, 64);
+        final KDFEngine engine = KDFEngineRegistry.getEngine(spec);
+        if (SCryptNativeHelper.isAvailable()) {
+            final Map<String, KDFEngine> selections = KDFEngineRegistry.getSelections();
+            log.info("Engine selections: %s", selections);
+            assertEquals(selections.size(), 1);
+            assertEquals(selections.values().iterator().next(), engine);
+        } else {
+            assertEquals(engine, KDFEngine.JAVA);
+            assertTrue(KDFEngineRegistry.getSelections().isEmpty());
+        }
+
+        /* Whatever the engine, the result must be the same */
+        final SCrypt scrypt = new SCrypt(spec);
+        assertEquals(scrypt.isNative(), engine == KDFEngine.NATIVE);
+        assertEquals(scrypt.deriveKey("".getBytes(UTF8), "".getBytes(UTF8)),
+                     new SCrypt(spec, KDFEngine.JAVA).deriveKey("".getBytes(UTF8), "".getBytes(UTF8)));
+    }
+
+    @Test
+    public void testConcurrentSelection()
+    throws Exception {
+        KDFEngineRegistry.reset();
+
+        /* Concurrent callers all agree on the first selection stored */
+        final SCryptSpec spec = new SCryptSpec(32, 1, 1, 64);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<KDFEngine>> futures = new ArrayList<>();
+            for (int x = 0; x < 8; x ++) futures.add(executor.submit(() -> KDFEngineRegistry.getEngine(spec)));
+
+            final KDFEngine engine = KDFEngineRegistry.getEngine(spec);
+            for (Future<KDFEngine> future: futures) assertEquals(future.get(), engine);
+            if (SCryptNativeHelper.isAvailable()) {
+                assertEquals(KDFEngineRegistry.getSelections().size(), 1);
+                assertEquals(KDFEngineRegistry.getSelections().values().iterator().next(), engine);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidSelection() {
+        KDFEngineRegistry.reset();
+
+        /* Parameters are validated before any engine gets benchmarked */
+        final SCryptSpec spec = new SCryptSpec(16, 1, 1, 64);
+        assertException(() -> new SCrypt(spec, 0), IllegalArgumentException.class, "Threads must be greater than zero");
+        assertException(() -> new SCrypt(spec, -1), IllegalArgumentException.class, "Threads must be greater than zero");
+        assertTrue(KDFEngineRegistry.getSelections().isEmpty());
+    }
+
+    @Test
+    public void testPBKDF2Selection() {
+        final PBKDF2Spec spec = new PBKDF2Spec(Hash.SHA256, 32, 1000);
+        final KDFEngine engine = KDFEngineRegistry.getEngine(spec);
+        if (!SCryptNativeHelper.isPBKDF2Available()) assertEquals(engine, KDFEngine.JAVA);
+
+        /* Whatever the engine, the result must be the same */
+        final PBKDF2 pbkdf2 = new PBKDF2(spec);
+        assertEquals(pbkdf2.isNative(), engine == KDFEngine.NATIVE);
+        assertEquals(pbkdf2.deriveKey("password".getBytes(UTF8), "salt".getBytes(UTF8)),
+                     new PBKDF2(spec, KDFEngine.JAVA).deriveKey("password".getBytes(UTF8), "salt".getBytes(UTF8)));
+    }
+
+    @Test
+    public void testExpensiveSpecs() {
+        final SCryptSpec spec = new SCryptSpec(1048576, 8, 1, 64);
+        final KDFEngine engine = KDFEngineRegistry.getEngine(spec);
+        assertEquals(engine, SCryptNativeHelper.isAvailable() ? KDFEngine.NATIVE : KDFEngine.JAVA);
+    }
+}
@@ -54,4 +54,29 @@ public class OpenSSLKDFTest extends AbstractTest {
         assertEquals(result, HEX.decode("ED1F1DE2ECD77EA1DC5F08465EF36402"));
     }
 
+    @Test
+    public void testVerifyKey() {
+        final OpenSSLKDF kdf = new OpenSSLKDF(24);
+        final byte[] expected = HEX.decode("ba87b69741a4d7dab15e972c07e7d9f18b43599a81d1bbef");
+        assertTrue(kdf.verifyKey(pass, salt, expected));
+        assertFalse(kdf.verifyKey("wrong".getBytes(UTF8), salt, expected));
+        assertFalse(kdf.verifyKey(pass, salt, HEX.decode("ba87b69741a4d7dab15e972c07e7d9f1")));
+
+        final byte[] padded = HEX.decode("00ba87b69741a4d7dab15e972c07e7d9f18b43599a81d1bbef00");
+        assertTrue(kdf.verifyKey(pass, salt, padded, 1));
+        assertFalse(kdf.verifyKey(pass, salt, padded, 2));
+        assertFalse(kdf.verifyKey(pass, salt, padded, 3));
+    }
+
+    @Test
+    public void testVerifyKeyWipesBuffer() {
+        final OpenSSLKDF kdf = new OpenSSLKDF(16);
+        assertTrue(kdf.verifyKey(pass, salt, HEX.decode("ba87b69741a4d7dab15e972c07e7d9f1")));
+
+        /* The reused buffer is longer than the key, and must be wiped entirely */
+        final byte[] buffer = AbstractKDF.buffers.get();
+        assertTrue(buffer.length > 16);
+        assertEquals(buffer, new byte[buffer.length]);
+    }
+
 }
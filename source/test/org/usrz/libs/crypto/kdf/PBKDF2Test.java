@@ -126,4 +126,31 @@ public class PBKDF2Test extends AbstractTest {
         new PBKDF2(Hash.SHA1, 1).deriveKey(password, salt, new byte[19], 1);
     }
 
+    /* ===================================================================== */
+
+    @Test
+    public void testNativeSHA256() {
+        if (!SCryptNativeHelper.isPBKDF2Verified()) {
+            log.warn("Native PBKDF2 not available, skipping test");
+            return;
+        }
+
+        final PBKDF2Spec spec = new PBKDF2Spec(Hash.SHA256, 32, 4096);
+        final PBKDF2 nativePbkdf2 = new PBKDF2(spec, KDFEngine.NATIVE);
+        final PBKDF2 javaPbkdf2 = new PBKDF2(spec, KDFEngine.JAVA);
+
+        assertTrue(nativePbkdf2.isNative(), "Native PBKDF2 not enabled");
+        assertFalse(javaPbkdf2.isNative(), "Native PBKDF2 enabled");
+
+        final byte[] expected = HEX.decode("c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a");
+        assertEquals(nativePbkdf2.deriveKey(password, salt), expected);
+        assertEquals(javaPbkdf2.deriveKey(password, salt), expected);
+
+        /* Multiple output blocks, with offset */
+        final byte[] result = new byte[66];
+        new PBKDF2(new PBKDF2Spec(Hash.SHA256, 64, 1), KDFEngine.NATIVE)
+                .deriveKey("passwd".getBytes(), salt, result, 1);
+        assertEquals(result, HEX.decode("0055ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a1978300"));
+    }
+
 }
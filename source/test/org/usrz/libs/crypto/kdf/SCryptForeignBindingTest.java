@@ -0,0 +1,91 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.kdf;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+import static org.usrz.libs.utils.codecs.HexCodec.HEX;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SCryptForeignBindingTest extends AbstractTest {
+
+    private static final byte[] PASSWORD = "password".getBytes(UTF8);
+    private static final byte[] SALT = "NaCl".getBytes(UTF8);
+    private static final byte[] EXPECTED = HEX.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+
+    private SCryptForeignBinding binding;
+
+    @BeforeClass
+    public void createBinding() {
+        if (! SCryptNativeHelper.isAvailable()) throw new SkipException("Native SCrypt library not available");
+        binding = SCryptForeignBinding.create();
+        if (binding == null) throw new SkipException("Foreign Function and Memory API not available");
+    }
+
+    @Test
+    public void testArrays() {
+        for (int threads = 1; threads <= 2; threads ++) {
+            final byte[] output = new byte[66];
+            binding.scrypt(PASSWORD, SALT, output, 1, 64, 1024, 8, 16, threads);
+            assertEquals(output[0], (byte) 0);
+            assertEquals(output[65], (byte) 0);
+            assertEquals(Arrays.copyOfRange(output, 1, 65), EXPECTED, "Threads " + threads);
+        }
+    }
+
+    @Test
+    public void testShortComputation() {
+        /* Short enough to pass arrays straight (critical downcalls) if supported */
+        final byte[] expected = new SCrypt(new SCryptSpec(16, 1, 1, 64), KDFEngine.JAVA).deriveKey(PASSWORD, SALT);
+        final byte[] output = new byte[64];
+        binding.scrypt(PASSWORD, SALT, output, 0, 64, 16, 1, 1, 1);
+        assertEquals(output, expected);
+    }
+
+    @Test
+    public void testDirectBuffers() {
+        final ByteBuffer password = ByteBuffer.allocateDirect(PASSWORD.length);
+        final ByteBuffer salt = ByteBuffer.allocateDirect(SALT.length);
+        final ByteBuffer output = ByteBuffer.allocateDirect(64);
+        password.put(PASSWORD).flip();
+        salt.put(SALT).flip();
+
+        binding.scrypt(password, salt, output, 1024, 8, 16, 2);
+        final byte[] result = new byte[64];
+        output.get(result);
+        assertEquals(result, EXPECTED);
+    }
+
+    @Test
+    public void testAutomaticBinding() {
+        if (System.getProperty(SCryptNativeHelper.BINDING_PROPERTY) != null)
+            throw new SkipException("Binding configured explicitly");
+
+        /* Automatically, FFM is only used when it will not trigger warnings */
+        final String version = System.getProperty("java.specification.version");
+        final boolean supported = (! version.startsWith("1.")) && (Integer.parseInt(version.replaceAll("\\..*", "")) >= 22);
+        final boolean enabled = SCryptForeignBinding.isNativeAccessEnabled();
+        log.info("Java %s, native access %s, %s binding in use", version, enabled ? "enabled" : "disabled", SCryptNativeHelper.getBinding());
+        assertEquals(SCryptNativeHelper.getBinding(), supported && enabled ? "FFM" : "JNI");
+    }
+
+}
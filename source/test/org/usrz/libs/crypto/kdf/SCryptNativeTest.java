@@ -15,6 +15,8 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.kdf;
 
+import java.util.Arrays;
+
 import org.testng.annotations.Test;
 
 public class SCryptNativeTest extends SCryptTest {
@@ -24,6 +26,25 @@ public class SCryptNativeTest extends SCryptTest {
         return true;
     }
 
+    @Test
+    public void testVerified() {
+        assertTrue(SCryptNativeHelper.isVerified(), "Native library not verified");
+    }
+
+    @Test
+    public void testKernel() {
+        final String kernel = SCryptNativeHelper.getKernel();
+        log.info("Native SCrypt kernel is %s", kernel);
+        assertTrue(Arrays.asList("sse2", "avx2", "avx512").contains(kernel), "Unknown kernel " + kernel);
+    }
+
+    @Test
+    public void testSHA256Transform() {
+        final String transform = SCryptNativeHelper.getSHA256Transform();
+        log.info("Native SHA256 transform is %s", transform);
+        assertTrue(Arrays.asList("portable", "sha-ni").contains(transform), "Unknown transform " + transform);
+    }
+
     @Override @Test
     public void testParallelThreads()
     throws InterruptedException {
@@ -47,6 +68,16 @@ public class SCryptNativeTest extends SCryptTest {
         super.testLongBuffer();
     }
 
+    @Override @Test
+    public void testByteBuffers() {
+        super.testByteBuffers();
+    }
+
+    @Override @Test
+    public void testLaneThreads() {
+        super.testLaneThreads();
+    }
+
     @Override @Test
     public void testIETFVector1() {
         super.testIETFVector1();
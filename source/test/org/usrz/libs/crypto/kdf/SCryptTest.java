@@ -18,6 +18,7 @@ package org.usrz.libs.crypto.kdf;
 import static org.usrz.libs.utils.Charsets.UTF8;
 import static org.usrz.libs.utils.codecs.HexCodec.HEX;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import org.testng.annotations.BeforeClass;
@@ -39,7 +40,8 @@ public class SCryptTest extends AbstractTest {
         } else {
             SCryptNativeHelper.disable();
         }
-        final SCrypt scrypt = new SCrypt(iterations, blockSize, parallelization, derivedKeyLength);
+        final SCryptSpec spec = new SCryptSpec(iterations, blockSize, parallelization, derivedKeyLength);
+        final SCrypt scrypt = new SCrypt(spec, shouldUseNative() ? KDFEngine.NATIVE : KDFEngine.JAVA);
         assertEquals(scrypt.isNative(), shouldUseNative());
 
         return scrypt;
@@ -159,6 +161,57 @@ public class SCryptTest extends AbstractTest {
         assertEquals(result, HEX.decode("29fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc064001"));
     }
 
+    @Test
+    public void testByteBuffers() {
+        final byte[] expected = HEX.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+        final SCrypt scrypt = newInstance(1024, 8, 16, 64);
+
+        for (boolean direct: new boolean[] { true, false }) {
+            final ByteBuffer password = direct ? ByteBuffer.allocateDirect(8) : ByteBuffer.allocate(8);
+            final ByteBuffer salt = direct ? ByteBuffer.allocateDirect(4) : ByteBuffer.allocate(4);
+            final ByteBuffer output = direct ? ByteBuffer.allocateDirect(66) : ByteBuffer.allocate(66);
+            password.put("password".getBytes(UTF8)).flip();
+            salt.put("NaCl".getBytes(UTF8)).flip();
+            output.position(1);
+
+            scrypt.deriveKey(password, salt, output);
+            assertEquals(password.remaining(), 0);
+            assertEquals(salt.remaining(), 0);
+            assertEquals(output.position(), 65);
+
+            final byte[] result = new byte[64];
+            output.position(1);
+            output.get(result);
+            assertEquals(result, expected);
+        }
+    }
+
+    @Test
+    public void testLaneThreads() {
+        final byte[] expected = HEX.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+        final SCryptSpec spec = new SCryptSpec(1024, 8, 16, 64);
+        final KDFEngine engine = shouldUseNative() ? KDFEngine.NATIVE : KDFEngine.JAVA;
+        newInstance(1024, 8, 16, 64); // enable or disable native support
+
+        for (int threads: new int[] { 1, 2, 3, 16, 64 }) {
+            final SCrypt scrypt = new SCrypt(spec, engine, threads);
+            assertEquals(scrypt.getThreads(), Math.min(threads, 16));
+            assertEquals(scrypt.deriveKey("password".getBytes(UTF8), "NaCl".getBytes(UTF8)), expected);
+
+            final ByteBuffer output = ByteBuffer.allocateDirect(64);
+            scrypt.deriveKey(ByteBuffer.wrap("password".getBytes(UTF8)), ByteBuffer.wrap("NaCl".getBytes(UTF8)), output);
+            final byte[] result = new byte[64];
+            ((ByteBuffer) output.flip()).get(result);
+            assertEquals(result, expected);
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Threads must be greater than zero$")
+    public void testZeroThreads() {
+        new SCrypt(new SCryptSpec(1024, 8, 16, 64), 0);
+    }
+
     /* ====================================================================== */
     /* Test vectors: http://tools.ietf.org/html/draft-josefsson-scrypt-kdf-01 */
     /* ====================================================================== */
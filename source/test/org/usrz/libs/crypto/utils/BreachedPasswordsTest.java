@@ -0,0 +1,145 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import static org.usrz.libs.utils.Charsets.UTF8;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.testing.AbstractTest;
+
+public class BreachedPasswordsTest extends AbstractTest {
+
+    private Path root;
+    private Path index;
+
+    @BeforeMethod
+    public void before()
+    throws IOException {
+        root = Files.createTempDirectory("breached");
+        index = root.resolve("index.bin");
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void after()
+    throws IOException {
+        Files.deleteIfExists(root.resolve("corpus.txt"));
+        Files.deleteIfExists(index);
+        Files.delete(root);
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for (byte b: bytes) builder.append(String.format("%02X", b & 0xFF));
+        return builder.toString();
+    }
+
+    /* A sorted corpus, in HIBP format, of the SHA-1 of our passwords */
+    private static String corpus(List<String> passwords) {
+        final TreeMap<String, Integer> hashes = new TreeMap<>();
+        for (String password: passwords)
+            hashes.put(hex(Hash.SHA1.digest().update(password.getBytes(UTF8)).finish()), password.length());
+        final StringBuilder builder = new StringBuilder();
+        hashes.forEach((hash, count) -> builder.append(hash).append(':').append(count).append("\r\n"));
+        return builder.toString();
+    }
+
+    private static List<String> passwords(String prefix, int count) {
+        final List<String> passwords = new ArrayList<>();
+        for (int x = 0; x < count; x ++) passwords.add(prefix + x);
+        return passwords;
+    }
+
+    @Test
+    public void testBreachedPasswords()
+    throws IOException {
+        final List<String> breached = passwords("password", 20000);
+        breached.add("\u6771\u4EAC");
+        final Path corpus = Files.write(root.resolve("corpus.txt"), corpus(breached).getBytes(UTF8));
+        assertEquals(BreachedPasswords.build(corpus, index), 20001L);
+
+        final BreachedPasswords passwords = new BreachedPasswords(index);
+        assertEquals(passwords.size(), 20001L);
+        for (String password: breached) assertTrue(passwords.contains(password), password);
+        for (String password: passwords("secret", 20000)) assertFalse(passwords.contains(password), password);
+        assertTrue(passwords.contains("password123".toCharArray()));
+        assertTrue(passwords.contains("\u6771\u4EAC".toCharArray()));
+
+        final byte[] hash = new byte[22];
+        Hash.SHA1.digest().update("password42".getBytes(UTF8)).finish(hash, 2);
+        assertTrue(passwords.containsHash(hash, 2));
+        hash[21] ^= 1;
+        assertFalse(passwords.containsHash(hash, 2));
+    }
+
+    @Test
+    public void testLowerCaseAndDuplicates()
+    throws IOException {
+        final String hash = hex(Hash.SHA1.digest().update("password".getBytes(UTF8)).finish());
+        final String corpus = "\n" + hash.toLowerCase() + "\n" + hash + ":3\n\n";
+        assertEquals(BreachedPasswords.build(new StringReader(corpus), index), 1L);
+        assertTrue(new BreachedPasswords(index).contains("password"));
+        assertFalse(new BreachedPasswords(index).contains("Password"));
+    }
+
+    @Test
+    public void testEmpty()
+    throws IOException {
+        assertEquals(BreachedPasswords.build(new StringReader(""), index), 0L);
+        assertFalse(new BreachedPasswords(index).contains("password"));
+    }
+
+    @Test(expectedExceptions=IOException.class,
+          expectedExceptionsMessageRegExp="^Corpus not sorted at line 3")
+    public void testUnsorted()
+    throws IOException {
+        final String corpus = "0000000000000000000000000000000000000001\n"
+                            + "0000000000000000000000000000000000000003\n"
+                            + "0000000000000000000000000000000000000002\n";
+        BreachedPasswords.build(new StringReader(corpus), index);
+    }
+
+    @Test(expectedExceptions=IOException.class,
+          expectedExceptionsMessageRegExp="^Invalid hash at line 2")
+    public void testInvalidHash()
+    throws IOException {
+        final String corpus = "0000000000000000000000000000000000000001\n"
+                            + "000000000000000000000000000000000000002\n";
+        BreachedPasswords.build(new StringReader(corpus), index);
+    }
+
+    @Test(expectedExceptions=IOException.class,
+          expectedExceptionsMessageRegExp="^Invalid index size .*")
+    public void testTruncatedIndex()
+    throws IOException {
+        BreachedPasswords.build(new StringReader(corpus(passwords("password", 10))), index);
+        final byte[] data = Files.readAllBytes(index);
+        Files.write(index, Arrays.copyOf(data, data.length - 1));
+        new BreachedPasswords(index);
+    }
+
+}
@@ -15,6 +15,8 @@
  * ========================================================================== */
 package org.usrz.libs.crypto.utils;
 
+import java.util.Arrays;
+
 import org.testng.annotations.Test;
 import org.usrz.libs.testing.AbstractTest;
 import org.usrz.libs.utils.Charsets;
@@ -55,4 +57,53 @@ public class CryptoUtilsTest extends AbstractTest {
         for (char c: chars) assertEquals(c, 0, "Should be all zeroes...");
     }
 
+    @Test
+    public void testEncodeIntoBuffer() {
+        final byte[] bytes = new byte[10];
+        final int length = CryptoUtils.encode("\u6771\u4EAC".toCharArray(), 0, 2, Charsets.UTF8, bytes, 2);
+        assertEquals(length, 6);
+        assertEquals(Arrays.copyOfRange(bytes, 2, 8), "\u6771\u4EAC".getBytes(Charsets.UTF8));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "^Buffer too short$")
+    public void testEncodeIntoShortBuffer() {
+        CryptoUtils.encode("\u6771\u4EAC".toCharArray(), 0, 2, Charsets.UTF8, new byte[5], 0);
+    }
+
+    @Test
+    public void testDecodeIntoBuffer() {
+        final byte[] bytes = "\u6771\u4EAC".getBytes(Charsets.UTF8);
+        final char[] chars = new char[4];
+        final int length = CryptoUtils.decode(bytes, 0, bytes.length, Charsets.UTF8, chars, 1);
+        assertEquals(length, 2);
+        assertEquals(chars, new char[] { '\0', '\u6771', '\u4EAC', '\0' });
+    }
+
+    @Test
+    public void testZeroArray() {
+        final byte[] bytes = "\u6771\u4EAC".getBytes(Charsets.UTF8);
+        final char[] chars = "\u6771\u4EAC".toCharArray();
+        CryptoUtils.zeroArray(bytes);
+        CryptoUtils.zeroArray(chars);
+        for (byte b: bytes) assertEquals(b, 0, "Should be all zeroes...");
+        for (char c: chars) assertEquals(c, 0, "Should be all zeroes...");
+    }
+
+    @Test
+    public void testIsEqual() {
+        final byte[] bytes1 = { 0, 1, 2, 3, 4, 5 };
+        final byte[] bytes2 = { 9, 2, 3, 4, 9 };
+        assertTrue(CryptoUtils.isEqual(bytes1, 2, bytes2, 1, 3));
+        assertFalse(CryptoUtils.isEqual(bytes1, 2, bytes2, 1, 4));
+        assertFalse(CryptoUtils.isEqual(bytes1, 1, bytes2, 1, 3));
+        assertTrue(CryptoUtils.isEqual(bytes1, 0, bytes2, 0, 0));
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp="^Buffer too short")
+    public void testIsEqualShort() {
+        CryptoUtils.isEqual(new byte[4], 2, new byte[4], 0, 3);
+    }
+
 }
@@ -0,0 +1,147 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.drbg.HMacSP800DRBG;
+import org.testng.annotations.Test;
+import org.usrz.libs.crypto.hash.Hash;
+import org.usrz.libs.testing.AbstractTest;
+
+public class HMACDRBGTest extends AbstractTest {
+
+    private static final byte[] NONCE = "Some nonce".getBytes();
+    private static final byte[] PERSONALIZATION = "Personalized".getBytes();
+
+    private void testAgainstBouncyCastle(Hash hash, HMac mac)
+    throws Exception {
+        final SecureRandom random = new SecureRandom();
+        final byte[] entropy = new byte[hash.getHashLength()];
+        final byte[] reseed = new byte[hash.getHashLength()];
+        random.nextBytes(entropy);
+        random.nextBytes(reseed);
+
+        /* BouncyCastle reads the instantiation entropy first, then the reseed one */
+        final EntropySource source = new EntropySource() {
+            private int count = 0;
+            @Override public boolean isPredictionResistant() { return false; }
+            @Override public int entropySize() { return entropy.length * 8; }
+            @Override public byte[] getEntropy() { return (count ++ == 0 ? entropy : reseed).clone(); }
+        };
+
+        final HMacSP800DRBG expected = new HMacSP800DRBG(mac, 256, source, PERSONALIZATION, NONCE);
+        final HMACDRBG drbg = new HMACDRBG(hash, entropy, NONCE, PERSONALIZATION);
+
+        for (int length: new int[] { 1, 17, 32, 64, 100, 1000 }) {
+            final byte[] expectedBytes = new byte[length];
+            final byte[] actualBytes = new byte[length];
+            expected.generate(expectedBytes, null, false);
+            drbg.nextBytes(actualBytes);
+            assertEquals(actualBytes, expectedBytes, "Mismatch generating " + length + " bytes");
+        }
+
+        expected.reseed(null);
+        drbg.reseed(reseed, null);
+
+        final byte[] expectedBytes = new byte[123];
+        final byte[] actualBytes = new byte[123];
+        expected.generate(expectedBytes, null, false);
+        drbg.nextBytes(actualBytes);
+        assertEquals(actualBytes, expectedBytes, "Mismatch after reseeding");
+    }
+
+    @Test
+    public void testSHA256() throws Exception {
+        testAgainstBouncyCastle(Hash.SHA256, new HMac(new SHA256Digest()));
+    }
+
+    @Test
+    public void testSHA512() throws Exception {
+        testAgainstBouncyCastle(Hash.SHA512, new HMac(new SHA512Digest()));
+    }
+
+    @Test
+    public void testChunkedRequests() {
+        final byte[] entropy = new byte[32];
+        final byte[] single = new byte[HMACDRBG.MAX_REQUEST_LENGTH + 100];
+        final byte[] chunked = new byte[single.length];
+
+        new HMACDRBG(Hash.SHA256, entropy, NONCE, null).nextBytes(single);
+
+        /* The same as two separate requests, split at the maximum length */
+        final HMACDRBG drbg = new HMACDRBG(Hash.SHA256, entropy, NONCE, null);
+        drbg.nextBytes(chunked, 0, HMACDRBG.MAX_REQUEST_LENGTH);
+        drbg.nextBytes(chunked, HMACDRBG.MAX_REQUEST_LENGTH, 100);
+        assertEquals(chunked, single);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "^Entropy input must be at least 32 bytes$")
+    public void testShortEntropy() {
+        new HMACDRBG(Hash.SHA256, new byte[16], null, null);
+    }
+
+    @Test
+    public void testRandomSeeded() {
+        final SecureRandom random = new SecureRandom();
+        final byte[] bytes1 = new byte[64];
+        final byte[] bytes2 = new byte[64];
+        new HMACDRBG(Hash.SHA256, random, null).nextBytes(bytes1);
+        new HMACDRBG(Hash.SHA256, random, null).nextBytes(bytes2);
+        assertNotEquals(bytes1, bytes2);
+    }
+
+    @Test
+    public void testInternalMacs() {
+        /* No JCA provider offers these HMACs, our own generic one is used */
+        for (Hash hash: new Hash[] { Hash.BLAKE2B, Hash.BLAKE3 }) {
+            final byte[] entropy = new byte[hash.getHashLength()];
+            new SecureRandom().nextBytes(entropy);
+
+            /* A straightforward HMAC_DRBG, instantiate and generate once */
+            byte[] key = new byte[hash.getHashLength()];
+            byte[] value = new byte[hash.getHashLength()];
+            Arrays.fill(value, (byte) 0x01);
+            for (byte separator = 0; separator < 2; separator ++) {
+                key = hash.hmac(key).update(value).update(separator).update(entropy).update(NONCE).finish();
+                value = hash.hmac(key).update(value).finish();
+            }
+            value = hash.hmac(key).update(value).finish();
+
+            final byte[] bytes = new byte[hash.getHashLength()];
+            new HMACDRBG(hash, entropy, NONCE, null).nextBytes(bytes);
+            assertEquals(bytes, value, hash.name());
+        }
+    }
+
+    @Test
+    public void testParentSeeded() {
+        final HMACDRBG parent = new HMACDRBG(Hash.SHA256, new SecureRandom(), null);
+        final byte[] bytes1 = new byte[64];
+        final byte[] bytes2 = new byte[64];
+        new HMACDRBG(Hash.SHA256, parent, null).nextBytes(bytes1);
+        new HMACDRBG(Hash.SHA512, parent, null).nextBytes(bytes2);
+        assertNotEquals(bytes1, bytes2);
+        assertNotEquals(bytes1, new byte[64]);
+    }
+
+}
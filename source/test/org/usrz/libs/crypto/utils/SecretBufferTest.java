@@ -0,0 +1,122 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.crypto.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.Charsets;
+
+public class SecretBufferTest extends AbstractTest {
+
+    @Test
+    public void testEncode() {
+        try (SecretBuffer buffer = SecretBuffer.encode("\u6771\u4EAC".toCharArray())) {
+            assertEquals(buffer.length(), 6);
+            assertEquals(buffer.array(), "\u6771\u4EAC".getBytes(Charsets.UTF8));
+        }
+    }
+
+    @Test
+    public void testEncodeCharset() {
+        try (SecretBuffer buffer = SecretBuffer.encode("\u6771\u4EAC".toCharArray(), Charsets.UTF16LE)) {
+            assertEquals(buffer.array(), "\u6771\u4EAC".getBytes(Charsets.UTF16LE));
+        }
+    }
+
+    @Test
+    public void testZeroedAndPooled() {
+        final SecretBuffer buffer = SecretBuffer.encode("password123".toCharArray());
+        final byte[] array = buffer.array();
+        buffer.close();
+
+        assertTrue(buffer.isDestroyed(), "Not destroyed");
+        for (byte b: array) assertEquals(b, 0, "Should be all zeroes...");
+
+        /* Closing twice must not return the array to the pool twice */
+        buffer.close();
+
+        try (SecretBuffer buffer1 = SecretBuffer.allocate(array.length);
+             SecretBuffer buffer2 = SecretBuffer.allocate(array.length)) {
+            assertSame(buffer1.array(), array, "Array not pooled");
+            assertNotSame(buffer2.array(), array, "Array pooled twice");
+        }
+    }
+
+    @Test
+    public void testLargeNotPooled() {
+        final SecretBuffer buffer = SecretBuffer.allocate(SecretBuffer.MAX_POOLED_LENGTH + 1);
+        final byte[] array = buffer.array();
+        buffer.close();
+
+        try (SecretBuffer other = SecretBuffer.allocate(SecretBuffer.MAX_POOLED_LENGTH + 1)) {
+            assertNotSame(other.array(), array);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+          expectedExceptionsMessageRegExp = "^Destroyed$")
+    public void testDestroyed() {
+        final SecretBuffer buffer = SecretBuffer.allocate(16);
+        buffer.close();
+        buffer.array();
+    }
+
+    @Test
+    public void testConcurrentClose()
+    throws Exception {
+        final int length = 977;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int x = 0; x < 100; x ++) {
+                final SecretBuffer buffer = SecretBuffer.allocate(length);
+                final CountDownLatch latch = new CountDownLatch(1);
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int y = 0; y < 4; y ++) futures.add(executor.submit(() -> {
+                    latch.await();
+                    buffer.close();
+                    return null;
+                }));
+                latch.countDown();
+                for (Future<?> future: futures) future.get();
+
+                /* The same array must never be handed out twice */
+                final List<SecretBuffer> buffers = new ArrayList<>();
+                final Set<byte[]> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+                try {
+                    for (int y = 0; y < 5; y ++) {
+                        buffers.add(SecretBuffer.allocate(length));
+                        assertTrue(arrays.add(buffers.get(y).array()), "Array pooled twice");
+                    }
+                } finally {
+                    buffers.forEach(SecretBuffer::close);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
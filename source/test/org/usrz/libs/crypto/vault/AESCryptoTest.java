@@ -18,11 +18,20 @@ package org.usrz.libs.crypto.vault;
 import static org.usrz.libs.utils.Charsets.UTF8;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 import org.usrz.libs.configurations.Password;
 import org.usrz.libs.crypto.hash.Hash;
 import org.usrz.libs.crypto.kdf.KDF;
+import org.usrz.libs.crypto.kdf.KDFSpec;
 import org.usrz.libs.crypto.kdf.PBKDF2;
 import org.usrz.libs.testing.AbstractTest;
 
@@ -63,4 +72,86 @@ public class AESCryptoTest extends AbstractTest {
         }
     }
 
+    @Test
+    public void testConcurrentClose()
+    throws Exception {
+        final KDF kdf = new PBKDF2(Hash.SHA1, 100, 32);
+        final byte[] original = "life is beautiful, isn't it?".getBytes(UTF8);
+        final AESCrypto check = new AESCrypto(kdf, new Password("foobarbaz".toCharArray()));
+
+        for (int x = 0; x < 20; x ++) {
+            final AESCrypto vault = new AESCrypto(kdf, new Password("foobarbaz".toCharArray()));
+            final List<Future<byte[]>> futures = new ArrayList<>();
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                for (int y = 0; y < 20; y ++) futures.add(executor.submit(() -> vault.encrypt(original)));
+                vault.close();
+
+                /* Either encrypted with the right password, or refused */
+                for (Future<byte[]> future: futures) try {
+                    assertEquals(check.decrypt(future.get()), original);
+                } catch (ExecutionException exception) {
+                    assertEquals(exception.getCause().getClass(), IllegalStateException.class);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentDerivation()
+    throws Exception {
+        final KDF pbkdf2 = new PBKDF2(Hash.SHA1, 100, 32);
+        final byte[] original = "life is beautiful, isn't it?".getBytes(UTF8);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        /* Both derivations must be running at the same time, while closing */
+        final KDF kdf = new KDF() {
+
+            @Override
+            public KDFSpec getKDFSpec() {
+                return pbkdf2.getKDFSpec();
+            }
+
+            @Override
+            public byte[] deriveKey(byte[] password, byte[] salt) {
+                started.countDown();
+                try {
+                    assertTrue(started.await(10, TimeUnit.SECONDS), "Derivations not concurrent");
+                    assertTrue(closed.await(10, TimeUnit.SECONDS), "Close blocked by derivation");
+                } catch (InterruptedException exception) {
+                    throw new IllegalStateException("Interrupted", exception);
+                }
+                return pbkdf2.deriveKey(password, salt);
+            }
+
+            @Override
+            public void deriveKey(byte[] password, byte[] salt, byte[] output, int offset) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        final AESCrypto vault = new AESCrypto(kdf, new Password("foobarbaz".toCharArray()));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<byte[]> first = executor.submit(() -> vault.encrypt(original));
+            final Future<byte[]> second = executor.submit(() -> vault.encrypt(original));
+
+            /* Wait for both derivations to start, then close while in progress */
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Derivations not started");
+            vault.close();
+            assertTrue(vault.isDestroyed());
+            closed.countDown();
+
+            /* Derivations started before closing use the original password */
+            final AESCrypto check = new AESCrypto(pbkdf2, new Password("foobarbaz".toCharArray()));
+            assertEquals(check.decrypt(first.get()), original);
+            assertEquals(check.decrypt(second.get()), original);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }